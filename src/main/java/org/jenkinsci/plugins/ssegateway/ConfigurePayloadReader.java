@@ -0,0 +1,409 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.EventFilters;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Streaming reader for the <code>/sse-gateway/configure</code> payload.
+ * <p>
+ * Reads the payload straight off the request stream, without first reading it into a
+ * string and building a {@link net.sf.json.JSONObject} from it, and without the reflective
+ * {@link net.sf.json.JSONObject#toBean(Object)} per filter. The filters are interned
+ * (see {@link EventFilters}) as they are read.
+ * <p>
+ * Payload format: <code>{"dispatcherId": "..", "subscribe": [{..}, ..], "unsubscribe": [{..}, ..] | "*"}</code>,
+ * plus <code>"type"</code> and <code>"batchId"</code> on WebSocket messages.
+ * Unknown properties are skipped. Filter property values must be JSON strings, numbers or booleans.
+ * A bare filter array (e.g. the <code>subscribe</code> parameter on a listen request) can be read
+ * with {@link #readFilters(Reader)}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class ConfigurePayloadReader {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( ConfigurePayloadReader.class.getName());
+
+    private static final int NONE = -2;
+
+    private final Reader reader;
+    private final StringBuilder stringBuilder = new StringBuilder();
+    private int peeked = NONE;
+
+    private String type;
+    private String batchId;
+    private String dispatcherId;
+    private List<EventFilter> subscribeSet = Collections.emptyList();
+    private List<EventFilter> unsubscribeSet = Collections.emptyList();
+    private boolean unsubscribeAll = false;
+
+    private ConfigurePayloadReader(Reader reader) {
+        this.reader = new BufferedReader(reader);
+    }
+
+    /**
+     * Read a configure payload.
+     * @param reader The payload reader.
+     * @return The payload.
+     * @throws IOException Error reading the payload, or the payload is not a valid JSON object.
+     */
+    static @NonNull ConfigurePayloadReader read(@NonNull Reader reader) throws IOException {
+        ConfigurePayloadReader payloadReader = new ConfigurePayloadReader(reader);
+        payloadReader.readPayload();
+        return payloadReader;
+    }
+
+    /**
+     * Read a JSON array of filters.
+     * @param reader The filter array reader.
+     * @return The (interned) filters.
+     * @throws IOException Error reading the filters, or not a valid JSON array.
+     */
+    static @NonNull List<EventFilter> readFilters(@NonNull Reader reader) throws IOException {
+        ConfigurePayloadReader payloadReader = new ConfigurePayloadReader(reader);
+        List<EventFilter> filters = payloadReader.readFilterSet("subscribe");
+        if (payloadReader.peekNonWhitespace() != -1) {
+            throw unexpected(payloadReader.read());
+        }
+        return filters;
+    }
+
+    /**
+     * Get the message type. Only on messages that are not sent as a configure
+     * request e.g. over a WebSocket (see {@link WebSocketTransport}).
+     * @return The message type, or {@code null} if not specified.
+     */
+    String getType() {
+        return type;
+    }
+
+    /**
+     * Get the configuration batch Id. Only on messages that are not sent as a
+     * configure request (which has it as a request parameter).
+     * @return The batch Id, or {@code null} if not specified.
+     */
+    String getBatchId() {
+        return batchId;
+    }
+
+    String getDispatcherId() {
+        return dispatcherId;
+    }
+
+    List<EventFilter> getSubscribeSet() {
+        return subscribeSet;
+    }
+
+    List<EventFilter> getUnsubscribeSet() {
+        return unsubscribeSet;
+    }
+
+    boolean isUnsubscribeAll() {
+        return unsubscribeAll;
+    }
+
+    private void readPayload() throws IOException {
+        expect('{');
+        if (peekNonWhitespace() == '}') {
+            read();
+            return;
+        }
+        while (true) {
+            String key = readString();
+            expect(':');
+            if ("type".equals(key)) {
+                type = readScalar();
+            } else if ("batchId".equals(key)) {
+                batchId = readScalar();
+            } else if ("dispatcherId".equals(key)) {
+                dispatcherId = readScalar();
+            } else if ("subscribe".equals(key)) {
+                subscribeSet = readFilterSet(key);
+            } else if ("unsubscribe".equals(key)) {
+                if (peekNonWhitespace() == '"') {
+                    String unsubscribe = readString();
+                    unsubscribeAll = ("*".equals(unsubscribe) || "all".equalsIgnoreCase(unsubscribe));
+                } else {
+                    unsubscribeSet = readFilterSet(key);
+                }
+            } else {
+                skipValue();
+            }
+            if (!nextInObject()) {
+                return;
+            }
+        }
+    }
+
+    private List<EventFilter> readFilterSet(String key) throws IOException {
+        if (peekNonWhitespace() != '[') {
+            LOGGER.error("Invalid SSE payload. Expecting an array of JSON Objects for property {}", key);
+            skipValue();
+            return Collections.emptyList();
+        }
+
+        read();
+        if (peekNonWhitespace() == ']') {
+            read();
+            return Collections.emptyList();
+        }
+        List<EventFilter> filterSet = new ArrayList<>();
+        while (true) {
+            if (peekNonWhitespace() == '{') {
+                filterSet.add(readFilter());
+            } else {
+                LOGGER.error("Invalid SSE payload. Expecting an array of JSON Objects for property {}", key);
+                skipValue();
+            }
+            int c = readNonWhitespace();
+            if (c == ']') {
+                return filterSet;
+            } else if (c != ',') {
+                throw unexpected(c);
+            }
+        }
+    }
+
+    private EventFilter readFilter() throws IOException {
+        Map<String, String> properties = new LinkedHashMap<>();
+        expect('{');
+        if (peekNonWhitespace() == '}') {
+            read();
+            return EventFilters.intern(properties);
+        }
+        while (true) {
+            String name = readString();
+            expect(':');
+            int c = peekNonWhitespace();
+            if (c == '{' || c == '[') {
+                LOGGER.warn("Invalid SSE filter property {}. Filter property values must be strings, numbers or booleans. Ignoring.", name);
+                skipValue();
+            } else {
+                String value = readScalar();
+                if (value != null) {
+                    properties.put(name, value);
+                }
+            }
+            if (!nextInObject()) {
+                return EventFilters.intern(properties);
+            }
+        }
+    }
+
+    /**
+     * Read a string, number, boolean or null value.
+     * @return The value as a string, or {@code null} for a JSON {@code null}.
+     */
+    private String readScalar() throws IOException {
+        if (peekNonWhitespace() == '"') {
+            return readString();
+        }
+
+        stringBuilder.setLength(0);
+        while (true) {
+            int c = peek();
+            if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'E') {
+                stringBuilder.append((char) read());
+            } else {
+                break;
+            }
+        }
+        if (stringBuilder.length() == 0) {
+            throw unexpected(read());
+        }
+
+        String literal = stringBuilder.toString();
+        if ("null".equals(literal)) {
+            return null;
+        }
+        return literal;
+    }
+
+    private String readString() throws IOException {
+        expect('"');
+        stringBuilder.setLength(0);
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return stringBuilder.toString();
+            } else if (c == '\\') {
+                c = read();
+                switch (c) {
+                    case '"':
+                    case '\\':
+                    case '/':
+                        stringBuilder.append((char) c);
+                        break;
+                    case 'b':
+                        stringBuilder.append('\b');
+                        break;
+                    case 'f':
+                        stringBuilder.append('\f');
+                        break;
+                    case 'n':
+                        stringBuilder.append('\n');
+                        break;
+                    case 'r':
+                        stringBuilder.append('\r');
+                        break;
+                    case 't':
+                        stringBuilder.append('\t');
+                        break;
+                    case 'u':
+                        stringBuilder.append(readUnicodeEscape());
+                        break;
+                    default:
+                        throw unexpected(c);
+                }
+            } else if (c == -1) {
+                throw unexpected(c);
+            } else {
+                stringBuilder.append((char) c);
+            }
+        }
+    }
+
+    private char readUnicodeEscape() throws IOException {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            int c = read();
+            int digit = Character.digit(c, 16);
+            if (c == -1 || digit == -1) {
+                throw unexpected(c);
+            }
+            value = (value << 4) + digit;
+        }
+        return (char) value;
+    }
+
+    private void skipValue() throws IOException {
+        int c = peekNonWhitespace();
+        if (c == '{') {
+            read();
+            if (peekNonWhitespace() == '}') {
+                read();
+                return;
+            }
+            while (true) {
+                readString();
+                expect(':');
+                skipValue();
+                if (!nextInObject()) {
+                    return;
+                }
+            }
+        } else if (c == '[') {
+            read();
+            if (peekNonWhitespace() == ']') {
+                read();
+                return;
+            }
+            while (true) {
+                skipValue();
+                c = readNonWhitespace();
+                if (c == ']') {
+                    return;
+                } else if (c != ',') {
+                    throw unexpected(c);
+                }
+            }
+        } else {
+            readScalar();
+        }
+    }
+
+    /**
+     * Move to the next property in an object.
+     * @return {@code true} if there's another property, or {@code false} if the end of the object was reached.
+     */
+    private boolean nextInObject() throws IOException {
+        int c = readNonWhitespace();
+        if (c == ',') {
+            return true;
+        } else if (c == '}') {
+            return false;
+        }
+        throw unexpected(c);
+    }
+
+    private void expect(char expected) throws IOException {
+        int c = readNonWhitespace();
+        if (c != expected) {
+            throw unexpected(c);
+        }
+    }
+
+    private int readNonWhitespace() throws IOException {
+        int c = peekNonWhitespace();
+        read();
+        return c;
+    }
+
+    private int peekNonWhitespace() throws IOException {
+        while (true) {
+            int c = peek();
+            if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+                read();
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private int peek() throws IOException {
+        if (peeked == NONE) {
+            peeked = reader.read();
+        }
+        return peeked;
+    }
+
+    private int read() throws IOException {
+        if (peeked != NONE) {
+            int c = peeked;
+            peeked = NONE;
+            return c;
+        }
+        return reader.read();
+    }
+
+    private static IOException unexpected(int c) {
+        if (c == -1) {
+            return new IOException("Invalid SSE payload. Unexpected end of payload.");
+        }
+        return new IOException(String.format("Invalid SSE payload. Unexpected character '%c'.", (char) c));
+    }
+}
@@ -29,9 +29,18 @@ import hudson.security.csrf.CrumbExclusion;
 import hudson.util.HttpResponses;
 import hudson.util.PluginServletFilter;
 import jenkins.model.Jenkins;
+import jenkins.websocket.WebSockets;
+import net.sf.json.JSONArray;
 import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
 import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
 import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherRegistry;
+import org.jenkinsci.plugins.ssegateway.sse.EventFilters;
+import org.jenkinsci.plugins.ssegateway.sse.ReconnectControl;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.DoNotUse;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -53,7 +62,12 @@ import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
 import java.io.File;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
 import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
@@ -64,9 +78,18 @@ public class Endpoint extends CrumbExclusion implements RootAction {
 
     public static final String SSE_GATEWAY_URL = "/sse-gateway";
     public static final String SSE_LISTEN_URL_PREFIX = SSE_GATEWAY_URL + "/listen/";
+    public static final String SSE_POLL_URL_PREFIX = SSE_GATEWAY_URL + "/poll/";
+    public static final String SSE_STREAM_URL = SSE_GATEWAY_URL + "/stream";
+    public static final String SSE_MUX_URL_PREFIX = SSE_GATEWAY_URL + "/mux/";
     
     private static final Logger LOGGER = LoggerFactory.getLogger( Endpoint.class.getName());
 
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+
+    // Default and max number of events returned per history request.
+    private static final int HISTORY_PAGE_SIZE = 100;
+    private static final int HISTORY_MAX_PAGE_SIZE = 1000;
+
     public Endpoint() throws ServletException {
         init();
     }
@@ -78,7 +101,9 @@ public class Endpoint extends CrumbExclusion implements RootAction {
         if(contentType != null && contentType.contains("application/json")) {
             String requestedResource = getRequestedResourcePath(request);
 
-            if (requestedResource.equals(SSE_GATEWAY_URL + "/configure")) {
+            if (requestedResource.equals(SSE_GATEWAY_URL + "/configure")
+                    || requestedResource.equals(SSE_GATEWAY_URL + "/muxJoin")
+                    || requestedResource.equals(SSE_GATEWAY_URL + "/muxLeave")) {
                 chain.doFilter(request, response);
                 return true;
             }
@@ -91,7 +116,11 @@ public class Endpoint extends CrumbExclusion implements RootAction {
         Jenkins jenkins = Jenkins.getInstanceOrNull();
         if (jenkins != null) {
             try {
-                EventHistoryStore.setHistoryRoot(getHistoryDirectory(jenkins));
+                File historyDirectory = getHistoryDirectory(jenkins);
+                // Move any history from before the restart out of the way (and purge
+                // it in the background) so we start with a fresh, empty history root.
+                EventHistoryPurge.start(historyDirectory);
+                EventHistoryStore.setHistoryRoot(historyDirectory);
                 EventHistoryStore.enableAutoDeleteOnExpire();
             } catch (IOException e) {
                 LOGGER.error("Unexpected error setting EventHistoryStore event history root dir.", e);
@@ -141,26 +170,81 @@ public class Endpoint extends CrumbExclusion implements RootAction {
             throw new IOException("No 'clientId' parameter specified in connect request.");
         }
 
-        HttpSession session = request.getSession();
-        EventDispatcher dispatcher = EventDispatcherFactory.getDispatcher(clientId, session);
+        if (!ReconnectControl.tryConnect()) {
+            // Reconnect storm e.g. after a restart. The client should back off and retry.
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(ReconnectControl.getRetryAfterSeconds()));
+            return HttpResponses.errorJSON("Too many SSE connect requests. Retry later.");
+        }
+
+        HttpSession session = null;
+        StreamToken streamToken = null;
+        EventDispatcher dispatcher;
+        // The digest of the subscriptions the client thinks it has (see SubscriptionDigest).
+        String subscriptionDigest = request.getParameter("subscriptionDigest");
         
-        // If there was already a dispatcher with this ID, then remove
-        // all subscriptions from it and reuse the instance.
-        if (dispatcher != null) {
+        JSONObject responseData = new JSONObject();
+        if (Boolean.parseBoolean(request.getParameter("sessionless"))) {
+            // No HTTP session. The client identifies its dispatcher by stream token. A client
+            // reconnecting passes back its token, so as to keep the same dispatcher.
+            String streamTokenParam = request.getParameter(StreamToken.PARAMETER);
+            StreamToken previousToken = (streamTokenParam != null ? StreamToken.verify(streamTokenParam) : null);
+            streamToken = StreamToken.issue(clientId, previousToken);
+            dispatcher = EventDispatcherFactory.getDispatcher(streamToken);
+            responseData.put(StreamToken.PARAMETER, streamToken.getValue());
+        } else {
+            session = request.getSession();
+            dispatcher = EventDispatcherFactory.getDispatcher(clientId, session);
+            responseData.put("jsessionid", session.getId());
+        }
+
+        if (dispatcher != null && subscriptionDigest != null) {
+            // There was already a dispatcher with this ID and the client can resume its
+            // subscriptions. Reuse the instance, keeping its subscriptions.
+            if (subscriptionDigest.equals(dispatcher.getSubscriptionDigest())) {
+                // Same subscriptions on both sides. Nothing to reconfigure.
+                responseData.put("subscriptions", "resumed");
+            } else {
+                // Tell the client what the dispatcher is subscribed to, so
+                // it can send just the diff.
+                JSONArray subscriptions = new JSONArray();
+                for (EventFilter filter : dispatcher.getSubscriptionFilters()) {
+                    subscriptions.add(JSONObject.fromObject(filter));
+                }
+                responseData.put("subscriptions", subscriptions);
+            }
+        } else if (dispatcher != null) {
+            // If there was already a dispatcher with this ID, then remove
+            // all subscriptions from it and reuse the instance.
             if(LOGGER.isDebugEnabled()){
                 LOGGER.debug("We already have a Dispatcher for clientId {}. Removing all subscriptions on the existing Dispatcher instance and reusing it.", dispatcher.toString());
             }
             dispatcher.unsubscribeAll();
         } else {
             // Else create a new instance with this id.
-            EventDispatcherFactory.newDispatcher(clientId, session);
+            try {
+                if (streamToken != null) {
+                    dispatcher = EventDispatcherFactory.newDispatcher(streamToken);
+                } else {
+                    dispatcher = EventDispatcherFactory.newDispatcher(clientId, session);
+                }
+            } catch (AdmissionControl.RejectedException e) {
+                // Over an admission limit. Fail fast. The client should back off and retry.
+                response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                response.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+                return HttpResponses.errorJSON(e.getMessage());
+            }
         }
+
+        if (dispatcher != null) {
+            // Subscriptions carried on the next listen request are to be applied.
+            dispatcher.setAwaitingListen();
+        }
+        // Tell the client if it can listen over a WebSocket instead (see WebSocketTransport).
+        responseData.put("webSocket", WebSocketTransport.isAvailable());
         
         response.setStatus(HttpServletResponse.SC_OK);
         
-        JSONObject responseData = new JSONObject();
-        responseData.put("jsessionid", session.getId());
-        
         return HttpResponses.okJSON(responseData); 
     }
     
@@ -172,7 +256,10 @@ public class Endpoint extends CrumbExclusion implements RootAction {
             LOGGER.debug("Processing configuration request. batchId={}", subscriptionConfig.getBatchId());
         }
 
-        if (subscriptionConfig.getDispatcherId() == null) {
+        if (subscriptionConfig.isInvalidStreamToken()) {
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return HttpResponses.errorJSON("Invalid or expired stream token.");
+        } else if (subscriptionConfig.getDispatcherId() == null) {
             response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return HttpResponses.errorJSON("'dispatcherId' not specified.");
         } else if (!subscriptionConfig.hasConfigs()) {
@@ -180,12 +267,28 @@ public class Endpoint extends CrumbExclusion implements RootAction {
             return HttpResponses.errorJSON("No 'subscribe' or 'unsubscribe' configurations provided in configuration request.");
         }
 
-        // The requests are added to a queue and processed async. A
+        // Small requests from clients that can take the ACK in the response
+        // are applied straight away, on this thread.
+        JSONObject ack = SubscriptionConfigQueue.applyNow(subscriptionConfig);
+        if (ack != null) {
+            ack.put("applied", true);
+            response.setStatus(HttpServletResponse.SC_OK);
+            return HttpResponses.okJSON(ack);
+        }
+
+        // Other requests are added to a queue and processed async. A
         // status notification will be pushed to the client async.
-        boolean queuedOkay = SubscriptionConfigQueue.add(subscriptionConfig);
+        SubscriptionConfigQueue.AddResult addResult = SubscriptionConfigQueue.add(subscriptionConfig);
+
+        if (addResult == SubscriptionConfigQueue.AddResult.SATURATED) {
+            // Backpressure. The client should back off and retry.
+            response.setStatus(SC_TOO_MANY_REQUESTS);
+            response.setHeader("Retry-After", Integer.toString(SubscriptionConfigQueue.getRetryAfterSeconds()));
+            return HttpResponses.errorJSON("Too many channel subscription requests. Retry later.");
+        }
         
         response.setStatus(HttpServletResponse.SC_OK);
-        if (queuedOkay) {
+        if (addResult == SubscriptionConfigQueue.AddResult.QUEUED) {
             return HttpResponses.okJSON();
         } else {
             return HttpResponses.errorJSON("Unable to process channel subscription request at this time.");
@@ -193,11 +296,22 @@ public class Endpoint extends CrumbExclusion implements RootAction {
     }
 
     @Restricted(DoNotUse.class) // Web only
-    public HttpResponse doPing(StaplerRequest2 request) throws IOException {
+    public HttpResponse doPing(StaplerRequest2 request, StaplerResponse2 response) throws IOException {
         String dispatcherId = request.getParameter("dispatcherId");
 
         if (dispatcherId != null) {
-            EventDispatcher dispatcher = EventDispatcherFactory.getDispatcher(dispatcherId, request.getSession());
+            EventDispatcher dispatcher;
+            String streamTokenParam = request.getParameter(StreamToken.PARAMETER);
+            if (streamTokenParam != null) {
+                StreamToken streamToken = StreamToken.verify(streamTokenParam);
+                if (streamToken == null || !streamToken.getClientId().equals(dispatcherId)) {
+                    response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                    return HttpResponses.errorJSON("Invalid or expired stream token.");
+                }
+                dispatcher = EventDispatcherFactory.getDispatcher(streamToken);
+            } else {
+                dispatcher = EventDispatcherFactory.getDispatcher(dispatcherId, request.getSession());
+            }
             if (dispatcher != null) {
                 try {
                     dispatcher.dispatchEvent("pingback", "ack");
@@ -211,6 +325,218 @@ public class Endpoint extends CrumbExclusion implements RootAction {
         return HttpResponses.okJSON();
     }
 
+    /**
+     * Listen over a WebSocket, instead of an SSE listen stream. See {@link WebSocketTransport}.
+     * <p>
+     * Parameters as for the listen request: {@code clientId} (required), {@code subscribe} (initial
+     * subscriptions) and the stream token, if sessionless.
+     */
+    @Restricted(DoNotUse.class) // Web only
+    public HttpResponse doWebsocket(StaplerRequest2 request, StaplerResponse2 response) throws IOException {
+        if (!WebSocketTransport.isAvailable()) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return HttpResponses.errorJSON("WebSocket transport not available.");
+        }
+
+        String clientId = request.getParameter("clientId");
+        if (clientId == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return HttpResponses.errorJSON("No 'clientId' parameter specified in WebSocket request.");
+        }
+        if (!isSameOrigin(request)) {
+            // Browsers don't apply the same origin policy to WebSockets.
+            response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+            return HttpResponses.errorJSON("Cross origin WebSocket requests are not allowed.");
+        }
+
+        List<EventFilter> listenSubscriptions = Collections.emptyList();
+        String subscribeParam = request.getParameter("subscribe");
+        if (subscribeParam != null) {
+            try {
+                listenSubscriptions = ConfigurePayloadReader.readFilters(new StringReader(subscribeParam));
+            } catch (IOException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return HttpResponses.errorJSON(e.getMessage());
+            }
+        }
+
+        if (!ReconnectControl.tryListen()) {
+            // Reconnect storm e.g. after a restart. The client should back off and retry.
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(ReconnectControl.getRetryAfterSeconds()));
+            return HttpResponses.errorJSON("Too many SSE listen requests. Retry later.");
+        }
+
+        String streamTokenParam = request.getParameter(StreamToken.PARAMETER);
+        if (streamTokenParam != null) {
+            StreamToken streamToken = StreamToken.verify(streamTokenParam);
+            if (streamToken == null || !streamToken.getClientId().equals(clientId)) {
+                response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+                return HttpResponses.errorJSON("Invalid or expired stream token.");
+            }
+            return WebSockets.upgrade(new WebSocketTransport(clientId, null, streamToken, listenSubscriptions));
+        }
+        return WebSockets.upgrade(new WebSocketTransport(clientId, request.getSession(), null, listenSubscriptions));
+    }
+
+    /**
+     * Add a client to a multiplexed listen stream. See {@link MuxStream}.
+     * <p>
+     * Parameters: {@code muxId}, {@code clientId} and {@code subscribe} (initial subscriptions,
+     * as for the listen request). Joining again, e.g. after the stream reconnects, is a no-op.
+     */
+    @RequirePOST
+    @Restricted(DoNotUse.class) // Web only
+    public HttpResponse doMuxJoin(StaplerRequest2 request, StaplerResponse2 response) throws IOException {
+        String muxId = request.getParameter("muxId");
+        String clientId = request.getParameter("clientId");
+        if (muxId == null || clientId == null) {
+            response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+            return HttpResponses.errorJSON("'muxId' and 'clientId' parameters required.");
+        }
+
+        List<EventFilter> listenSubscriptions = Collections.emptyList();
+        String subscribeParam = request.getParameter("subscribe");
+        if (subscribeParam != null) {
+            try {
+                listenSubscriptions = ConfigurePayloadReader.readFilters(new StringReader(subscribeParam));
+            } catch (IOException e) {
+                response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+                return HttpResponses.errorJSON(e.getMessage());
+            }
+        }
+
+        MuxStream muxStream = MuxStream.get(request.getSession(), muxId);
+        if (muxStream == null) {
+            response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+            return HttpResponses.errorJSON("Unknown mux stream " + muxId + ".");
+        }
+        try {
+            if (!muxStream.join(clientId, listenSubscriptions)) {
+                // The client should listen on its own stream instead.
+                response.setStatus(HttpServletResponse.SC_CONFLICT);
+                return HttpResponses.errorJSON("Mux stream " + muxId + " is full.");
+            }
+        } catch (AdmissionControl.RejectedException e) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+            return HttpResponses.errorJSON(e.getMessage());
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        return HttpResponses.okJSON();
+    }
+
+    @RequirePOST
+    @Restricted(DoNotUse.class) // Web only
+    public HttpResponse doMuxLeave(StaplerRequest2 request) {
+        String muxId = request.getParameter("muxId");
+        String clientId = request.getParameter("clientId");
+        if (muxId != null && clientId != null) {
+            MuxStream muxStream = MuxStream.get(request.getSession(), muxId);
+            if (muxStream != null) {
+                muxStream.leave(clientId);
+            }
+        }
+        return HttpResponses.okJSON();
+    }
+
+    private static boolean isSameOrigin(StaplerRequest2 request) {
+        String origin = request.getHeader("Origin");
+        if (origin == null) {
+            // Not a browser.
+            return true;
+        }
+        // As for core WebSockets. The root URL honours the X-Forwarded-* headers, where
+        // the Host header may be the reverse proxy's view of Jenkins.
+        String rootUrl = Jenkins.get().getRootUrlFromRequest();
+        return rootUrl.toLowerCase(Locale.ENGLISH).startsWith(origin.toLowerCase(Locale.ENGLISH) + "/");
+    }
+
+    @Restricted(DoNotUse.class) // Web only
+    public HttpResponse doStats() {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        JSONObject stats = new JSONObject();
+        stats.put("history", EventHistoryStore.getStats());
+        stats.put("configure", SubscriptionConfigQueue.getStats());
+        stats.put("dispatchers", EventDispatcherRegistry.getStats());
+        stats.put("filters", EventFilters.getStats());
+        stats.put("admission", AdmissionControl.getStats());
+        stats.put("reconnect", ReconnectControl.getStats());
+        stats.put("longPoll", LongPollTransport.getStats());
+        stats.put("ndjson", NdjsonTransport.getStats());
+        stats.put("mux", MuxStream.getStats());
+
+        return HttpResponses.okJSON(stats);
+    }
+
+    /**
+     * Stream a range of the event history for a channel, in store order.
+     * <p>
+     * Parameters: {@code channel} (required), {@code after} (event position, exclusive),
+     * {@code since} (store time, millis) and {@code limit} (page size). Responds with
+     * <code>{"channel": .., "events": [{"position": .., "timestamp": .., "event": {..}}, ..], "hasMore": ..}</code>.
+     * Page through the history by passing the position of the last event received
+     * as {@code after} in the next request, while {@code hasMore} is {@code true}.
+     * <p>
+     * Restricted to administrators because the replayed events are not filtered
+     * by the requesting user's permissions.
+     */
+    @Restricted(DoNotUse.class) // Web only
+    public void doHistory(StaplerRequest2 request, StaplerResponse2 response) throws IOException {
+        Jenkins.get().checkPermission(Jenkins.ADMINISTER);
+
+        String channelName = request.getParameter("channel");
+        if (channelName == null) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "No 'channel' parameter specified in history request.");
+            return;
+        }
+
+        long afterPosition;
+        long sinceTime;
+        int limit;
+        try {
+            afterPosition = getLongParameter(request, "after", 0);
+            sinceTime = getLongParameter(request, "since", 0);
+            limit = (int) Math.max(1, Math.min(getLongParameter(request, "limit", HISTORY_PAGE_SIZE), HISTORY_MAX_PAGE_SIZE));
+        } catch (NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid 'after', 'since' or 'limit' parameter in history request.");
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+
+        // Stream the events out as they are read from the store, rather
+        // than building the whole page in memory.
+        PrintWriter writer = response.getWriter();
+        writer.write("{\"channel\":");
+        writer.write(JSONUtils.quote(channelName));
+        writer.write(",\"events\":[");
+        boolean[] first = {true};
+        boolean hasMore = EventHistoryStore.replayChannelEvents(channelName, afterPosition, sinceTime, limit, (position, timestamp, eventJSON) -> {
+            if (!first[0]) {
+                writer.write(',');
+            }
+            first[0] = false;
+            writer.write("{\"position\":" + position + ",\"timestamp\":" + timestamp + ",\"event\":");
+            writer.write(eventJSON);
+            writer.write('}');
+        });
+        writer.write("],\"hasMore\":" + hasMore + "}");
+        writer.flush();
+    }
+
+    private static long getLongParameter(StaplerRequest2 request, String name, long defaultValue) {
+        String value = request.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        return Long.parseLong(value);
+    }
+
     // Using a Servlet Filter for the async channel. We're doing this because we
     // do not want these requests making their way to Stapler. This is really
     // down to fear of the unknown magic that happens in Stapler and the effect
@@ -229,11 +555,26 @@ public class Endpoint extends CrumbExclusion implements RootAction {
                 HttpServletRequest httpServletRequest = (HttpServletRequest) servletRequest;
                 String requestedResource = getRequestedResourcePath(httpServletRequest);
                 
-                if (requestedResource.startsWith(SSE_LISTEN_URL_PREFIX)) {
+                if (requestedResource.equals(SSE_STREAM_URL)) {
+                    // NDJSON stream, for headless/machine consumers.
+                    NdjsonTransport.stream(httpServletRequest, (HttpServletResponse) servletResponse);
+                    return; // Do not allow this request on to Stapler
+                }
+                if (requestedResource.startsWith(SSE_MUX_URL_PREFIX)) {
+                    // One stream for all of a page's clients. See doMuxJoin.
+                    String muxId = URLDecoder.decode(requestedResource.substring(SSE_MUX_URL_PREFIX.length()), "UTF-8");
+                    MuxStream.listen(muxId, httpServletRequest, (HttpServletResponse) servletResponse);
+                    return; // Do not allow this request on to Stapler
+                }
+
+                boolean isPoll = requestedResource.startsWith(SSE_POLL_URL_PREFIX);
+                
+                if (isPoll || requestedResource.startsWith(SSE_LISTEN_URL_PREFIX)) {
                     HttpServletResponse httpServletResponse = (HttpServletResponse) servletResponse;
+                    String urlPrefix = (isPoll ? SSE_POLL_URL_PREFIX : SSE_LISTEN_URL_PREFIX);
                     // This part is kept in case someone is sending the jsessionid with the ;
                     // but this is no longer the case for the tests of this plugin
-                    String[] clientTokens = requestedResource.substring(SSE_LISTEN_URL_PREFIX.length()).split(";");
+                    String[] clientTokens = requestedResource.substring(urlPrefix.length()).split(";");
                     String clientId = clientTokens[0];
                     
                     // If there's a second token it would be the jsessionid for 
@@ -241,7 +582,59 @@ public class Endpoint extends CrumbExclusion implements RootAction {
                     // so just stripping out the clientId part.
                     
                     clientId = URLDecoder.decode(clientId, "UTF-8");
-                    EventDispatcherFactory.start(clientId, httpServletRequest, httpServletResponse);
+
+                    // The initial subscriptions can be carried on the listen request itself.
+                    List<EventFilter> listenSubscriptions = Collections.emptyList();
+                    String subscribeParam = httpServletRequest.getParameter("subscribe");
+                    if (subscribeParam != null) {
+                        try {
+                            listenSubscriptions = ConfigurePayloadReader.readFilters(new StringReader(subscribeParam));
+                        } catch (IOException e) {
+                            httpServletResponse.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                            return;
+                        }
+                    }
+
+                    // Sessionless clients identify their dispatcher by stream token.
+                    StreamToken streamToken = null;
+                    String streamTokenParam = httpServletRequest.getParameter(StreamToken.PARAMETER);
+                    if (streamTokenParam != null) {
+                        streamToken = StreamToken.verify(streamTokenParam);
+                        if (streamToken == null || !streamToken.getClientId().equals(clientId)) {
+                            httpServletResponse.sendError(HttpServletResponse.SC_FORBIDDEN, "Invalid or expired stream token.");
+                            return;
+                        }
+                    }
+
+                    if (isPoll) {
+                        // Long-poll fallback, for when SSE streams are buffered.
+                        LongPollTransport.poll(clientId, streamToken, listenSubscriptions, httpServletRequest, httpServletResponse);
+                        return; // Do not allow this request on to Stapler
+                    }
+
+                    if (!ReconnectControl.tryListen()) {
+                        // Reconnect storm e.g. after a restart. Send an empty SSE stream with
+                        // a retry hint, so that the EventSource tries again a bit later.
+                        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+                        httpServletResponse.setContentType("text/event-stream");
+                        httpServletResponse.setCharacterEncoding("UTF-8");
+                        httpServletResponse.setHeader("Cache-Control", "no-cache");
+                        httpServletResponse.getWriter().write("retry: " + ReconnectControl.getRetryHint() + "\n\n");
+                        return;
+                    }
+
+                    try {
+                        if (streamToken != null) {
+                            EventDispatcherFactory.start(streamToken, httpServletRequest, httpServletResponse, listenSubscriptions);
+                        } else {
+                            EventDispatcherFactory.start(clientId, httpServletRequest, httpServletResponse, listenSubscriptions);
+                        }
+                    } catch (AdmissionControl.RejectedException e) {
+                        // Over an admission limit. Normally rejected on connect, but
+                        // the dispatcher may have been evicted since.
+                        httpServletResponse.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+                        httpServletResponse.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+                    }
                     return; // Do not allow this request on to Stapler
                 }
             }
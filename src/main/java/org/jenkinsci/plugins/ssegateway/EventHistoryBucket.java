@@ -0,0 +1,234 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A time bucket of stored channel events.
+ * <p>
+ * All events stored on a channel within the same time window land in the same
+ * bucket directory (named after the bucket's end time). Expiry then becomes a
+ * matter of dropping a whole bucket once its end time falls outside the expiry
+ * window, rather than checking the age of every stored event file.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryBucket {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( EventHistoryBucket.class.getName());
+
+    // An event file being written. Renamed to the event file once complete.
+    private static final String WRITE_FILE_SUFFIX = "_WRITE.json";
+
+    private final long end;
+    private final File dir;
+    private final boolean compressed;
+    // Index of the event UUIDs stored in this bucket, plus the same entries in store order
+    // (by position). Dropped along with the bucket, apart from events removed by removeOldest.
+    private final Map<String, Entry> events = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, Entry> eventOrder = new ConcurrentSkipListMap<>();
+    private final AtomicLong bytes = new AtomicLong();
+    private volatile boolean dirCreated = false;
+
+    EventHistoryBucket(@NonNull File channelDir, long end, boolean compressed) {
+        this.end = end;
+        this.dir = new File(channelDir, Long.toString(end));
+        this.compressed = compressed;
+    }
+
+    long getEnd() {
+        return end;
+    }
+
+    File getDir() throws IOException {
+        if (!dirCreated) {
+            if (!dir.exists() && !dir.mkdirs()) {
+                throw new IOException(String.format("Unexpected error creating event history bucket dir %s.", dir.getAbsolutePath()));
+            }
+            dirCreated = true;
+        }
+        return dir;
+    }
+
+    /**
+     * Are the events in this bucket compressed.
+     * @return {@code true} if the events in this bucket are stored
+     * compressed (see {@link EventHistoryCodec}), otherwise {@code false}.
+     */
+    boolean isCompressed() {
+        return compressed;
+    }
+
+    File getEventFile(@NonNull String eventUUID) throws IOException {
+        return new File(getDir(), eventUUID + (compressed ? ".json.z" : ".json"));
+    }
+
+    File getEventWriteFile(@NonNull String eventUUID) throws IOException {
+        return new File(getDir(), eventUUID + WRITE_FILE_SUFFIX);
+    }
+
+    void add(long position, @NonNull String eventUUID, long timestamp, long eventBytes) {
+        Entry entry = new Entry(position, eventUUID, timestamp, eventBytes);
+        events.put(eventUUID, entry);
+        eventOrder.put(position, entry);
+        bytes.addAndGet(eventBytes);
+    }
+
+    boolean contains(@NonNull String eventUUID) {
+        return events.containsKey(eventUUID);
+    }
+
+    /**
+     * Get the bucket entries after the specified position, in store order.
+     * @param afterPosition The position (exclusive).
+     * @return The entries.
+     */
+    Collection<Entry> getEntriesAfter(long afterPosition) {
+        return eventOrder.tailMap(afterPosition, false).values();
+    }
+
+    /**
+     * Remove (and delete from disk) the oldest event in the bucket.
+     * @return The removed event's entry, or {@code null} if the bucket is empty.
+     */
+    @CheckForNull Entry removeOldest() {
+        Map.Entry<Long, Entry> oldest = eventOrder.pollFirstEntry();
+        if (oldest == null) {
+            return null;
+        }
+        Entry entry = oldest.getValue();
+        events.remove(entry.eventUUID);
+        bytes.addAndGet(-entry.bytes);
+        try {
+            File eventFile = getEventFile(entry.eventUUID);
+            if (eventFile.exists() && !eventFile.delete()) {
+                LOGGER.warn("Error deleting file {}", eventFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            LOGGER.warn("Error deleting event {} from event history bucket dir {}", entry.eventUUID, dir.getAbsolutePath(), e);
+        }
+        return entry;
+    }
+
+    int size() {
+        return events.size();
+    }
+
+    long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * Delete the bucket from disk.
+     * @return The number of event files deleted.
+     */
+    int delete() {
+        return deleteBucketDir(dir);
+    }
+
+    /**
+     * Is the supplied name the name of an event file that is still being written.
+     * @param name The file name.
+     * @return {@code true} if the name is an in-flight event write file name, otherwise {@code false}.
+     */
+    static boolean isEventWriteFile(@NonNull String name) {
+        return name.endsWith(WRITE_FILE_SUFFIX);
+    }
+
+    /**
+     * Is the supplied name a bucket directory name.
+     * @param name The file name.
+     * @return {@code true} if the name is a bucket directory name, otherwise {@code false}.
+     */
+    static boolean isBucketName(@NonNull String name) {
+        if (name.isEmpty()) {
+            return false;
+        }
+        for (int i = 0; i < name.length(); i++) {
+            if (!Character.isDigit(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Delete a bucket directory, along with all the event files in it.
+     * <p>
+     * The event files are deleted without checking their age etc. The whole
+     * bucket is expired.
+     *
+     * @param bucketDir The bucket directory.
+     * @return The number of event files deleted (not counting in-flight event write files).
+     */
+    static int deleteBucketDir(@NonNull File bucketDir) {
+        int deleted = 0;
+        File[] eventFiles = bucketDir.listFiles();
+        if (eventFiles != null) {
+            for (File eventFile : eventFiles) {
+                if (eventFile.delete()) {
+                    if (!isEventWriteFile(eventFile.getName())) {
+                        deleted++;
+                    }
+                } else {
+                    LOGGER.warn("Error deleting file {}", eventFile.getAbsolutePath());
+                }
+            }
+        }
+        if (bucketDir.exists() && !bucketDir.delete()) {
+            LOGGER.warn("Error deleting event history bucket dir {}", bucketDir.getAbsolutePath());
+        }
+        return deleted;
+    }
+
+    /**
+     * A stored event's position (its store order on the channel), UUID, store time and size on disk.
+     */
+    static final class Entry {
+        final long position;
+        final String eventUUID;
+        final long timestamp;
+        final long bytes;
+
+        private Entry(long position, String eventUUID, long timestamp, long bytes) {
+            this.position = position;
+            this.eventUUID = eventUUID;
+            this.timestamp = timestamp;
+            this.bytes = bytes;
+        }
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The event history of a single channel.
+ * <p>
+ * Holds the channel's time buckets ({@link EventHistoryBucket}), along with running event
+ * and byte counts, which allow the channel's {@link EventHistoryRetention} caps to be
+ * enforced incrementally as events are stored (i.e. without having to look at the disk).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryChannel {
+
+    // Max number of event UUIDs remembered as dropped by the caps (see isDropped).
+    static final int MAX_TRACKED_DROPPED_EVENTS = 1000;
+
+    private final String name;
+    private final File dir;
+    private final ConcurrentNavigableMap<Long, EventHistoryBucket> buckets = new ConcurrentSkipListMap<>();
+    private final AtomicLong eventCount = new AtomicLong();
+    private final AtomicLong byteCount = new AtomicLong();
+    // Last assigned event position. Positions give the store order of the
+    // channel's events and are only meaningful within the current run.
+    private final AtomicLong lastPosition = new AtomicLong();
+    // UUIDs of the events most recently dropped by the caps, oldest first. Guarded by itself.
+    private final Set<String> droppedEvents = new LinkedHashSet<>();
+
+    EventHistoryChannel(@NonNull String name, @NonNull File dir) {
+        this.name = name;
+        this.dir = dir;
+    }
+
+    String getName() {
+        return name;
+    }
+
+    File getDir() {
+        return dir;
+    }
+
+    long getEventCount() {
+        return eventCount.get();
+    }
+
+    long getByteCount() {
+        return byteCount.get();
+    }
+
+    /**
+     * Get the bucket for events stored at the specified time, creating it if needed.
+     * @param timestamp The event time.
+     * @param bucketWidth The bucket width (millis).
+     * @param compressed Should events in the bucket be compressed, if the bucket needs to be created.
+     * @return The bucket.
+     */
+    EventHistoryBucket getBucket(long timestamp, long bucketWidth, boolean compressed) {
+        long bucketEnd = ((timestamp / bucketWidth) + 1) * bucketWidth;
+
+        EventHistoryBucket bucket = buckets.get(bucketEnd);
+        if (bucket == null) {
+            EventHistoryBucket newBucket = new EventHistoryBucket(dir, bucketEnd, compressed);
+            bucket = buckets.putIfAbsent(bucketEnd, newBucket);
+            if (bucket == null) {
+                bucket = newBucket;
+            }
+        }
+        return bucket;
+    }
+
+    /**
+     * Find the bucket containing the specified event.
+     * @param eventUUID The event UUID.
+     * @return The bucket, or {@code null} if the event is not in any of the channel's buckets.
+     */
+    @CheckForNull EventHistoryBucket findBucket(@NonNull String eventUUID) {
+        // Newest first. Retries are mostly for recent events.
+        for (EventHistoryBucket bucket : buckets.descendingMap().values()) {
+            if (bucket.contains(eventUUID)) {
+                return bucket;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the buckets that might hold events stored at or after the specified time, oldest first.
+     * @param sinceTime The time.
+     * @return The buckets.
+     */
+    Collection<EventHistoryBucket> getBucketsSince(long sinceTime) {
+        // A bucket's end time is after the time of all the events in it.
+        return buckets.tailMap(sinceTime, false).values();
+    }
+
+    long getLastPosition() {
+        return lastPosition.get();
+    }
+
+    /**
+     * Add a stored event to the channel's index.
+     * <p>
+     * Events can be stored concurrently (e.g. retry queue persistence). The position is
+     * assigned and the bucket entry added under the channel lock, so that entries are
+     * published in position order i.e. a replay that has seen position N can not miss
+     * an entry before N that is added later.
+     */
+    void onStored(@NonNull EventHistoryBucket bucket, @NonNull String eventUUID, long timestamp, long bytes) {
+        synchronized (this) {
+            bucket.add(lastPosition.incrementAndGet(), eventUUID, timestamp, bytes);
+        }
+        eventCount.incrementAndGet();
+        byteCount.addAndGet(bytes);
+    }
+
+    /**
+     * Remove a bucket from the channel.
+     * <p>
+     * Does not delete the bucket from disk.
+     *
+     * @param bucketEnd The bucket end time.
+     * @return The removed bucket, or {@code null} if there was no such bucket.
+     */
+    @CheckForNull EventHistoryBucket removeBucket(long bucketEnd) {
+        EventHistoryBucket bucket = buckets.remove(bucketEnd);
+        if (bucket != null) {
+            eventCount.addAndGet(-bucket.size());
+            byteCount.addAndGet(-bucket.getBytes());
+        }
+        return bucket;
+    }
+
+    /**
+     * Remove all buckets that end on or before the specified time.
+     * <p>
+     * Does not delete the buckets from disk.
+     *
+     * @param olderThan The expiry cutoff time.
+     */
+    void removeBuckets(long olderThan) {
+        for (Long bucketEnd : buckets.headMap(olderThan, true).keySet()) {
+            removeBucket(bucketEnd);
+        }
+    }
+
+    /**
+     * Enforce the retention policy caps on the channel by dropping (and deleting)
+     * the oldest buckets. The current (newest) bucket is never dropped. Once it is the
+     * only bucket left, its oldest events are dropped one at a time instead, so the
+     * caps are a bound on the channel no matter how wide the buckets are.
+     *
+     * @param policy The retention policy.
+     * @return The number of events dropped.
+     */
+    int enforceCaps(@NonNull EventHistoryRetention policy) {
+        int dropped = 0;
+        while (policy.isOverCap(eventCount.get(), byteCount.get())) {
+            Map.Entry<Long, EventHistoryBucket> oldest = buckets.firstEntry();
+            if (oldest == null) {
+                break;
+            }
+            if (buckets.size() > 1) {
+                EventHistoryBucket bucket = removeBucket(oldest.getKey());
+                if (bucket != null) {
+                    recordDropped(bucket.getEntriesAfter(0));
+                    dropped += bucket.delete();
+                }
+            } else {
+                EventHistoryBucket.Entry entry = oldest.getValue().removeOldest();
+                if (entry == null) {
+                    break;
+                }
+                eventCount.decrementAndGet();
+                byteCount.addAndGet(-entry.bytes);
+                recordDropped(Collections.singletonList(entry));
+                dropped++;
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * Was the specified event dropped from the channel by the caps (see {@link #enforceCaps}).
+     * <p>
+     * Only the last {@link #MAX_TRACKED_DROPPED_EVENTS} dropped events are remembered.
+     *
+     * @param eventUUID The event UUID.
+     * @return {@code true} if the event is known to have been dropped, otherwise {@code false}.
+     */
+    boolean isDropped(@NonNull String eventUUID) {
+        synchronized (droppedEvents) {
+            return droppedEvents.contains(eventUUID);
+        }
+    }
+
+    private void recordDropped(Collection<EventHistoryBucket.Entry> entries) {
+        synchronized (droppedEvents) {
+            for (EventHistoryBucket.Entry entry : entries) {
+                droppedEvents.add(entry.eventUUID);
+            }
+            Iterator<String> oldest = droppedEvents.iterator();
+            while (droppedEvents.size() > MAX_TRACKED_DROPPED_EVENTS) {
+                oldest.next();
+                oldest.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compressed event history encoding.
+ * <p>
+ * Stored events are tiny JSON documents that mostly consist of the same keys (and a lot of
+ * the same values) repeated in every event. Compressing them on their own gets very little,
+ * so we deflate them against a preset dictionary containing those common keys/values. There's
+ * a shared dictionary, plus channel specific dictionaries for the well known channels.
+ * <p>
+ * Encoded format: 1 byte format version, 1 byte dictionary Id, then the zlib deflated event JSON.
+ * The dictionaries are static (part of the code) so that events encoded before a restart can
+ * always be decoded after it. <strong>Never change an existing dictionary</strong>, add a new
+ * one with a new Id instead.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryCodec {
+
+    private static final byte FORMAT_VERSION = 1;
+
+    // The keys/values common to all events. Deflate favours matches that are closer to the
+    // data being compressed, so the most common strings go at the end of the dictionary.
+    private static final String COMMON_PREFIX = "{\"sse_subs_dispatcher_inst\":\"\",\"sse_subs_dispatcher\":\"jenkins-blueocean-core-js-\","
+            + "\"jenkins_object_id\":\"\",\"jenkins_object_name\":\"\",\"jenkins_instance_url\":\"http://\","
+            + "\"jenkins_instance_url\":\"https://\",\"jenkins_org\":\"jenkins\",\"jenkins_object_url\":\"job/\",";
+    private static final String COMMON_SUFFIX = "\"jenkins_event_timestamp\":\"\",\"jenkins_event_uuid\":\"\",\"jenkins_channel\":\"";
+
+    private EventHistoryCodec() {
+    }
+
+    static byte[] encode(@NonNull String channelName, @NonNull String eventJSON) {
+        Dictionary dictionary = Dictionary.forChannel(channelName);
+        byte[] input = eventJSON.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(input.length / 2 + 16);
+        // One per event, and always ended, so the native zlib state is not left to the finalizer.
+        Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
+
+        output.write(FORMAT_VERSION);
+        output.write(dictionary.id);
+        try {
+            deflater.setDictionary(dictionary.bytes);
+            deflater.setInput(input);
+            deflater.finish();
+
+            byte[] buffer = new byte[1024];
+            while (!deflater.finished()) {
+                int length = deflater.deflate(buffer);
+                output.write(buffer, 0, length);
+            }
+        } finally {
+            deflater.end();
+        }
+
+        return output.toByteArray();
+    }
+
+    static String decode(@NonNull byte[] encoded) throws IOException {
+        if (encoded.length < 2 || encoded[0] != FORMAT_VERSION) {
+            throw new IOException("Unknown event history encoding format.");
+        }
+
+        Dictionary dictionary = Dictionary.forId(encoded[1]);
+        ByteArrayOutputStream output = new ByteArrayOutputStream(encoded.length * 4);
+        Inflater inflater = new Inflater();
+
+        try {
+            inflater.setInput(encoded, 2, encoded.length - 2);
+
+            byte[] buffer = new byte[1024];
+            while (!inflater.finished()) {
+                int length = inflater.inflate(buffer);
+                if (length == 0) {
+                    if (inflater.needsDictionary()) {
+                        inflater.setDictionary(dictionary.bytes);
+                    } else if (inflater.needsInput()) {
+                        throw new IOException("Truncated event history entry.");
+                    }
+                }
+                output.write(buffer, 0, length);
+            }
+        } catch (DataFormatException | IllegalArgumentException e) {
+            throw new IOException("Invalid event history entry.", e);
+        } finally {
+            inflater.end();
+        }
+
+        return new String(output.toByteArray(), StandardCharsets.UTF_8);
+    }
+
+    private enum Dictionary {
+        COMMON(0, ""),
+        JOB(1, "{\"job_ismultibranch\":\"false\",\"job_multibranch_indexing_status\":\"\",\"job_multibranch_indexing_result\":\"\","
+                + "\"job_run_queueId\":\"\",\"job_run_status\":\"SUCCESS\",\"job_run_status\":\"FAILURE\",\"job_run_status\":\"UNSTABLE\","
+                + "\"job_run_status\":\"ABORTED\",\"job_run_status\":\"QUEUED\",\"job_run_status\":\"ALLOCATED\","
+                + "\"jenkins_object_type\":\"hudson.model.FreeStyleProject\",\"jenkins_object_type\":\"hudson.model.FreeStyleBuild\","
+                + "\"jenkins_object_type\":\"org.jenkinsci.plugins.workflow.job.WorkflowJob\","
+                + "\"jenkins_object_type\":\"org.jenkinsci.plugins.workflow.job.WorkflowRun\","
+                + "\"jenkins_event\":\"job_crud_created\",\"jenkins_event\":\"job_crud_deleted\",\"jenkins_event\":\"job_crud_renamed\","
+                + "\"jenkins_event\":\"job_run_queue_enter\",\"jenkins_event\":\"job_run_queue_buildable\","
+                + "\"jenkins_event\":\"job_run_queue_left\",\"jenkins_event\":\"job_run_queue_blocked\","
+                + "\"jenkins_event\":\"job_run_paused\",\"jenkins_event\":\"job_run_unpaused\","
+                + "\"jenkins_event\":\"job_run_started\",\"jenkins_event\":\"job_run_ended\",\"job_name\":\"\","),
+        PIPELINE(2, "{\"pipeline_step_is_paused\":\"false\",\"pipeline_step_stage_id\":\"\",\"pipeline_step_stage_name\":\"\","
+                + "\"pipeline_step_flownode_id\":\"\",\"pipeline_step_name\":\"\",\"pipeline_step_id\":\"\",\"pipeline_run_id\":\"\","
+                + "\"pipeline_context\":\"\",\"pipeline_job_name\":\"\","
+                + "\"jenkins_object_type\":\"org.jenkinsci.plugins.workflow.job.WorkflowRun\","
+                + "\"jenkins_event\":\"pipeline_block_start\",\"jenkins_event\":\"pipeline_block_end\","
+                + "\"jenkins_event\":\"pipeline_start\",\"jenkins_event\":\"pipeline_end\",\"jenkins_event\":\"pipeline_step\",");
+
+        private final byte id;
+        private final byte[] bytes;
+
+        Dictionary(int id, String channelSpecific) {
+            this.id = (byte) id;
+            this.bytes = (COMMON_PREFIX + channelSpecific + COMMON_SUFFIX).getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static Dictionary forChannel(String channelName) {
+            if ("job".equals(channelName)) {
+                return JOB;
+            } else if ("pipeline".equals(channelName)) {
+                return PIPELINE;
+            }
+            return COMMON;
+        }
+
+        private static Dictionary forId(byte id) throws IOException {
+            for (Dictionary dictionary : values()) {
+                if (dictionary.id == id) {
+                    return dictionary;
+                }
+            }
+            throw new IOException("Unknown event history dictionary Id " + id + ".");
+        }
+    }
+}
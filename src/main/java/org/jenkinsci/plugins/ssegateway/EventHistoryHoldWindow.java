@@ -0,0 +1,165 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In memory hold window for recently delivered channel events.
+ * <p>
+ * Used by the {@link EventHistoryStore} when running with lazy persistence. Events are
+ * held here for a short time after delivery and only written to disk if some dispatcher
+ * failed to deliver the event and queued it for retry (see {@link #pin(String)}). Events
+ * that nobody missed are simply dropped from the window.
+ * <p>
+ * {@link #hold} and {@link #pin} are atomic per event UUID, so an event is persisted
+ * exactly once no matter how a pin and the event landing in the window interleave.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryHoldWindow {
+
+    private final long holdMillis;
+    private final int maxEvents;
+    private final Map<String, HeldEvent> events = new ConcurrentHashMap<>();
+    private final Queue<HeldEvent> eventOrder = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    EventHistoryHoldWindow(long holdMillis, int maxEvents) {
+        this.holdMillis = holdMillis;
+        this.maxEvents = maxEvents;
+    }
+
+    /**
+     * Hold an event.
+     * @param eventUUID The event UUID.
+     * @param eventJSON The event JSON.
+     */
+    void hold(@NonNull String eventUUID, @NonNull String eventJSON) {
+        long now = System.currentTimeMillis();
+        HeldEvent heldEvent = new HeldEvent(eventUUID, eventJSON, now);
+
+        events.compute(eventUUID, (uuid, previous) -> {
+            // Pinned before it landed in the window i.e. already persisted.
+            heldEvent.pinned = (previous != null && previous.pinned);
+            return heldEvent;
+        });
+        add(heldEvent);
+        dropExpired(now);
+    }
+
+    /**
+     * Pin an event i.e. mark it as needing to be persisted.
+     * <p>
+     * The event is pinned even if it is not in the window. It may not have landed yet,
+     * or it may already have been dropped. Either way, the caller persists it.
+     *
+     * @param eventUUID The event UUID.
+     * @return {@code true} if the event was not already pinned i.e. the caller should
+     * persist it now, otherwise {@code false}.
+     */
+    boolean pin(@NonNull String eventUUID) {
+        boolean[] pinned = {false};
+        HeldEvent heldEvent = events.compute(eventUUID, (uuid, current) -> {
+            if (current == null) {
+                // No event JSON. Remembers the pin for the hold window period.
+                current = new HeldEvent(uuid, null, System.currentTimeMillis());
+            }
+            if (!current.pinned) {
+                current.pinned = true;
+                pinned[0] = true;
+            }
+            return current;
+        });
+        if (pinned[0] && heldEvent.eventJSON == null) {
+            add(heldEvent);
+        }
+        return pinned[0];
+    }
+
+    @CheckForNull String get(@NonNull String eventUUID) {
+        HeldEvent heldEvent = events.get(eventUUID);
+        if (heldEvent != null) {
+            return heldEvent.eventJSON;
+        }
+        return null;
+    }
+
+    int size() {
+        return size.get();
+    }
+
+    void clear() {
+        events.clear();
+        eventOrder.clear();
+        size.set(0);
+    }
+
+    /**
+     * Drop events that are outside the hold window, or over the max window size.
+     * @param now The current time.
+     */
+    void expire(long now) {
+        dropExpired(now);
+    }
+
+    private void add(HeldEvent heldEvent) {
+        eventOrder.add(heldEvent);
+        size.incrementAndGet();
+    }
+
+    private void dropExpired(long now) {
+        long olderThan = now - holdMillis;
+        HeldEvent oldest = eventOrder.peek();
+        while (oldest != null && (oldest.timestamp < olderThan || size.get() > maxEvents)) {
+            HeldEvent dropped = eventOrder.poll();
+            if (dropped != null) {
+                events.remove(dropped.eventUUID, dropped);
+                size.decrementAndGet();
+            }
+            oldest = eventOrder.peek();
+        }
+    }
+
+    private static final class HeldEvent {
+        private final String eventUUID;
+        private final String eventJSON;
+        private final long timestamp;
+        // Only accessed inside events.compute i.e. under the map's lock for the UUID.
+        private boolean pinned = false;
+
+        private HeldEvent(String eventUUID, String eventJSON, long timestamp) {
+            this.eventUUID = eventUUID;
+            this.eventJSON = eventJSON;
+            this.timestamp = timestamp;
+        }
+    }
+}
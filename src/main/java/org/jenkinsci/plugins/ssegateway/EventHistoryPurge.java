@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.sf.json.JSONObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Startup purge of event history left behind by a previous run.
+ * <p>
+ * None of the event history from a previous run is any use after a restart (the
+ * dispatchers that might have retried those events are gone), but there can be a
+ * lot of it e.g. after a crash. Rather than have the first expiry run walk all of
+ * it, the previous history root is renamed aside (a single, O(1) rename) before the
+ * {@link EventHistoryStore} is pointed at a fresh, empty history root. The renamed
+ * directory is then deleted on a low priority background thread.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryPurge {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( EventHistoryPurge.class.getName());
+
+    private static final String PURGE_DIR_INFIX = ".purge-";
+    private static final long PROGRESS_LOG_INTERVAL = TimeUnit.SECONDS.toMillis(10);
+
+    private static volatile Thread purgeThread;
+    // Guarded by the class monitor. Cleared by the purge thread only once it has found
+    // no purge dirs left while holding the monitor, so start can never miss a purge dir.
+    private static boolean purging = false;
+    private static final AtomicLong purgedFileCount = new AtomicLong();
+    private static volatile long purgeStartTime = 0;
+    private static volatile long purgeEndTime = 0;
+
+    private EventHistoryPurge() {
+    }
+
+    /**
+     * Move the history in the supplied history root aside and start purging it
+     * (along with anything left behind by an earlier, incomplete purge) in the background.
+     * <p>
+     * The history root itself is left in place if it can not be renamed, in which case
+     * the normal history expiry will clean it up.
+     *
+     * @param historyRoot The history root.
+     */
+    static synchronized void start(@NonNull File historyRoot) {
+        File parentDir = historyRoot.getAbsoluteFile().getParentFile();
+        if (parentDir == null) {
+            return;
+        }
+
+        String[] historyFiles = historyRoot.list();
+        if (historyFiles != null && historyFiles.length > 0) {
+            File purgeDir = new File(parentDir, historyRoot.getName() + PURGE_DIR_INFIX + System.currentTimeMillis());
+            if (historyRoot.renameTo(purgeDir)) {
+                LOGGER.info("Moved previous SSE event history to {}. Purging in the background.", purgeDir.getAbsolutePath());
+            } else {
+                LOGGER.warn("Unable to move previous SSE event history aside to {}. It will be expired instead.", purgeDir.getAbsolutePath());
+            }
+        }
+
+        String purgeDirPrefix = historyRoot.getName() + PURGE_DIR_INFIX;
+        if (listPurgeDirs(parentDir, purgeDirPrefix).length == 0) {
+            return;
+        }
+        if (purging) {
+            // Already purging. It lists the purge dirs again before finishing,
+            // so will pick up the new purge dir.
+            return;
+        }
+
+        purging = true;
+        purgeThread = new Thread(() -> purge(parentDir, purgeDirPrefix), "EventHistoryPurge.start");
+        purgeThread.setPriority(Thread.MIN_PRIORITY);
+        purgeThread.setDaemon(true);
+        purgeThread.start();
+    }
+
+    /**
+     * Wait for the background purge to complete.
+     * @param timeoutMillis The max time to wait.
+     * @return {@code true} if the purge is complete, otherwise {@code false}.
+     */
+    static boolean awaitCompletion(long timeoutMillis) throws InterruptedException {
+        Thread thread;
+        synchronized (EventHistoryPurge.class) {
+            thread = purgeThread;
+        }
+        if (thread != null) {
+            thread.join(timeoutMillis);
+            return !thread.isAlive();
+        }
+        return true;
+    }
+
+    /**
+     * Get purge progress metrics.
+     * @return Purge progress metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        Thread thread = purgeThread;
+        stats.put("running", (thread != null && thread.isAlive()));
+        stats.put("purgedFiles", purgedFileCount.get());
+        stats.put("startTime", purgeStartTime);
+        stats.put("endTime", purgeEndTime);
+        return stats;
+    }
+
+    private static File[] listPurgeDirs(File parentDir, String purgeDirPrefix) {
+        File[] purgeDirs = parentDir.listFiles((dir, name) -> name.startsWith(purgeDirPrefix));
+        if (purgeDirs == null) {
+            return new File[0];
+        }
+        return purgeDirs;
+    }
+
+    private static void purge(File parentDir, String purgeDirPrefix) {
+        purgeStartTime = System.currentTimeMillis();
+        purgeEndTime = 0;
+        try {
+            File[] purgeDirs = listPurgeDirs(parentDir, purgeDirPrefix);
+            while (purgeDirs.length > 0) {
+                boolean purgedAll = true;
+                for (File purgeDir : purgeDirs) {
+                    try {
+                        deleteTree(purgeDir.toPath());
+                    } catch (IOException e) {
+                        LOGGER.warn("Error purging previous SSE event history from " + purgeDir.getAbsolutePath() + ".", e);
+                        purgedAll = false;
+                    }
+                }
+                if (!purgedAll) {
+                    // Don't spin on something we can't delete. Next startup can try again.
+                    return;
+                }
+                synchronized (EventHistoryPurge.class) {
+                    // Under the monitor, so that a concurrent start either sees us still
+                    // purging (and we pick up its purge dir here), or starts a new purge.
+                    purgeDirs = listPurgeDirs(parentDir, purgeDirPrefix);
+                    if (purgeDirs.length == 0) {
+                        purging = false;
+                    }
+                }
+            }
+        } finally {
+            synchronized (EventHistoryPurge.class) {
+                // e.g. gave up on a purge dir. Unless a new purge has already been started.
+                if (purgeThread == Thread.currentThread()) {
+                    purging = false;
+                }
+            }
+            purgeEndTime = System.currentTimeMillis();
+            LOGGER.info("Purged {} files of previous SSE event history in {}ms.", purgedFileCount.get(), purgeEndTime - purgeStartTime);
+        }
+    }
+
+    private static void deleteTree(Path root) throws IOException {
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            private long lastProgressLog = System.currentTimeMillis();
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.deleteIfExists(file);
+                purgedFileCount.incrementAndGet();
+
+                long now = System.currentTimeMillis();
+                if (now - lastProgressLog >= PROGRESS_LOG_INTERVAL) {
+                    LOGGER.info("Purging previous SSE event history. {} files purged so far.", purgedFileCount.get());
+                    lastProgressLog = now;
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                if (e != null) {
+                    throw e;
+                }
+                Files.deleteIfExists(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
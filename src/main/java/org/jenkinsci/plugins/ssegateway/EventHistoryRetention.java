@@ -0,0 +1,119 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Channel event history retention policy.
+ * <p>
+ * Events are retained for {@link #getExpiresAfter()} millis, subject to the channel not going
+ * over {@link #getMaxEvents()} events or {@link #getMaxBytes()} bytes (a cap of zero or less means
+ * no cap). Note that caps are enforced at {@link EventHistoryBucket} granularity i.e. the oldest
+ * buckets are dropped until the channel is back under its caps, but the current bucket is never
+ * dropped. An expiry of zero means that no history is retained for the channel at all.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class EventHistoryRetention {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( EventHistoryRetention.class.getName());
+
+    private final long expiresAfter;
+    private final long maxEvents;
+    private final long maxBytes;
+
+    EventHistoryRetention(long expiresAfter, long maxEvents, long maxBytes) {
+        this.expiresAfter = expiresAfter;
+        this.maxEvents = maxEvents;
+        this.maxBytes = maxBytes;
+    }
+
+    long getExpiresAfter() {
+        return expiresAfter;
+    }
+
+    long getMaxEvents() {
+        return maxEvents;
+    }
+
+    long getMaxBytes() {
+        return maxBytes;
+    }
+
+    boolean isEnabled() {
+        return expiresAfter > 0;
+    }
+
+    boolean isOverCap(long events, long bytes) {
+        return (maxEvents > 0 && events > maxEvents) || (maxBytes > 0 && bytes > maxBytes);
+    }
+
+    /**
+     * Parse per channel retention policies.
+     * <p>
+     * Format: comma separated list of <code>channel:expiresAfterSeconds[:maxEvents[:maxBytes]]</code>
+     * e.g. <code>job:300:5000:10485760,pipeline:0</code>.
+     *
+     * @param spec The retention policies spec.
+     * @param defaultPolicy The default policy, used for caps that are not specified.
+     * @return The channel retention policies, keyed by channel name.
+     */
+    static Map<String, EventHistoryRetention> parse(@CheckForNull String spec, @NonNull EventHistoryRetention defaultPolicy) {
+        Map<String, EventHistoryRetention> policies = new HashMap<>();
+
+        if (spec == null || spec.trim().isEmpty()) {
+            return policies;
+        }
+
+        for (String channelSpec : spec.split(",")) {
+            String[] tokens = channelSpec.trim().split(":");
+            if (tokens.length < 2 || tokens.length > 4 || tokens[0].isEmpty()) {
+                LOGGER.warn("Invalid event history retention policy '{}'. Ignoring.", channelSpec);
+                continue;
+            }
+            try {
+                long expiresAfter = Long.parseLong(tokens[1].trim()) * 1000;
+                long maxEvents = (tokens.length > 2 ? Long.parseLong(tokens[2].trim()) : defaultPolicy.maxEvents);
+                long maxBytes = (tokens.length > 3 ? Long.parseLong(tokens[3].trim()) : defaultPolicy.maxBytes);
+                policies.put(tokens[0].trim(), new EventHistoryRetention(expiresAfter, maxEvents, maxBytes));
+            } catch (NumberFormatException e) {
+                LOGGER.warn("Invalid event history retention policy '{}'. Ignoring.", channelSpec);
+            }
+        }
+
+        return policies;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("expiresAfter=%d, maxEvents=%d, maxBytes=%d", expiresAfter, maxEvents, maxBytes);
+    }
+}
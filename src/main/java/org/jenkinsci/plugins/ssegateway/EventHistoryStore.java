@@ -25,21 +25,26 @@ package org.jenkinsci.plugins.ssegateway;
 
 import java.io.File;
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.nio.file.Paths;
+import java.nio.charset.StandardCharsets;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.NavigableMap;
+import java.util.TreeMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.util.stream.StreamSupport;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 import hudson.security.ACL;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
 import org.apache.commons.io.FileUtils;
 import org.jenkinsci.plugins.pubsub.ChannelSubscriber;
 import org.jenkinsci.plugins.pubsub.Message;
@@ -55,6 +60,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * Currently stores event history in files on disk, purging them
  * as they go "stale" (after they expire).
+ * <p>
+ * Events are stored in time buckets ({@link EventHistoryBucket}) i.e. one directory per
+ * channel, per time window. Expiring events is then just a matter of dropping whole
+ * buckets, which keeps the cost of the cleanup flat no matter how many events
+ * are being retained.
  * 
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
@@ -63,13 +73,63 @@ public final class EventHistoryStore {
 
     private static final Logger LOGGER = LoggerFactory.getLogger( EventHistoryStore.class.getName());
     
+    // The number of time buckets in a channel's expiry window. Events are never left
+    // lying around for more than 1 bucket width (expiresAfter / BUCKETS_PER_EXPIRY_WINDOW)
+    // past their expiration.
+    private static final int BUCKETS_PER_EXPIRY_WINDOW = 6;
+
+    // Lazy persistence i.e. only persist events that some dispatcher failed to deliver
+    // and queued for retry. All other events are just held in memory for a short time
+    // (the hold window) after delivery and then dropped.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ boolean LAZY_PERSISTENCE = Boolean.getBoolean(EventHistoryStore.class.getName() + ".LAZY_PERSISTENCE");
+    // set the lazy persistence hold window - default 10 sec - 10000 msec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long LAZY_PERSISTENCE_HOLD_WINDOW = Integer.getInteger(EventHistoryStore.class.getName() + ".LAZY_PERSISTENCE_HOLD_WINDOW", 10) * 1000;
+    // set the max number of events in the lazy persistence hold window - default 10000
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int LAZY_PERSISTENCE_HOLD_MAX_EVENTS = Integer.getInteger(EventHistoryStore.class.getName() + ".LAZY_PERSISTENCE_HOLD_MAX_EVENTS", 10000);
+    // Store events compressed (see EventHistoryCodec) - default false
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ boolean COMPRESSION = Boolean.getBoolean(EventHistoryStore.class.getName() + ".COMPRESSION");
+    // set how long a channel must go without subscribers before its state is reclaimed - default 5 min - 300 sec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long CHANNEL_IDLE_GRACE_PERIOD = Integer.getInteger(EventHistoryStore.class.getName() + ".CHANNEL_IDLE_GRACE_PERIOD", 300) * 1000;
+
+    private static final String RECLAIM_DIR_INFIX = ".reclaim-";
+
     private static File historyRoot;
-    private static long expiresAfter = (1000 * 60); // default of 1 minutes
-    private static Map<String, File> channelDirs = new ConcurrentHashMap<>();
-    private static Timer autoExpireTimer;
+    // Default retention policy: expiry default of 1 minute, no event count or size caps.
+    private static EventHistoryRetention defaultRetention = new EventHistoryRetention(
+            Integer.getInteger(EventHistoryStore.class.getName() + ".EXPIRES_AFTER", 60) * 1000L,
+            Long.getLong(EventHistoryStore.class.getName() + ".MAX_EVENTS", 0),
+            Long.getLong(EventHistoryStore.class.getName() + ".MAX_BYTES", 0));
+    // Per channel retention policies. See EventHistoryRetention.parse for the format.
+    private static final Map<String, EventHistoryRetention> channelRetention = new ConcurrentHashMap<>(
+            EventHistoryRetention.parse(System.getProperty(EventHistoryStore.class.getName() + ".RETENTION"), defaultRetention));
+    private static ScheduledFuture<?> autoExpireTask;
+    private static volatile EventHistoryHoldWindow holdWindow;
     
+    // Channel subscriber counts. Only ever updated through compute, which makes the count, the
+    // channel's logger, its idle marking and its reclaim atomic per channel, without a global lock.
     private static final Map<String, AtomicInteger> channelSubsCounters = new ConcurrentHashMap<>();
     private static final Map<String, EventHistoryLogger> channelLoggers = new ConcurrentHashMap<>();
+    private static final Map<String, EventHistoryChannel> channels = new ConcurrentHashMap<>();
+    // Channels with no subscribers, along with the time they went idle.
+    private static final Map<String, Long> idleChannels = new ConcurrentHashMap<>();
+    private static final AtomicLong reclaimedChannelCount = new AtomicLong();
+
+    // Expiry metrics.
+    private static final AtomicBoolean expiryRunning = new AtomicBoolean(false);
+    private static final AtomicLong expiredBucketCount = new AtomicLong();
+    private static final AtomicLong expiredEventCount = new AtomicLong();
+    private static final AtomicLong cappedEventCount = new AtomicLong();
+    private static final AtomicLong storedEventCount = new AtomicLong();
+    private static final AtomicLong storedEventBytes = new AtomicLong();
+    private static final AtomicLong storedEventRawBytes = new AtomicLong();
+    private static volatile long lastExpiryLag = 0;
+    private static volatile long maxExpiryLag = 0;
+    private static volatile long lastExpiryRunTime = 0;
 
     @SuppressFBWarnings(value = "LI_LAZY_INIT_STATIC", 
                 justification = "internal class (marked @Restricted NoExternalUse + package private methods) - need it this way for testing.")
@@ -87,6 +147,8 @@ public final class EventHistoryStore {
             }
         }
         EventHistoryStore.historyRoot = historyRoot;
+        channels.clear();
+        holdWindow = null;
     }
 
     static void setExpiryMillis(long expiresAfterMillis) {
@@ -95,7 +157,28 @@ public final class EventHistoryStore {
             LOGGER.warn("Invalid attempt to change expiresAfterMillis. Ignoring.");
             return;
         }
-        EventHistoryStore.expiresAfter = expiresAfterMillis;
+        EventHistoryStore.defaultRetention = new EventHistoryRetention(expiresAfterMillis, defaultRetention.getMaxEvents(), defaultRetention.getMaxBytes());
+    }
+
+    static void setRetention(@NonNull String channelName, @CheckForNull EventHistoryRetention retention) {
+        // In a non-test mode, channel retention policies can only be set via system property.
+        if (!Util.isTestEnv()) {
+            LOGGER.warn("Invalid attempt to change channel retention policy. Ignoring.");
+            return;
+        }
+        if (retention != null) {
+            channelRetention.put(channelName, retention);
+        } else {
+            channelRetention.remove(channelName);
+        }
+    }
+
+    static @NonNull EventHistoryRetention getRetention(@NonNull String channelName) {
+        EventHistoryRetention retention = channelRetention.get(channelName);
+        if (retention != null) {
+            return retention;
+        }
+        return defaultRetention;
     }
 
     /**
@@ -110,15 +193,26 @@ public final class EventHistoryStore {
      * having no synchronization in/around this method. Note we give the files a temp name while
      * writing and then rename to the final name once writing is complete, protecting the retry
      * queues in the {@link EventDispatcher} instances from ever reading an event file (on retry)
-     * before that event file is fully written to disk.
+     * before that event file is fully written to disk. The event is also only added to the
+     * bucket index once the rename is complete, and is given its replay position at that
+     * point (see {@link EventHistoryChannel#onStored}).
      * 
      * @param message The message instance to store.
      */
     static void store(@NonNull Message message) {
+        store(message.getChannelName(), message.getEventUUID(), message.toJSON());
+    }
+
+    private static void store(@NonNull String channelName, @NonNull String eventUUID, @NonNull String eventJSON) {
+        EventHistoryRetention retention = getRetention(channelName);
+        if (!retention.isEnabled()) {
+            return;
+        }
+
         try {
-            String channelName = message.getChannelName();
-            String eventUUID = message.getEventUUID();
-            File channelDir = getChannelDir(channelName);
+            long timestamp = System.currentTimeMillis();
+            EventHistoryChannel channel = getChannel(channelName);
+            EventHistoryBucket bucket = channel.getBucket(timestamp, getBucketWidth(retention), COMPRESSION);
             
             // We write to an intermediate file and then do a rename. This should
             // lower the chances of an EventDispacther (or other) attempting to
@@ -126,48 +220,329 @@ public final class EventHistoryStore {
             // considerably "more" (depending on the platform) atomic on most platforms.
             // See threading notes above in the method javadoc.
             
-            File writeEventFile = new File(channelDir, eventUUID + "_WRITE.json");
-            File readEventFile = new File(channelDir, eventUUID + ".json");
-        
-            FileUtils.writeStringToFile(writeEventFile, message.toJSON(), "UTF-8");
+            File writeEventFile = bucket.getEventWriteFile(eventUUID);
+            File readEventFile = bucket.getEventFile(eventUUID);
+            byte[] eventBytes = eventJSON.getBytes(StandardCharsets.UTF_8);
+
+            storedEventRawBytes.addAndGet(eventBytes.length);
+            if (bucket.isCompressed()) {
+                eventBytes = EventHistoryCodec.encode(channelName, eventJSON);
+            }
+
+            FileUtils.writeByteArrayToFile(writeEventFile, eventBytes);
             if (!writeEventFile.renameTo(readEventFile)) {
                 LOGGER.warn("Unexpected error renaming EventHistoryStore entry file to {}.", readEventFile.getAbsolutePath());
+            } else {
+                channel.onStored(bucket, eventUUID, timestamp, eventBytes.length);
+                storedEventCount.incrementAndGet();
+                storedEventBytes.addAndGet(eventBytes.length);
+
+                // Enforce the channel's caps incrementally i.e. as we store.
+                int dropped = channel.enforceCaps(retention);
+                if (dropped > 0) {
+                    cappedEventCount.addAndGet(dropped);
+                }
             }
         } catch (Exception e) {
             LOGGER.error("Unexpected error persisting EventHistoryStore entry file.", e);
         }
     }
     
+    /**
+     * Hold a message in the lazy persistence hold window.
+     * <p>
+     * The message is only persisted if a dispatcher pins it (see {@link #onRetryQueued(Message)}).
+     *
+     * @param message The message instance to hold.
+     */
+    static void hold(@NonNull Message message) {
+        if (!getRetention(message.getChannelName()).isEnabled()) {
+            return;
+        }
+        getHoldWindow().hold(message.getEventUUID(), message.toJSON());
+    }
+
+    /**
+     * Notify the store that a dispatcher failed to deliver a message and has queued
+     * it for retry.
+     * <p>
+     * Only relevant when running with lazy persistence, in which case this will cause
+     * the message to be persisted (once), allowing the dispatcher to read it back from
+     * the store on retry after the message has left the hold window. The message is
+     * persisted from the supplied (retry queued) message, so it does not matter if it
+     * has not landed in the hold window yet, or has already been dropped from it.
+     *
+     * @param message The message queued for retry.
+     */
+    public static void onRetryQueued(@NonNull Message message) {
+        if (!LAZY_PERSISTENCE || historyRoot == null) {
+            return;
+        }
+        String eventUUID = message.getEventUUID();
+        if (eventUUID == null) {
+            return;
+        }
+        if (getHoldWindow().pin(eventUUID)) {
+            store(message);
+        }
+    }
+
+    private static EventHistoryHoldWindow getHoldWindow() {
+        EventHistoryHoldWindow window = holdWindow;
+        if (window == null) {
+            synchronized (EventHistoryStore.class) {
+                window = holdWindow;
+                if (window == null) {
+                    window = new EventHistoryHoldWindow(LAZY_PERSISTENCE_HOLD_WINDOW, LAZY_PERSISTENCE_HOLD_MAX_EVENTS);
+                    holdWindow = window;
+                }
+            }
+        }
+        return window;
+    }
+
     public static @CheckForNull String getChannelEvent(@NonNull String channelName, @NonNull String eventUUID) throws IOException {
-        File channelDir = getChannelDir(channelName);
-        File eventFile = new File(channelDir, eventUUID + ".json");
-        
-        if (eventFile.exists()) {
-            return FileUtils.readFileToString(eventFile, "UTF-8");
-        } else {
+        EventHistoryHoldWindow window = holdWindow;
+        if (window != null) {
+            String eventJSON = window.get(eventUUID);
+            if (eventJSON != null) {
+                return eventJSON;
+            }
+        }
+
+        EventHistoryChannel channel = channels.get(channelName);
+        if (channel == null) {
+            return null;
+        }
+        EventHistoryBucket bucket = channel.findBucket(eventUUID);
+        if (bucket == null) {
+            return null;
+        }
+
+        return readEvent(bucket, eventUUID);
+    }
+
+    /**
+     * Replay the events stored on a channel, in store order.
+     * <p>
+     * Events are identified by their position on the channel. Positions increase in store
+     * order and are only meaningful within the current run (history does not survive a
+     * restart). Use the position of the last event replayed as the {@code afterPosition}
+     * for the next page.
+     * <p>
+     * Note that only events persisted to the store are replayed. With lazy persistence,
+     * that is only the events that some dispatcher queued for retry.
+     *
+     * @param channelName The channel name.
+     * @param afterPosition Replay events after this position. Use {@code 0} to replay from the oldest event.
+     * @param sinceTime Replay events stored at or after this time. Use {@code 0} for no time constraint.
+     * @param limit The max number of events to replay.
+     * @param callback The callback to replay the events to.
+     * @return {@code true} if there are more events to replay after the last one replayed,
+     * otherwise {@code false}.
+     * @throws IOException Error reading the events.
+     */
+    public static boolean replayChannelEvents(@NonNull String channelName, long afterPosition, long sinceTime, int limit, @NonNull ReplayCallback callback) throws IOException {
+        EventHistoryChannel channel = channels.get(channelName);
+        if (channel == null) {
+            return false;
+        }
+
+        // Merge the buckets by position. Events stored concurrently either side of a bucket
+        // boundary can get their positions in the opposite order to their buckets. Only
+        // need the first limit + 1 (to know if there are more).
+        NavigableMap<Long, Map.Entry<EventHistoryBucket, EventHistoryBucket.Entry>> page = new TreeMap<>();
+        for (EventHistoryBucket bucket : channel.getBucketsSince(sinceTime)) {
+            for (EventHistoryBucket.Entry entry : bucket.getEntriesAfter(afterPosition)) {
+                if (page.size() > limit && entry.position > page.lastKey()) {
+                    break;
+                }
+                if (entry.timestamp < sinceTime) {
+                    continue;
+                }
+                page.put(entry.position, new AbstractMap.SimpleImmutableEntry<>(bucket, entry));
+                if (page.size() > limit + 1) {
+                    page.pollLastEntry();
+                }
+            }
+        }
+
+        int replayed = 0;
+        for (Map.Entry<EventHistoryBucket, EventHistoryBucket.Entry> bucketEntry : page.values()) {
+            if (replayed >= limit) {
+                return true;
+            }
+            EventHistoryBucket.Entry entry = bucketEntry.getValue();
+            String eventJSON = readEvent(bucketEntry.getKey(), entry.eventUUID);
+            if (eventJSON != null) {
+                callback.onEvent(entry.position, entry.timestamp, eventJSON);
+                replayed++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the events stored on a channel, in store order.
+     * <p>
+     * See {@link #replayChannelEvents(String, long, long, int, ReplayCallback)}.
+     *
+     * @param channelName The channel name.
+     * @param afterPosition Get events after this position.
+     * @param sinceTime Get events stored at or after this time.
+     * @param limit The max number of events to get.
+     * @return The event JSON, in store order.
+     * @throws IOException Error reading the events.
+     */
+    public static @NonNull List<String> getChannelEvents(@NonNull String channelName, long afterPosition, long sinceTime, int limit) throws IOException {
+        List<String> events = new ArrayList<>();
+        replayChannelEvents(channelName, afterPosition, sinceTime, limit, (position, timestamp, eventJSON) -> events.add(eventJSON));
+        return events;
+    }
+
+    private static @CheckForNull String readEvent(@NonNull EventHistoryBucket bucket, @NonNull String eventUUID) throws IOException {
+        File eventFile = bucket.getEventFile(eventUUID);
+        if (!eventFile.exists()) {
+            // Expired or capped since we found it.
             return null;
         }
+        if (bucket.isCompressed()) {
+            return EventHistoryCodec.decode(FileUtils.readFileToByteArray(eventFile));
+        }
+        return FileUtils.readFileToString(eventFile, "UTF-8");
+    }
+
+    /**
+     * Was the specified event dropped from the channel's history by its retention caps
+     * (see {@link EventHistoryRetention}) i.e. it is never going to be found in the store.
+     * <p>
+     * Only the channel's most recently dropped events are remembered
+     * (see {@link EventHistoryChannel#MAX_TRACKED_DROPPED_EVENTS}).
+     *
+     * @param channelName The channel name.
+     * @param eventUUID The event UUID.
+     * @return {@code true} if the event is known to have been dropped, otherwise {@code false}.
+     */
+    public static boolean isEventDropped(@NonNull String channelName, @NonNull String eventUUID) {
+        EventHistoryChannel channel = channels.get(channelName);
+        return (channel != null && channel.isDropped(eventUUID));
     }
     
     public static void onChannelSubscribe(@NonNull String channelName) {
         if (historyRoot == null) {
             return;
         }
-        getChannelSubsCounter(channelName).incrementAndGet();
+        EventHistoryLogger[] newLogger = new EventHistoryLogger[1];
+        channelSubsCounters.compute(channelName, (name, counter) -> {
+            if (counter == null) {
+                counter = new AtomicInteger(0);
+                newLogger[0] = new EventHistoryLogger(counter);
+                channelLoggers.put(name, newLogger[0]);
+            }
+            counter.incrementAndGet();
+            idleChannels.remove(name);
+            return counter;
+        });
+        if (newLogger[0] != null) {
+            PubsubBus.getBus().subscribe(channelName, newLogger[0], ACL.SYSTEM, null);
+            if (channelLoggers.get(channelName) != newLogger[0]) {
+                // Reclaimed before we got to subscribe it.
+                PubsubBus.getBus().unsubscribe(channelName, newLogger[0]);
+            }
+        }
     }
     
     public static void onChannelUnsubscribe(@NonNull String channelName) {
         if (historyRoot == null) {
             return;
         }
-        getChannelSubsCounter(channelName).decrementAndGet();
+        // Nothing to do if never subscribed, or already reclaimed.
+        channelSubsCounters.computeIfPresent(channelName, (name, counter) -> {
+            if (counter.decrementAndGet() <= 0) {
+                counter.set(0);
+                idleChannels.put(name, System.currentTimeMillis());
+            }
+            return counter;
+        });
+    }
+
+    /**
+     * Reclaim the state of channels that have had no subscribers for longer than
+     * the grace period.
+     * <p>
+     * The channel's {@link EventHistoryLogger} is unsubscribed from the bus and its
+     * subscriber counter, bucket index and history directory are all dropped. They
+     * get created again if the channel gets a new subscriber. The grace period is never
+     * shorter than the channel's expiry window, so any history that might still be needed
+     * by dispatcher retry queues will have expired anyway.
+     * <p>
+     * The channel state is dropped atomically with respect to {@link #onChannelSubscribe(String)}.
+     * The bus unsubscribe and the history directory delete are done afterwards, outside of any lock.
+     * The history directory is first renamed aside, so a channel that gets a new subscriber
+     * straight away never has its new history deleted.
+     *
+     * @param now The current time.
+     */
+    static void reclaimIdleChannels(long now) {
+        for (Map.Entry<String, Long> idleChannel : idleChannels.entrySet()) {
+            String channelName = idleChannel.getKey();
+            long idleSince = idleChannel.getValue();
+            long gracePeriod = Math.max(CHANNEL_IDLE_GRACE_PERIOD, getRetention(channelName).getExpiresAfter());
+
+            if (now - idleSince >= gracePeriod) {
+                reclaimIdleChannel(channelName, idleSince);
+            }
+        }
+    }
+
+    private static void reclaimIdleChannel(@NonNull String channelName, long idleSince) {
+        boolean[] reclaimed = new boolean[1];
+        EventHistoryLogger[] logger = new EventHistoryLogger[1];
+        File[] channelDir = new File[1];
+
+        channelSubsCounters.compute(channelName, (name, counter) -> {
+            if (!idleChannels.remove(name, idleSince) || (counter != null && counter.get() > 0)) {
+                // Subscribed to again since (and maybe idle again, since a later time).
+                return counter;
+            }
+            reclaimed[0] = true;
+            logger[0] = channelLoggers.remove(name);
+            EventHistoryChannel channel = channels.remove(name);
+            if (channel != null && channel.getDir().exists()) {
+                File reclaimDir = new File(channel.getDir().getParentFile(), name + RECLAIM_DIR_INFIX + System.nanoTime());
+                channelDir[0] = (channel.getDir().renameTo(reclaimDir) ? reclaimDir : channel.getDir());
+            }
+            return null;
+        });
+        if (!reclaimed[0]) {
+            return;
+        }
+
+        if (logger[0] != null) {
+            PubsubBus.getBus().unsubscribe(channelName, logger[0]);
+        }
+        if (channelDir[0] != null) {
+            FileUtils.deleteQuietly(channelDir[0]);
+        }
+        reclaimedChannelCount.incrementAndGet();
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug("Reclaimed event history state for idle channel '{}'.", channelName);
+        }
     }
     
     static long getChannelEventCount(@NonNull String channelName) throws IOException {
-        Path dirPath = Paths.get(getChannelDir(channelName).toURI());
-        try (DirectoryStream<Path> dirStream = Files.newDirectoryStream(dirPath)) {
-            return StreamSupport.stream( dirStream.spliterator(), false ).count();
+        long count = 0;
+        File[] bucketDirs = getChannelDir(channelName).listFiles();
+        if (bucketDirs != null) {
+            for (File bucketDir : bucketDirs) {
+                // Not counting in-flight writes. They're not events (yet).
+                String[] eventFiles = bucketDir.list((dir, name) -> !EventHistoryBucket.isEventWriteFile(name));
+                if (eventFiles != null) {
+                    count += eventFiles.length;
+                }
+            }
         }
+        return count;
     }
 
     /**
@@ -175,29 +550,132 @@ public final class EventHistoryStore {
      */
     static void deleteAllHistory() throws IOException {
         assertHistoryRootSet();
-        for(File directory : channelDirs.values()){
-            deleteAllFilesInDir(directory, Long.MAX_VALUE);
+        channels.clear();
+        File[] channelDirs = EventHistoryStore.historyRoot.listFiles();
+        if (channelDirs != null) {
+            for (File channelDir : channelDirs) {
+                FileUtils.deleteQuietly(channelDir);
+            }
         }
-        deleteAllFilesInDir(EventHistoryStore.historyRoot, Long.MAX_VALUE);
     }
 
     /**
      * Delete all stale history (events that have expired).
+     * <p>
+     * Drops all buckets (in memory and on disk) whose end time is outside the
+     * expiry window. The age of the individual event files is never checked.
      */
     static void deleteStaleHistory() throws IOException {
         assertHistoryRootSet();
-        long olderThan = System.currentTimeMillis() - expiresAfter;
-        deleteAllFilesInDir(EventHistoryStore.historyRoot, olderThan);
+        if (!expiryRunning.compareAndSet(false, true)) {
+            // Another expiry run is in progress. No need to block on it.
+            return;
+        }
+        try {
+            long now = System.currentTimeMillis();
+            int bucketsDropped = 0;
+
+            // Only the channel and bucket directories are listed here, never
+            // the event files themselves (other than when deleting them).
+            File[] channelDirs = EventHistoryStore.historyRoot.listFiles();
+            if (channelDirs != null) {
+                for (File channelDir : channelDirs) {
+                    EventHistoryChannel channel = channels.get(channelDir.getName());
+                    long olderThan = now - getRetention(channelDir.getName()).getExpiresAfter();
+                    File[] bucketDirs = channelDir.listFiles();
+                    if (bucketDirs == null) {
+                        continue;
+                    }
+                    for (File bucketDir : bucketDirs) {
+                        String bucketName = bucketDir.getName();
+                        if (EventHistoryBucket.isBucketName(bucketName)) {
+                            long bucketEnd = Long.parseLong(bucketName);
+                            if (bucketEnd <= olderThan) {
+                                if (channel != null) {
+                                    channel.removeBucket(bucketEnd);
+                                }
+                                expiredEventCount.addAndGet(EventHistoryBucket.deleteBucketDir(bucketDir));
+                                recordExpiryLag(olderThan - bucketEnd);
+                                bucketsDropped++;
+                            }
+                        } else if (bucketDir.isFile() && bucketDir.lastModified() < olderThan) {
+                            // An event file from before event history was bucketed.
+                            if (!bucketDir.delete()) {
+                                LOGGER.warn("Error deleting file {}", bucketDir.getAbsolutePath());
+                            }
+                        }
+                    }
+                }
+            }
+
+            // Drop in memory buckets whose directory was never created/has gone.
+            for (EventHistoryChannel channel : channels.values()) {
+                channel.removeBuckets(now - getRetention(channel.getName()).getExpiresAfter());
+            }
+
+            EventHistoryHoldWindow window = holdWindow;
+            if (window != null) {
+                window.expire(now);
+            }
+
+            expiredBucketCount.addAndGet(bucketsDropped);
+            lastExpiryRunTime = System.currentTimeMillis() - now;
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("Expired {} event history buckets in {}ms. Expiry lag {}ms (max {}ms).", bucketsDropped, lastExpiryRunTime, lastExpiryLag, maxExpiryLag);
+            }
+        } finally {
+            expiryRunning.set(false);
+        }
     }
 
-    static File getChannelDir(@NonNull String channelName) throws IOException {
-        assertHistoryRootSet();
+    private static void recordExpiryLag(long lag) {
+        lastExpiryLag = lag;
+        if (lag > maxExpiryLag) {
+            maxExpiryLag = lag;
+        }
+    }
 
-        File channelDir = channelDirs.get(channelName);
-        if (channelDir == null) {
-            channelDir = new File(historyRoot, channelName);
-            channelDirs.put(channelName, channelDir);
+    /**
+     * Get event history metrics.
+     * @return Event history metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        EventHistoryHoldWindow window = holdWindow;
+        stats.put("storedEvents", storedEventCount.get());
+        stats.put("storedEventBytes", storedEventBytes.get());
+        stats.put("storedEventRawBytes", storedEventRawBytes.get());
+        stats.put("compression", COMPRESSION);
+        stats.put("lazyPersistence", LAZY_PERSISTENCE);
+        stats.put("heldEvents", (window != null ? window.size() : 0));
+        stats.put("expiresAfter", defaultRetention.getExpiresAfter());
+        stats.put("bucketWidth", getBucketWidth(defaultRetention));
+        stats.put("expiredBuckets", expiredBucketCount.get());
+        stats.put("expiredEvents", expiredEventCount.get());
+        stats.put("cappedEvents", cappedEventCount.get());
+        stats.put("lastExpiryLag", lastExpiryLag);
+        stats.put("maxExpiryLag", maxExpiryLag);
+        stats.put("lastExpiryRunTime", lastExpiryRunTime);
+
+        JSONObject channelStats = new JSONObject();
+        for (EventHistoryChannel channel : channels.values()) {
+            JSONObject channelStat = new JSONObject();
+            channelStat.put("events", channel.getEventCount());
+            channelStat.put("bytes", channel.getByteCount());
+            channelStat.put("retention", getRetention(channel.getName()).toString());
+            channelStats.put(channel.getName(), channelStat);
         }
+        stats.put("channels", channelStats);
+        stats.put("subscribedChannels", channelLoggers.size());
+        stats.put("idleChannels", idleChannels.size());
+        stats.put("reclaimedChannels", reclaimedChannelCount.get());
+        stats.put("startupPurge", EventHistoryPurge.getStats());
+
+        return stats;
+    }
+
+    static File getChannelDir(@NonNull String channelName) throws IOException {
+        File channelDir = getChannel(channelName).getDir();
         if (!channelDir.exists()) {
             if (!channelDir.mkdirs()) {
                 throw new IOException(String.format("Unexpected error creating channel event log dir %s.", channelDir.getAbsolutePath()));
@@ -206,25 +684,36 @@ public final class EventHistoryStore {
         
         return channelDir;
     }
-    
-    private synchronized static void deleteAllFilesInDir(File dir, long olderThan) throws IOException {
-        Path dirPath = Paths.get(dir.toURI());
-        if(!Files.exists(dirPath)){
-            return;
+
+    private static EventHistoryChannel getChannel(@NonNull String channelName) {
+        assertHistoryRootSet();
+        return channels.computeIfAbsent(channelName, k -> new EventHistoryChannel(k, new File(historyRoot, k)));
+    }
+
+    private static long getBucketWidth(@NonNull EventHistoryRetention retention) {
+        return Math.max(1, retention.getExpiresAfter() / BUCKETS_PER_EXPIRY_WINDOW);
+    }
+
+    /**
+     * The expiry task period is the smallest bucket width of all the retention
+     * policies i.e. the channel with the shortest expiry drives the schedule.
+     */
+    private static long getExpiryTaskPeriod() {
+        long period = Long.MAX_VALUE;
+        if (defaultRetention.isEnabled()) {
+            period = getBucketWidth(defaultRetention);
         }
-        try (final DirectoryStream<Path> dirStream = Files.newDirectoryStream(dirPath)) {
-            for (Path entry : dirStream) {
-                File file = entry.toFile();
-                if (file.isDirectory()) {
-                    deleteAllFilesInDir(file, olderThan);
-                }
-                if (file.lastModified() < olderThan) {
-                    if (!file.delete()) {
-                        LOGGER.warn("Error deleting file {}", file.getAbsolutePath());
-                    }
-                }
+        for (EventHistoryRetention retention : channelRetention.values()) {
+            if (retention.isEnabled()) {
+                period = Math.min(period, getBucketWidth(retention));
             }
         }
+        if (period == Long.MAX_VALUE) {
+            // History disabled on all channels. Still need to clean up history
+            // left over from before the restart, but no rush.
+            period = 10000;
+        }
+        return period;
     }
 
     private static void assertHistoryRootSet() {
@@ -234,30 +723,28 @@ public final class EventHistoryStore {
     }
     
     public synchronized static void enableAutoDeleteOnExpire() {
-        if (autoExpireTimer != null) {
+        if (autoExpireTask != null) {
             LOGGER.warn("AutoExpireTimer was already enable.");
             return;
         }
         
-        // Set up a timer that runs the DeleteStaleHistoryTask 3 times over the
-        // duration of the event expiration timeout. By default this will be
-        // every 10 seconds i.e. in that case, events are never left lying around
-        // for more than 10 seconds past their expiration.
-        long taskSchedule = expiresAfter / 3;
-        autoExpireTimer = new Timer("EventHistoryStore.autoExpireTimer");
-        autoExpireTimer.schedule(new DeleteStaleHistoryTask(), taskSchedule, taskSchedule);
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> disableAutoDeleteOnExpire(), "EventHistoryStore.disableAutoExpireTimer"));
+        // Schedule the DeleteStaleHistoryTask to run once per bucket width on the
+        // shared Jenkins timer. By default this will be every 10 seconds i.e. in that
+        // case, events are never left lying around for more than 10 seconds past
+        // their expiration.
+        long taskSchedule = getExpiryTaskPeriod();
+        autoExpireTask = Timer.get().scheduleWithFixedDelay(new DeleteStaleHistoryTask(), taskSchedule, taskSchedule, TimeUnit.MILLISECONDS);
     }
     
     public synchronized static void disableAutoDeleteOnExpire() {
-        if (autoExpireTimer == null) {
+        if (autoExpireTask == null) {
             return;
         }
-        autoExpireTimer.cancel();
-        autoExpireTimer = null;
+        autoExpireTask.cancel(false);
+        autoExpireTask = null;
     }
     
-    private static class DeleteStaleHistoryTask extends TimerTask {
+    private static class DeleteStaleHistoryTask implements Runnable {
         @Override
         public void run() {
             try {
@@ -265,31 +752,27 @@ public final class EventHistoryStore {
             } catch (Exception e) {
                 LOGGER.warn("Error deleting stale/expired events from EventHistoryStore.", e);
             }
+            try {
+                reclaimIdleChannels(System.currentTimeMillis());
+            } catch (Exception e) {
+                LOGGER.warn("Error reclaiming idle channel state in EventHistoryStore.", e);
+            }
         }
     }
     
-    private static AtomicInteger getChannelSubsCounter(@NonNull String channelName) {
-        AtomicInteger counter = channelSubsCounters.get(channelName);
-        if (counter == null) {
-            counter = newChannelSubsCounter(channelName);
-        }
-        return counter;
-    }
-
-    private static synchronized AtomicInteger newChannelSubsCounter(@NonNull String channelName) {
-        AtomicInteger counter = channelSubsCounters.get(channelName);
-        if (counter == null) {
-            counter = new AtomicInteger(0);
-            channelSubsCounters.put(channelName, counter);
-
-            EventHistoryLogger logger = channelLoggers.get(channelName);
-            if (logger == null) {
-                logger = new EventHistoryLogger(counter);
-                PubsubBus.getBus().subscribe(channelName, logger, ACL.SYSTEM, null);
-                channelLoggers.put(channelName, logger);
-            }
-        }
-        return counter;
+    /**
+     * Event history replay callback.
+     * See {@link #replayChannelEvents(String, long, long, int, ReplayCallback)}.
+     */
+    public interface ReplayCallback {
+        /**
+         * Replay an event.
+         * @param position The event position on the channel.
+         * @param timestamp The time the event was stored.
+         * @param eventJSON The event JSON.
+         * @throws IOException Error handling the event.
+         */
+        void onEvent(long position, long timestamp, @NonNull String eventJSON) throws IOException;
     }
 
     /**
@@ -303,8 +786,8 @@ public final class EventHistoryStore {
      * the actual message when doing the retry. So, one listener storing the events for
      * all the {@link EventDispatcher} instances.
      * <p>
-     * Note, we never remove these listeners even if the channel in question no
-     * longer has any active subscribers. There's no real point.
+     * These listeners are removed once the channel in question has had no active
+     * subscribers for a grace period (see {@link EventHistoryStore#reclaimIdleChannels(long)}).
      */
     private static class EventHistoryLogger implements ChannelSubscriber {
 
@@ -317,7 +800,11 @@ public final class EventHistoryStore {
         @Override
         public void onMessage(@NonNull Message message) {
             if (channelSubsCounter.get() > 0) {
-                store(message);
+                if (LAZY_PERSISTENCE) {
+                    hold(message);
+                } else {
+                    store(message);
+                }
             }
         }
     }
@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.EventStream;
+import org.jenkinsci.plugins.ssegateway.sse.ReconnectControl;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Long-poll transport.
+ * <p>
+ * For clients behind proxies that buffer <code>text/event-stream</code> responses. The client's
+ * poll request (<code>/sse-gateway/poll/&lt;clientId&gt;</code>) is parked until there are events
+ * for it, or until {@link #POLL_TIMEOUT}. The events buffered since the last poll are then sent in
+ * one response: <code>{"cursor": "..", "events": [{"event": .., "data": ..}, ..]}</code>.
+ * <p>
+ * The client sends the cursor from the last response on its next poll (the <code>cursor</code>
+ * parameter), which acknowledges the events in that response. Unacknowledged events are sent again
+ * i.e. a lost poll response does not lose events. It's the same dispatcher behind it (see
+ * {@link EventStream}), so configure and ping requests work as normal. If the buffer fills up, or the
+ * client stops polling, the transport is detached from the dispatcher and its events go to the
+ * dispatcher retry queue until the client polls again. The dispatcher keeps the detached transport
+ * (see {@link EventDispatcher#getLastStream()}), so that its unacknowledged events are still sent on
+ * the next poll. If another stream takes over, the unacknowledged events go back to the dispatcher retry
+ * queue. The dispatcher drops the transport when it is disposed of.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class LongPollTransport implements EventStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( LongPollTransport.class.getName());
+
+    // set how long a poll request is parked waiting for events - default 25 sec (under typical proxy idle timeouts)
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int POLL_TIMEOUT = Integer.getInteger(LongPollTransport.class.getName() + ".POLL_TIMEOUT", 25);
+    // set the max number of unacknowledged events buffered for a client, before they go to the retry queue - default 1000
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_BUFFERED = Integer.getInteger(LongPollTransport.class.getName() + ".MAX_BUFFERED", 1000);
+
+    private static final AtomicInteger parkedPollCount = new AtomicInteger();
+    private static final AtomicLong pollCount = new AtomicLong();
+
+    private final String clientId;
+    // Cursors from a different transport (e.g. before a restart) acknowledge nothing.
+    private final String cursorPrefix = Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + ".";
+    private final Deque<Frame> buffer = new ArrayDeque<>();
+    private long nextSequence = 1;
+    private long polls = 0;
+    private AsyncContext parked;
+    private boolean closed = false;
+    volatile EventDispatcher dispatcher;
+
+    LongPollTransport(@NonNull String clientId) {
+        this.clientId = clientId;
+    }
+
+    /**
+     * Handle a poll request.
+     * @param clientId The dispatcher client Id.
+     * @param streamToken The client's (verified) stream token, or {@code null} if not sessionless.
+     * @param listenSubscriptions Subscriptions carried on the poll request. As for the listen request.
+     * @param request The poll request.
+     * @param response The poll response.
+     */
+    static void poll(@NonNull String clientId, @CheckForNull StreamToken streamToken, @NonNull List<EventFilter> listenSubscriptions,
+                     @NonNull HttpServletRequest request, @NonNull HttpServletResponse response) throws IOException {
+        pollCount.incrementAndGet();
+
+        EventDispatcher eventDispatcher;
+        if (streamToken != null) {
+            eventDispatcher = EventDispatcherFactory.getDispatcher(streamToken);
+        } else {
+            eventDispatcher = EventDispatcherFactory.getDispatcher(clientId, request.getSession());
+        }
+
+        // Kept by the dispatcher while detached (e.g. the buffer was full).
+        EventStream lastStream = (eventDispatcher != null ? eventDispatcher.getLastStream() : null);
+        LongPollTransport transport = (lastStream instanceof LongPollTransport ? (LongPollTransport) lastStream : null);
+        if (transport != null && transport.isClosed()) {
+            // Another stream took over since (e.g. the client reconnected over SSE).
+            transport = null;
+        }
+        if (transport != null) {
+            transport.acknowledge(request.getParameter("cursor"));
+            if (eventDispatcher.getConnectionState() == EventDispatcher.ConnectionState.CONNECTED) {
+                transport.park(request, response);
+                return;
+            }
+        }
+
+        // First poll, or the transport was detached. (Re)attach it. As
+        // for a listen request i.e. "open" event, retries etc.
+        if (!ReconnectControl.tryListen()) {
+            response.setHeader("Retry-After", Integer.toString(ReconnectControl.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many SSE listen requests. Retry later.");
+            return;
+        }
+        if (transport == null) {
+            transport = new LongPollTransport(clientId);
+        }
+        try {
+            if (streamToken != null) {
+                eventDispatcher = EventDispatcherFactory.start(streamToken, listenSubscriptions, transport);
+            } else {
+                eventDispatcher = EventDispatcherFactory.start(clientId, request.getSession(), listenSubscriptions, transport);
+            }
+        } catch (AdmissionControl.RejectedException e) {
+            response.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
+        transport.dispatcher = eventDispatcher;
+        transport.park(request, response);
+    }
+
+    /**
+     * Get long-poll metrics.
+     * @return Long-poll metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("polls", pollCount.get());
+        stats.put("parkedPolls", parkedPollCount.get());
+        return stats;
+    }
+
+    @Override
+    public boolean write(@NonNull EventDispatcher dispatcher, @CheckForNull String name, @CheckForNull String data) {
+        AsyncContext context;
+        List<Frame> frames;
+        synchronized (this) {
+            if (closed || buffer.size() >= MAX_BUFFERED) {
+                // The client is not keeping up. Detached, and the
+                // events go to the retry queue until it polls again.
+                return false;
+            }
+            buffer.add(new Frame(nextSequence++, name, data));
+            context = takeParked();
+            frames = (context != null ? new ArrayList<>(buffer) : null);
+        }
+        if (context != null) {
+            respond(context, frames);
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        AsyncContext context;
+        List<String> unacknowledged = new ArrayList<>();
+        synchronized (this) {
+            closed = true;
+            for (Frame frame : buffer) {
+                unacknowledged.add(frame.data);
+            }
+            buffer.clear();
+            context = takeParked();
+        }
+        if (context != null) {
+            // Let the client know, rather than leave it parked until the timeout.
+            respond(context, Collections.emptyList());
+        }
+        EventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher != null && !unacknowledged.isEmpty()) {
+            // Accepted by write, so the dispatcher thinks they were delivered. They
+            // might have been (just not acknowledged), but better twice than never.
+            eventDispatcher.requeueUndelivered(unacknowledged);
+        }
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    synchronized void acknowledge(@CheckForNull String cursor) {
+        if (cursor == null || !cursor.startsWith(cursorPrefix)) {
+            return;
+        }
+        long acknowledged;
+        try {
+            acknowledged = Long.parseLong(cursor.substring(cursorPrefix.length()));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        while (!buffer.isEmpty() && buffer.peekFirst().sequence <= acknowledged) {
+            buffer.removeFirst();
+        }
+    }
+
+    void park(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        AsyncContext previous;
+        List<Frame> frames = null;
+        synchronized (this) {
+            polls++;
+            // Only one poll at a time. An overlapping poll takes over.
+            previous = takeParked();
+            if (!buffer.isEmpty() || closed || !request.isAsyncSupported()) {
+                frames = new ArrayList<>(buffer);
+            } else {
+                AsyncContext context = request.startAsync(request, response);
+                context.setTimeout(TimeUnit.SECONDS.toMillis(POLL_TIMEOUT));
+                context.addListener(new PollListener());
+                parked = context;
+                parkedPollCount.incrementAndGet();
+            }
+        }
+        if (previous != null) {
+            respond(previous, Collections.emptyList());
+        }
+        if (frames != null) {
+            writeFrames(response, frames);
+            scheduleAbandonCheck();
+        }
+    }
+
+    private AsyncContext takeParked() {
+        AsyncContext context = parked;
+        if (context != null) {
+            parked = null;
+            parkedPollCount.decrementAndGet();
+        }
+        return context;
+    }
+
+    private void respond(AsyncContext context, List<Frame> frames) {
+        try {
+            writeFrames((HttpServletResponse) context.getResponse(), frames);
+        } catch (IOException | IllegalStateException e) {
+            // Client gone. The events are not acknowledged, so get sent again.
+            LOGGER.debug("Error responding to poll request from client " + clientId + ".", e);
+        } finally {
+            try {
+                context.complete();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Poll request already completed.", e);
+            }
+        }
+        scheduleAbandonCheck();
+    }
+
+    private void writeFrames(HttpServletResponse response, List<Frame> frames) throws IOException {
+        long lastSequence;
+        if (!frames.isEmpty()) {
+            lastSequence = frames.get(frames.size() - 1).sequence;
+        } else {
+            // Acknowledges nothing that's still buffered.
+            synchronized (this) {
+                lastSequence = (buffer.isEmpty() ? nextSequence : buffer.peekFirst().sequence) - 1;
+            }
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("application/json");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        PrintWriter writer = response.getWriter();
+        writer.write("{\"cursor\":");
+        writer.write(JSONUtils.quote(cursorPrefix + lastSequence));
+        writer.write(",\"events\":[");
+        for (int i = 0; i < frames.size(); i++) {
+            if (i > 0) {
+                writer.write(',');
+            }
+            writer.write(WebSocketTransport.toFrame(frames.get(i).name, frames.get(i).data));
+        }
+        writer.write("]}");
+        writer.flush();
+    }
+
+    private void scheduleAbandonCheck() {
+        // The client should poll again straight away. If it doesn't,
+        // detach so that the dispatcher can be retried/evicted as normal.
+        long pollsAtResponse;
+        synchronized (this) {
+            pollsAtResponse = polls;
+        }
+        Timer.get().schedule(() -> {
+            EventDispatcher eventDispatcher = dispatcher;
+            boolean abandoned;
+            synchronized (this) {
+                abandoned = (polls == pollsAtResponse && parked == null);
+            }
+            if (abandoned && eventDispatcher != null) {
+                LOGGER.debug("Client {} stopped polling. Detaching.", clientId);
+                eventDispatcher.detachStream(this);
+            }
+        }, POLL_TIMEOUT, TimeUnit.SECONDS);
+    }
+
+    private final class PollListener implements AsyncListener {
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // No events. Send the empty response, and the client polls again.
+            AsyncContext context;
+            List<Frame> frames;
+            synchronized (LongPollTransport.this) {
+                context = (parked == event.getAsyncContext() ? takeParked() : null);
+                frames = new ArrayList<>(buffer);
+            }
+            if (context != null) {
+                respond(context, frames);
+            }
+        }
+        @Override
+        public void onError(AsyncEvent event) {
+            synchronized (LongPollTransport.this) {
+                if (parked == event.getAsyncContext()) {
+                    takeParked();
+                }
+            }
+            scheduleAbandonCheck();
+        }
+        @Override
+        public void onComplete(AsyncEvent event) {
+            synchronized (LongPollTransport.this) {
+                if (parked == event.getAsyncContext()) {
+                    takeParked();
+                }
+            }
+        }
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    private static final class Frame {
+        private final long sequence;
+        private final String name;
+        private final String data;
+
+        private Frame(long sequence, String name, String data) {
+            this.sequence = sequence;
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,434 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.EventStream;
+import org.jenkinsci.plugins.ssegateway.sse.ReconnectControl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplexed listen stream.
+ * <p>
+ * A page with several clients (one per widget/bundle) would otherwise have a listen stream per
+ * client, using up the browser's per host connection limit and a servlet async context per client.
+ * Instead, the page opens one stream (<code>/sse-gateway/mux/&lt;muxId&gt;</code>) and clients join it
+ * with a POST to <code>/sse-gateway/muxJoin?muxId=..&amp;clientId=..</code>. Each client
+ * keeps its own dispatcher behind the stream (see {@link EventStream}) i.e. its own subscriptions and
+ * retry queue, and configure/ping requests work as normal. Every event on the stream is a <code>mux</code>
+ * event, tagged with the client: <code>{"client": "..", "event": "..", "data": ".."}</code>.
+ * <p>
+ * The mux streams are kept on the HTTP session, by muxId, so that the clients are reattached when
+ * the EventSource reconnects. Joining is idempotent, and the JavaScript client joins again every
+ * time the stream opens, so clients are not lost on a stream that the gateway no longer knows about
+ * (e.g. after a restart, or after the session expired or went over {@link #MAX_PER_SESSION}).
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class MuxStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( MuxStream.class.getName());
+
+    // set the max number of clients on a mux stream - default 32
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_CLIENTS = Integer.getInteger(MuxStream.class.getName() + ".MAX_CLIENTS", 32);
+    // set the max number of mux streams per HTTP session - default 16
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_PER_SESSION = Integer.getInteger(MuxStream.class.getName() + ".MAX_PER_SESSION", 16);
+
+    private static final String SESSION_KEY = MuxStream.class.getName();
+    // As for an SSE listen stream. See AsynchEventDispatcher.
+    private static final long TIMEOUT = (1000 * 30);
+
+    private static final AtomicInteger openStreamCount = new AtomicInteger();
+    private static final AtomicInteger memberCount = new AtomicInteger();
+
+    private final String muxId;
+    private final HttpSession session;
+    // The clients on the stream, kept after the stream ends (see above).
+    private final Set<String> clientIds = Collections.synchronizedSet(new LinkedHashSet<>());
+    private final Map<String, Member> members = new ConcurrentHashMap<>();
+    private AsyncContext context;
+    private PrintWriter writer;
+    private boolean ended = false;
+
+    private MuxStream(@NonNull String muxId, @NonNull HttpSession session) {
+        this.muxId = muxId;
+        this.session = session;
+    }
+
+    /**
+     * Open a mux stream.
+     * @param muxId The mux stream Id.
+     * @param request The listen request.
+     * @param response The listen response.
+     */
+    static void listen(@NonNull String muxId, @NonNull HttpServletRequest request, @NonNull HttpServletResponse response) throws IOException {
+        if (!request.isAsyncSupported()) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Multiplexed streams require async servlet support.");
+            return;
+        }
+        if (!ReconnectControl.tryListen()) {
+            // As for a listen request. Empty stream with a retry hint.
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType("text/event-stream");
+            response.setCharacterEncoding("UTF-8");
+            response.setHeader("Cache-Control", "no-cache");
+            response.getWriter().write("retry: " + ReconnectControl.getRetryHint() + "\n\n");
+            return;
+        }
+
+        HttpSession session = request.getSession();
+        MuxStream muxStream = new MuxStream(muxId, session);
+
+        MuxStream previous;
+        Map<String, MuxStream> muxStreams = getMuxStreams(session);
+        synchronized (muxStreams) {
+            previous = muxStreams.put(muxId, muxStream);
+            if (previous != null) {
+                // EventSource reconnect. Same clients.
+                muxStream.clientIds.addAll(previous.getClientIds());
+            } else if (muxStreams.size() > MAX_PER_SESSION) {
+                removeOne(muxStreams, muxId);
+            }
+        }
+        if (previous != null) {
+            previous.end();
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType("text/event-stream");
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+
+        AsyncContext asyncContext = request.startAsync(request, response);
+        asyncContext.setTimeout(TIMEOUT);
+        asyncContext.addListener(muxStream.new StreamListener());
+        synchronized (muxStream) {
+            muxStream.context = asyncContext;
+            muxStream.writer = response.getWriter();
+            // Spread the EventSource reconnects if the stream is dropped. Also flushes
+            // the headers, so the client knows the stream is open and clients can join.
+            muxStream.writer.write("retry: " + ReconnectControl.getRetryHint() + "\n\n");
+            muxStream.writer.flush();
+        }
+        openStreamCount.incrementAndGet();
+
+        for (String clientId : muxStream.getClientIds()) {
+            try {
+                muxStream.attach(clientId, Collections.emptyList());
+            } catch (AdmissionControl.RejectedException e) {
+                LOGGER.debug("Client {} not attached to mux stream {}. {}", clientId, muxId, e.getMessage());
+                muxStream.clientIds.remove(clientId);
+            }
+        }
+    }
+
+    /**
+     * Get a session's mux stream.
+     * @param session The HTTP session.
+     * @param muxId The mux stream Id.
+     * @return The mux stream, or {@code null} if there's no such mux stream.
+     */
+    static @CheckForNull MuxStream get(@NonNull HttpSession session, @NonNull String muxId) {
+        return getMuxStreams(session).get(muxId);
+    }
+
+    /**
+     * Get mux stream metrics.
+     * @return Mux stream metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("openStreams", openStreamCount.get());
+        stats.put("members", memberCount.get());
+        return stats;
+    }
+
+    /**
+     * Add a client to the mux stream. Does nothing if the client is already on the stream.
+     * @param clientId The dispatcher client Id.
+     * @param listenSubscriptions Subscriptions carried on the join request. As for the listen request.
+     * @return {@code true} if the client was added, or {@code false} if the mux stream is full.
+     * @throws AdmissionControl.RejectedException Over an admission limit.
+     */
+    boolean join(@NonNull String clientId, @NonNull List<EventFilter> listenSubscriptions) throws AdmissionControl.RejectedException {
+        synchronized (clientIds) {
+            if (!clientIds.contains(clientId) && clientIds.size() >= MAX_CLIENTS) {
+                return false;
+            }
+            clientIds.add(clientId);
+        }
+        if (members.containsKey(clientId)) {
+            // Already attached e.g. joined again after an EventSource reconnect.
+            return true;
+        }
+        try {
+            attach(clientId, listenSubscriptions);
+        } catch (AdmissionControl.RejectedException e) {
+            clientIds.remove(clientId);
+            throw e;
+        }
+        return true;
+    }
+
+    /**
+     * Remove a client from the mux stream. Its dispatcher is detached as
+     * for a closed listen stream i.e. events go to its retry queue.
+     * @param clientId The dispatcher client Id.
+     */
+    void leave(@NonNull String clientId) {
+        clientIds.remove(clientId);
+        Member member = members.remove(clientId);
+        if (member != null) {
+            memberCount.decrementAndGet();
+            member.detach();
+        }
+    }
+
+    private List<String> getClientIds() {
+        synchronized (clientIds) {
+            return new ArrayList<>(clientIds);
+        }
+    }
+
+    private void attach(String clientId, List<EventFilter> listenSubscriptions) {
+        synchronized (this) {
+            if (ended) {
+                // The client will be attached when the EventSource reconnects.
+                return;
+            }
+        }
+        Member member = new Member(clientId);
+        Member previous = members.put(clientId, member);
+        if (previous == null) {
+            memberCount.incrementAndGet();
+        }
+        // As for a listen request i.e. "open" event, retries etc.
+        member.dispatcher = EventDispatcherFactory.start(clientId, session, listenSubscriptions, member);
+    }
+
+    private synchronized boolean writeFrame(@NonNull String clientId, @CheckForNull String name, @CheckForNull String data) {
+        if (ended) {
+            return false;
+        }
+        writer.write(toFrame(clientId, name, data));
+        writer.flush();
+        return !writer.checkError();
+    }
+
+    static String toFrame(@NonNull String clientId, @CheckForNull String name, @CheckForNull String data) {
+        // One SSE event, and the data is one line (JSON escaped).
+        StringBuilder frame = new StringBuilder(64 + (data != null ? data.length() : 0));
+        frame.append("event: mux\ndata: {\"client\":").append(JSONUtils.quote(clientId));
+        if (name != null) {
+            frame.append(",\"event\":").append(JSONUtils.quote(name));
+        }
+        if (data != null) {
+            frame.append(",\"data\":").append(JSONUtils.quote(data));
+        }
+        return frame.append("}\n\n").toString();
+    }
+
+    /**
+     * End the stream (e.g. the async timeout). Every client's dispatcher is detached as for
+     * a closed listen stream, until the EventSource reconnects. The clients are kept.
+     */
+    private void end() {
+        AsyncContext completeContext;
+        synchronized (this) {
+            if (ended) {
+                return;
+            }
+            ended = true;
+            completeContext = context;
+            context = null;
+        }
+        openStreamCount.decrementAndGet();
+        for (Iterator<Member> it = members.values().iterator(); it.hasNext(); ) {
+            Member member = it.next();
+            it.remove();
+            memberCount.decrementAndGet();
+            member.detach();
+        }
+        if (completeContext != null) {
+            try {
+                completeContext.complete();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Mux stream already completed.", e);
+            }
+        }
+    }
+
+    private static Map<String, MuxStream> getMuxStreams(HttpSession session) {
+        synchronized (session) {
+            SessionMuxStreams sessionMuxStreams = (SessionMuxStreams) session.getAttribute(SESSION_KEY);
+            if (sessionMuxStreams == null) {
+                sessionMuxStreams = new SessionMuxStreams();
+                session.setAttribute(SESSION_KEY, sessionMuxStreams);
+            }
+            return sessionMuxStreams.get();
+        }
+    }
+
+    private static void removeOne(Map<String, MuxStream> muxStreams, String keepMuxId) {
+        // Preferably an ended stream i.e. a page that has gone away. Otherwise,
+        // the least recently used (the map is in access order).
+        String victim = null;
+        for (Map.Entry<String, MuxStream> entry : muxStreams.entrySet()) {
+            if (entry.getKey().equals(keepMuxId)) {
+                continue;
+            }
+            if (victim == null) {
+                victim = entry.getKey();
+            }
+            if (entry.getValue().isEnded()) {
+                victim = entry.getKey();
+                break;
+            }
+        }
+        if (victim != null) {
+            MuxStream removed = muxStreams.remove(victim);
+            if (removed != null) {
+                for (String clientId : removed.getClientIds()) {
+                    removed.leave(clientId);
+                }
+                removed.end();
+            }
+        }
+    }
+
+    private synchronized boolean isEnded() {
+        return ended;
+    }
+
+    private final class StreamListener implements AsyncListener {
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // The EventSource reconnects.
+            end();
+        }
+        @Override
+        public void onError(AsyncEvent event) {
+            end();
+        }
+        @Override
+        public void onComplete(AsyncEvent event) {
+            end();
+        }
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * The session's mux streams, least recently used first. Not persisted with the
+     * session (the streams are long gone).
+     */
+    private static final class SessionMuxStreams implements Serializable {
+        private static final long serialVersionUID = -1L;
+        private transient Map<String, MuxStream> muxStreams;
+
+        private synchronized Map<String, MuxStream> get() {
+            if (muxStreams == null) {
+                // Access order. Lock on the map when iterating.
+                muxStreams = Collections.synchronizedMap(new LinkedHashMap<>(16, 0.75f, true));
+            }
+            return muxStreams;
+        }
+    }
+
+    /**
+     * A client's view of the mux stream.
+     */
+    private final class Member implements EventStream {
+
+        private final String clientId;
+        private volatile EventDispatcher dispatcher;
+
+        private Member(String clientId) {
+            this.clientId = clientId;
+        }
+
+        @Override
+        public boolean write(@NonNull EventDispatcher dispatcher, @CheckForNull String name, @CheckForNull String data) {
+            this.dispatcher = dispatcher;
+            if (writeFrame(clientId, name, data)) {
+                return true;
+            }
+            if (!isEnded()) {
+                // The client went away. End it for all the clients.
+                LOGGER.debug("Mux stream {} disconnected.", muxId);
+                end();
+            }
+            return false;
+        }
+
+        @Override
+        public void close() {
+            // Another stream took over e.g. the client left the page's mux
+            // stream and is listening on its own (or another mux) stream.
+            if (members.remove(clientId, this)) {
+                memberCount.decrementAndGet();
+                clientIds.remove(clientId);
+            }
+        }
+
+        private void detach() {
+            EventDispatcher eventDispatcher = dispatcher;
+            if (eventDispatcher != null) {
+                eventDispatcher.detachStream(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.EventStream;
+import org.jenkinsci.plugins.ssegateway.sse.ReconnectControl;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.WeakHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Newline delimited JSON event stream, for headless/machine consumers (bots, CLI tools).
+ * <p>
+ * A plain, authenticated (e.g. API token) <code>GET /sse-gateway/stream?subscribe=[..]</code>. No
+ * connect request, no HTTP session (the dispatcher is identified by a {@link StreamToken}, issued on the
+ * stream) and no EventSource needed. The subscriptions are given inline, and it's the same
+ * dispatcher fan-out and filtering as for browser clients. One event per line:
+ * <code>{"id": 12, "event": "job", "data": {..}}</code>. The event data is written as is (it's
+ * JSON already) i.e. not escaped into a string as for a WebSocket frame, nor split into SSE
+ * <code>data:</code> lines.
+ * <p>
+ * The first line on every stream is a <code>token</code> event, with the stream token. To resume after
+ * a dropped connection, pass the latest stream token and the <code>id</code> of the last event received
+ * as the <code>cursor</code>. The token is bound to the user and can not be guessed from the client Id,
+ * so one consumer can not resume (or reset) another's stream. A token that is not valid (e.g. expired,
+ * or issued to another user) starts a new stream. On resume, the subscriptions are kept, and the last {@link #RESUME_BUFFER} events written
+ * to the client are replayed from after the cursor, followed by any events that missed the stream
+ * entirely (the dispatcher retry queue). A <code>gap</code> event says that some events could not be
+ * replayed.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class NdjsonTransport implements EventStream {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( NdjsonTransport.class.getName());
+
+    // set how long a stream is kept open before the client needs to reconnect (resume) - default 300 sec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int STREAM_TIMEOUT = Integer.getInteger(NdjsonTransport.class.getName() + ".STREAM_TIMEOUT", 300);
+    // set how often a heartbeat line is written on an idle stream - default 30 sec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int HEARTBEAT_INTERVAL = Integer.getInteger(NdjsonTransport.class.getName() + ".HEARTBEAT_INTERVAL", 30);
+    // set how many of the last events written to a client are kept for replay on resume - default 100
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int RESUME_BUFFER = Integer.getInteger(NdjsonTransport.class.getName() + ".RESUME_BUFFER", 100);
+
+    private static final String CONTENT_TYPE = "application/x-ndjson";
+    private static final String HEARTBEAT_LINE = "{\"event\":\"heartbeat\"}\n";
+
+    // The dispatcher's replay buffer, kept across streams (i.e. resumes).
+    private static final Map<EventDispatcher, ResumeBuffer> resumeBuffers = Collections.synchronizedMap(new WeakHashMap<>());
+    private static final AtomicInteger openStreamCount = new AtomicInteger();
+    private static final AtomicLong resumeCount = new AtomicLong();
+    private static final AtomicLong gapCount = new AtomicLong();
+
+    private final String clientId;
+    private final ResumeBuffer resumeBuffer;
+    private final PrintWriter writer;
+    private AsyncContext context;
+    private ScheduledFuture<?> heartbeat;
+    private boolean closed = false;
+    private volatile EventDispatcher dispatcher;
+
+    NdjsonTransport(@NonNull String clientId, @NonNull ResumeBuffer resumeBuffer, @NonNull PrintWriter writer) {
+        this.clientId = clientId;
+        this.resumeBuffer = resumeBuffer;
+        this.writer = writer;
+    }
+
+    /**
+     * Handle a stream request.
+     * @param request The stream request.
+     * @param response The stream response.
+     */
+    static void stream(@NonNull HttpServletRequest request, @NonNull HttpServletResponse response) throws IOException {
+        if (!Jenkins.get().hasPermission(Jenkins.READ)) {
+            response.sendError(HttpServletResponse.SC_FORBIDDEN, "Jenkins READ permission required.");
+            return;
+        }
+        if (!request.isAsyncSupported()) {
+            response.sendError(HttpServletResponse.SC_NOT_IMPLEMENTED, "Event streams require async servlet support.");
+            return;
+        }
+
+        List<EventFilter> subscriptions = Collections.emptyList();
+        String subscribeParam = request.getParameter("subscribe");
+        if (subscribeParam != null) {
+            try {
+                subscriptions = ConfigurePayloadReader.readFilters(new StringReader(subscribeParam));
+            } catch (IOException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+                return;
+            }
+        }
+
+        String streamTokenParam = request.getParameter(StreamToken.PARAMETER);
+        long cursor = -1;
+        String cursorParam = request.getParameter("cursor");
+        if (cursorParam != null) {
+            if (streamTokenParam == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "'cursor' parameter specified without '" + StreamToken.PARAMETER + "'.");
+                return;
+            }
+            try {
+                cursor = Long.parseLong(cursorParam);
+            } catch (NumberFormatException e) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Invalid 'cursor' parameter.");
+                return;
+            }
+        }
+
+        if (!ReconnectControl.tryListen()) {
+            // Reconnect storm e.g. after a restart. The client should back off and retry.
+            response.setHeader("Retry-After", Integer.toString(ReconnectControl.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Too many SSE listen requests. Retry later.");
+            return;
+        }
+
+        // Sessionless. Only resumed with a token issued to this user for the stream. Anything
+        // else (e.g. an expired token) is a new stream, with a new dispatcher.
+        StreamToken previousToken = (streamTokenParam != null ? StreamToken.verify(streamTokenParam) : null);
+        StreamToken streamToken;
+        EventDispatcher eventDispatcher = null;
+        if (previousToken != null) {
+            streamToken = StreamToken.issue(previousToken.getClientId(), previousToken);
+            eventDispatcher = EventDispatcherFactory.getDispatcher(streamToken);
+        } else {
+            streamToken = StreamToken.issue("ndjson-" + UUID.randomUUID());
+        }
+        String clientId = streamToken.getClientId();
+        boolean resume = (cursor >= 0 && eventDispatcher != null);
+        try {
+            if (eventDispatcher == null) {
+                eventDispatcher = EventDispatcherFactory.newDispatcher(streamToken);
+            }
+        } catch (AdmissionControl.RejectedException e) {
+            response.setHeader("Retry-After", Integer.toString(e.getRetryAfterSeconds()));
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, e.getMessage());
+            return;
+        }
+        if (!resume) {
+            // A new stream. The inline subscriptions replace any the client had.
+            eventDispatcher.unsubscribeAll();
+            eventDispatcher.setAwaitingListen();
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setContentType(CONTENT_TYPE);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Cache-Control", "no-cache");
+        // Stop nginx (and the like) buffering the stream.
+        response.setHeader("X-Accel-Buffering", "no");
+
+        ResumeBuffer resumeBuffer = resumeBuffers.computeIfAbsent(eventDispatcher, d -> new ResumeBuffer());
+        NdjsonTransport transport = new NdjsonTransport(clientId, resumeBuffer, response.getWriter());
+        AsyncContext context = request.startAsync(request, response);
+        context.setTimeout(TimeUnit.SECONDS.toMillis(STREAM_TIMEOUT));
+        context.addListener(transport.new StreamListener());
+        transport.context = context;
+        transport.dispatcher = eventDispatcher;
+        openStreamCount.incrementAndGet();
+
+        // The (renewed) token, for resuming.
+        transport.writeToken(streamToken);
+        if (resume) {
+            resumeCount.incrementAndGet();
+            transport.replay(cursor);
+        } else if (cursor >= 0) {
+            // The dispatcher is gone (e.g. evicted or a restart). Nothing to replay from.
+            transport.writeGap(cursor);
+        }
+
+        try {
+            EventDispatcherFactory.start(streamToken, subscriptions, transport);
+        } catch (AdmissionControl.RejectedException e) {
+            transport.close();
+            return;
+        }
+        transport.startHeartbeat();
+    }
+
+    /**
+     * Get NDJSON stream metrics.
+     * @return NDJSON stream metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("openStreams", openStreamCount.get());
+        stats.put("resumes", resumeCount.get());
+        stats.put("gaps", gapCount.get());
+        return stats;
+    }
+
+    @Override
+    public boolean write(@NonNull EventDispatcher dispatcher, @CheckForNull String name, @CheckForNull String data) {
+        boolean failed;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            writer.write(resumeBuffer.record(name, data));
+            writer.flush();
+            failed = writer.checkError();
+        }
+        if (failed) {
+            // The event is in the resume buffer, so it's replayed when the client
+            // resumes. The events after it go to the retry queue.
+            LOGGER.debug("NDJSON client {} disconnected.", clientId);
+            close();
+        }
+        return true;
+    }
+
+    @Override
+    public void close() {
+        AsyncContext completeContext;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            openStreamCount.decrementAndGet();
+            if (heartbeat != null) {
+                heartbeat.cancel(false);
+            }
+            completeContext = context;
+            context = null;
+        }
+        if (completeContext != null) {
+            try {
+                completeContext.complete();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("NDJSON stream already completed.", e);
+            }
+        }
+        EventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher != null) {
+            eventDispatcher.detachStream(this);
+        }
+    }
+
+    synchronized void replay(long cursor) {
+        List<String> lines = resumeBuffer.getLinesAfter(cursor);
+        if (lines == null) {
+            writeGap(cursor);
+            lines = resumeBuffer.getLinesAfter(resumeBuffer.getOldestSequence() - 1);
+        }
+        for (String line : lines) {
+            writer.write(line);
+        }
+        writer.flush();
+    }
+
+    synchronized void writeToken(@NonNull StreamToken streamToken) {
+        JSONObject token = new JSONObject();
+        token.put(StreamToken.PARAMETER, streamToken.getValue());
+        writer.write("{\"event\":\"token\",\"data\":" + token + "}\n");
+        writer.flush();
+    }
+
+    synchronized void writeGap(long cursor) {
+        gapCount.incrementAndGet();
+        JSONObject gap = new JSONObject();
+        gap.put("after", cursor);
+        writer.write("{\"event\":\"gap\",\"data\":" + gap + "}\n");
+        writer.flush();
+    }
+
+    private void startHeartbeat() {
+        synchronized (this) {
+            if (closed || HEARTBEAT_INTERVAL <= 0) {
+                return;
+            }
+            heartbeat = Timer.get().scheduleWithFixedDelay(this::writeHeartbeat, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.SECONDS);
+        }
+    }
+
+    private void writeHeartbeat() {
+        boolean failed;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            // Keeps proxies from timing out an idle stream, and finds dead clients.
+            writer.write(HEARTBEAT_LINE);
+            writer.flush();
+            failed = writer.checkError();
+        }
+        if (failed) {
+            LOGGER.debug("NDJSON client {} disconnected.", clientId);
+            close();
+        }
+    }
+
+    private final class StreamListener implements AsyncListener {
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // The client reconnects (resumes).
+            close();
+        }
+        @Override
+        public void onError(AsyncEvent event) {
+            close();
+        }
+        @Override
+        public void onComplete(AsyncEvent event) {
+            close();
+        }
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+        }
+    }
+
+    /**
+     * The last {@link #RESUME_BUFFER} lines written to a client, by sequence.
+     */
+    static final class ResumeBuffer {
+
+        private final Deque<Line> lines = new ArrayDeque<>();
+        private long nextSequence = 1;
+
+        synchronized String record(@CheckForNull String name, @CheckForNull String data) {
+            long sequence = nextSequence++;
+            StringBuilder line = new StringBuilder(32 + (data != null ? data.length() : 0));
+            line.append("{\"id\":").append(sequence);
+            if (name != null) {
+                line.append(",\"event\":").append(JSONUtils.quote(name));
+            }
+            if (data != null) {
+                line.append(",\"data\":");
+                if (isJSON(data)) {
+                    // Written as is. No escaping.
+                    line.append(data);
+                } else {
+                    line.append(JSONUtils.quote(data));
+                }
+            }
+            String lineString = line.append("}\n").toString();
+
+            lines.add(new Line(sequence, lineString));
+            while (lines.size() > Math.max(RESUME_BUFFER, 0)) {
+                lines.removeFirst();
+            }
+            return lineString;
+        }
+
+        /**
+         * Get the lines after the cursor.
+         * @param cursor The sequence of the last line the client received.
+         * @return The lines after the cursor, or {@code null} if some of them are no longer buffered.
+         */
+        synchronized @CheckForNull List<String> getLinesAfter(long cursor) {
+            if (cursor >= nextSequence || cursor < getOldestSequence() - 1) {
+                return null;
+            }
+            List<String> after = new ArrayList<>();
+            for (Line line : lines) {
+                if (line.sequence > cursor) {
+                    after.add(line.line);
+                }
+            }
+            return after;
+        }
+
+        synchronized long getOldestSequence() {
+            return (lines.isEmpty() ? nextSequence : lines.peekFirst().sequence);
+        }
+
+        private static boolean isJSON(String data) {
+            // Channel events (and the gateway's own control events) are JSON objects.
+            return !data.isEmpty() && (data.charAt(0) == '{' || data.charAt(0) == '[');
+        }
+    }
+
+    private static final class Line {
+        private final long sequence;
+        private final String line;
+
+        private Line(long sequence, String line) {
+            this.sequence = sequence;
+            this.line = line;
+        }
+    }
+}
@@ -23,12 +23,17 @@
  */
 package org.jenkinsci.plugins.ssegateway;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.util.ClassLoaderSanityThreadFactory;
+import hudson.util.NamingThreadFactory;
 import net.sf.json.JSONArray;
-import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.jenkinsci.plugins.pubsub.EventFilter;
 import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
 import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
@@ -37,93 +42,372 @@ import org.slf4j.LoggerFactory;
 
 import jakarta.servlet.http.HttpSession;
 import java.io.IOException;
+import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
  */
 @Restricted(NoExternalUse.class)
-final class SubscriptionConfigQueue {
+public final class SubscriptionConfigQueue {
 
     private static final Logger LOGGER = LoggerFactory.getLogger( SubscriptionConfigQueue.class.getName());
     
-    private static BlockingQueue<SubscriptionConfig> queue = null;
+    // The number of configuration processing stripes (threads). Configs for the same dispatcher
+    // always land on the same stripe, so are applied in order. Configs for different
+    // dispatchers are applied in parallel (unless their dispatcher Ids hash to the same stripe).
+    private static final int STRIPES = Integer.getInteger(SubscriptionConfigQueue.class.getName() + ".stripes",
+            Math.max(2, Runtime.getRuntime().availableProcessors()));
+
+    // set the max number of queued configuration batches - default 10000
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_QUEUED = Integer.getInteger(SubscriptionConfigQueue.class.getName() + ".MAX_QUEUED", 10000);
+    // set the max number of queued configuration batches per session - default 50
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_QUEUED_PER_SESSION = Integer.getInteger(SubscriptionConfigQueue.class.getName() + ".MAX_QUEUED_PER_SESSION", 50);
+
+    // set the max number of filters in a configuration batch for it to be applied synchronously
+    // (on the request thread, for clients that ask for it) - default 10. 0 disables the fast path.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int SYNC_MAX_FILTERS = Integer.getInteger(SubscriptionConfigQueue.class.getName() + ".SYNC_MAX_FILTERS", 10);
+
+    private static ExecutorService[] stripes = null;
+    // Striped per dispatcher locks. Configs for a dispatcher are only ever applied while
+    // holding its lock, whether applied from the queue or synchronously.
+    private static final Object[] dispatcherLocks = new Object[64];
+    static {
+        for (int i = 0; i < dispatcherLocks.length; i++) {
+            dispatcherLocks[i] = new Object();
+        }
+    }
+    // Queued configuration batch count per session. Stops any one session (e.g. with
+    // lots of tabs open) from taking all of the queue capacity.
+    private static final Map<String, Integer> sessionQueuedCounts = new ConcurrentHashMap<>();
+    // Configs waiting to be applied, per dispatcher. Only 1 task per dispatcher is queued on
+    // the dispatcher's stripe at any time. That task takes all of the dispatcher's pending
+    // configs and coalesces them before applying them.
+    private static final Map<String, List<SubscriptionConfig>> pendingConfigs = new ConcurrentHashMap<>();
+
+    // Metrics.
+    private static final AtomicInteger queuedCount = new AtomicInteger();
+    private static final AtomicLong rejectedCount = new AtomicLong();
+    private static final AtomicLong coalescedCount = new AtomicLong();
+    private static final AtomicLong cancelledCount = new AtomicLong();
+    private static final AtomicLong syncAppliedCount = new AtomicLong();
+    private static final AtomicLong appliedCount = new AtomicLong();
+    private static final AtomicLong totalQueueWaitNanos = new AtomicLong();
+    private static final AtomicLong totalApplyNanos = new AtomicLong();
+    private static volatile long maxQueueWaitNanos = 0;
+    private static volatile long maxApplyNanos = 0;
     
     private SubscriptionConfigQueue() {
     }
 
     static boolean isStarted() {
-        return (queue != null);
+        return (stripes != null);
     }
     
     static synchronized void start() {
-        if (queue != null) {
+        if (stripes != null) {
             LOGGER.info("SSE Configure Queue already started. Ignoring unexpected request to start again.");
             return;
         }
         
-        // We create a blocking queue that stores subscription requests coming from
-        // clients and then fire off 1 thread to process the queue.
-        // TF: Might look at using an Executor for this, but I think this is fine for now.
-        queue = new LinkedBlockingQueue<>();
-        new Thread(() -> {
-
-                try {
-                    while (true) {
-                        SubscriptionConfig subscriptionConfig = queue.take();
-                        if (subscriptionConfig == SubscriptionConfig.STOP_CONFIG) {
-                            // Event object used to tell
-                            // the process to bail out.
-                            return;
-                        } else {
-                            try {
-                                doConfigure(subscriptionConfig);
-                            } catch (Exception e) {
-                                LOGGER.error("Error processing SSE configuration request.", e);
-                            }
-                        }
-                    }
-                } catch (InterruptedException e) {
-                    LOGGER.info("SSE configure queue processing interrupted. Stopping.", e);
-                } finally {
-                    queue = null;
-                }
-            }, "SubscriptionConfigQueue.start"
-        ).start();
+        // A striped executor i.e. 1 single threaded executor per stripe, with
+        // the stripe for a config selected by its dispatcher Id.
+        ExecutorService[] newStripes = new ExecutorService[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            newStripes[i] = Executors.newSingleThreadExecutor(
+                    new NamingThreadFactory(new ClassLoaderSanityThreadFactory(Executors.defaultThreadFactory()), "SubscriptionConfigQueue.stripe-" + i));
+        }
+        stripes = newStripes;
     }
 
     static synchronized void stop() {
-        if (queue == null) {
+        if (stripes == null) {
             LOGGER.info("SSE Configure Queue is not started. Ignoring unexpected request to stop.");
             return;
         }
 
-        try {
-            queue.put(SubscriptionConfig.STOP_CONFIG);
-        } catch (InterruptedException e) {
-            LOGGER.error("Unexpected error stopping SSE Configure Queue.", e);
+        // Already queued configs are still applied.
+        for (ExecutorService stripe : stripes) {
+            stripe.shutdown();
         }
+        stripes = null;
     }
 
     /**
      * Queues up the application of {@link SubscriptionConfig}.
+     * @return {@link AddResult#QUEUED} if the config was queued, {@link AddResult#SATURATED} if
+     * the queue (or the session's share of it) is full, or {@link AddResult#STOPPED} if the queue
+     * is not running.
+     */
+    static AddResult add(SubscriptionConfig subscriptionConfig) {
+        ExecutorService[] currentStripes = stripes;
+        if (currentStripes == null) {
+            return AddResult.STOPPED;
+        }
+
+        String sessionKey = subscriptionConfig.getSessionKey();
+        if (!acquireSessionSlot(sessionKey)) {
+            rejectedCount.incrementAndGet();
+            return AddResult.SATURATED;
+        }
+        if (queuedCount.incrementAndGet() > MAX_QUEUED) {
+            queuedCount.decrementAndGet();
+            releaseSessionSlot(sessionKey);
+            rejectedCount.incrementAndGet();
+            return AddResult.SATURATED;
+        }
+
+        String dispatcherKey = subscriptionConfig.getDispatcherKey();
+        boolean[] scheduleApply = {false};
+        subscriptionConfig.queuedAt = System.nanoTime();
+        pendingConfigs.compute(dispatcherKey, (key, configs) -> {
+            if (configs == null) {
+                // Nothing pending for the dispatcher, so need to queue an apply task.
+                configs = new ArrayList<>();
+                scheduleApply[0] = true;
+            }
+            configs.add(subscriptionConfig);
+            return configs;
+        });
+        if (!scheduleApply[0]) {
+            // Will be picked up by the apply task that's already queued for the dispatcher.
+            return AddResult.QUEUED;
+        }
+
+        ExecutorService stripe = currentStripes[Math.floorMod(subscriptionConfig.dispatcherId.hashCode(), currentStripes.length)];
+        try {
+            stripe.execute(() -> apply(dispatcherKey));
+            return AddResult.QUEUED;
+        } catch (RejectedExecutionException e) {
+            List<SubscriptionConfig> configs = pendingConfigs.remove(dispatcherKey);
+            if (configs != null) {
+                for (SubscriptionConfig config : configs) {
+                    queuedCount.decrementAndGet();
+                    releaseSessionSlot(config.getSessionKey());
+                }
+            }
+            LOGGER.debug("SSE configure queue stopped. Rejecting configuration request.", e);
+            return AddResult.STOPPED;
+        }
+    }
+
+    /**
+     * Get a hint as to how long a client should wait before retrying a configuration
+     * request rejected because the queue is saturated.
+     * @return The number of seconds to wait.
      */
-    static boolean add(SubscriptionConfig subscriptionConfig) {
-        return queue.offer(subscriptionConfig);
+    static int getRetryAfterSeconds() {
+        long applied = appliedCount.get();
+        if (applied == 0) {
+            return 1;
+        }
+        // Roughly how long it would take to drain the current queue.
+        long avgApplyNanos = totalApplyNanos.get() / applied;
+        long drainNanos = (avgApplyNanos * queuedCount.get()) / STRIPES;
+        return (int) Math.max(1, Math.min(30, TimeUnit.NANOSECONDS.toSeconds(drainNanos)));
+    }
+
+    private static boolean acquireSessionSlot(String sessionKey) {
+        boolean[] acquired = {false};
+        sessionQueuedCounts.compute(sessionKey, (key, count) -> {
+            int current = (count == null ? 0 : count);
+            if (current >= MAX_QUEUED_PER_SESSION) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    private static void releaseSessionSlot(String sessionKey) {
+        sessionQueuedCounts.computeIfPresent(sessionKey, (key, count) -> (count > 1 ? count - 1 : null));
+    }
+
+    /**
+     * Get configuration processing metrics.
+     * @return Configuration processing metrics.
+     */
+    static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        long applied = appliedCount.get();
+        stats.put("stripes", STRIPES);
+        stats.put("queued", queuedCount.get());
+        stats.put("queuedSessions", sessionQueuedCounts.size());
+        stats.put("rejected", rejectedCount.get());
+        stats.put("coalesced", coalescedCount.get());
+        stats.put("cancelled", cancelledCount.get());
+        stats.put("syncApplied", syncAppliedCount.get());
+        stats.put("applied", applied);
+        stats.put("avgQueueWaitMillis", (applied > 0 ? TimeUnit.NANOSECONDS.toMillis(totalQueueWaitNanos.get() / applied) : 0));
+        stats.put("maxQueueWaitMillis", TimeUnit.NANOSECONDS.toMillis(maxQueueWaitNanos));
+        stats.put("avgApplyMillis", (applied > 0 ? TimeUnit.NANOSECONDS.toMillis(totalApplyNanos.get() / applied) : 0));
+        stats.put("maxApplyMillis", TimeUnit.NANOSECONDS.toMillis(maxApplyNanos));
+        return stats;
+    }
+
+    /**
+     * Apply a small {@link SubscriptionConfig} synchronously i.e. on the calling (request) thread.
+     * <p>
+     * Only applied if the client asked for it, the config is small enough, and there are no
+     * configs already queued for the dispatcher (which must be applied first).
+     *
+     * @return The configuration ACK if the config was applied, otherwise {@code null}, in which
+     * case the config should be queued.
+     */
+    static JSONObject applyNow(SubscriptionConfig subscriptionConfig) {
+        if (!subscriptionConfig.syncAck || (subscriptionConfig.size() > SYNC_MAX_FILTERS && !subscriptionConfig.listen)) {
+            return null;
+        }
+
+        String dispatcherKey = subscriptionConfig.getDispatcherKey();
+        synchronized (getDispatcherLock(dispatcherKey)) {
+            if (pendingConfigs.containsKey(dispatcherKey)) {
+                // Don't jump the queue.
+                return null;
+            }
+            EventDispatcher dispatcher = subscriptionConfig.getDispatcher();
+            if (dispatcher == null) {
+                // Queued instead, and reported (once) when the queue gets to it.
+                return null;
+            }
+            doApply(subscriptionConfig, dispatcher);
+            syncAppliedCount.incrementAndGet();
+            return newAck(subscriptionConfig, dispatcher, subscriptionConfig.failures);
+        }
+    }
+
+    /**
+     * Apply the subscriptions carried on the first listen request after a connect
+     * (see {@link EventDispatcher#setAwaitingListen()}).
+     * <p>
+     * Applied as for a configure request. The client counts them as applied on the "open"
+     * event, so they are applied synchronously however many there are, unless there are
+     * configs already queued for the dispatcher, in which case they are queued behind them.
+     *
+     * @param dispatcher The dispatcher.
+     * @param session The client's HTTP session, or {@code null} if sessionless.
+     * @param streamToken The client's stream token, or {@code null} if not sessionless.
+     * @param listenSubscriptions The subscriptions carried on the listen request.
+     */
+    public static void applyListenSubscriptions(@NonNull EventDispatcher dispatcher, @CheckForNull HttpSession session,
+                                                @CheckForNull StreamToken streamToken, @NonNull List<EventFilter> listenSubscriptions) {
+        SubscriptionConfig config = SubscriptionConfig.fromListen(dispatcher.getId(), session, streamToken, listenSubscriptions);
+        if (applyNow(config) == null && add(config) != AddResult.QUEUED) {
+            LOGGER.warn("Unable to apply the listen request subscriptions for SSE dispatcher {}. Configuration queue saturated.", dispatcher);
+        }
+    }
+
+    private static Object getDispatcherLock(String dispatcherKey) {
+        return dispatcherLocks[Math.floorMod(dispatcherKey.hashCode(), dispatcherLocks.length)];
+    }
+
+    private static void apply(String dispatcherKey) {
+        synchronized (getDispatcherLock(dispatcherKey)) {
+            applyPending(dispatcherKey);
+        }
+    }
+
+    private static void applyPending(String dispatcherKey) {
+        long startedAt = System.nanoTime();
+        List<SubscriptionConfig> configs = pendingConfigs.remove(dispatcherKey);
+        if (configs == null || configs.isEmpty()) {
+            return;
+        }
+        for (SubscriptionConfig config : configs) {
+            queuedCount.decrementAndGet();
+            releaseSessionSlot(config.getSessionKey());
+        }
+
+        try {
+            doConfigure(configs);
+        } catch (Exception e) {
+            LOGGER.error("Error processing SSE configuration request.", e);
+        } finally {
+            long applyTime = System.nanoTime() - startedAt;
+            appliedCount.addAndGet(configs.size());
+            totalApplyNanos.addAndGet(applyTime);
+            // Racy max updates are fine for metrics.
+            if (applyTime > maxApplyNanos) {
+                maxApplyNanos = applyTime;
+            }
+            for (SubscriptionConfig config : configs) {
+                long queueWait = startedAt - config.queuedAt;
+                totalQueueWaitNanos.addAndGet(queueWait);
+                if (queueWait > maxQueueWaitNanos) {
+                    maxQueueWaitNanos = queueWait;
+                }
+            }
+        }
     }
     
-    private static void doConfigure(SubscriptionConfig subscriptionConfig) {
-        EventDispatcher dispatcher = EventDispatcherFactory.getDispatcher(subscriptionConfig.dispatcherId, subscriptionConfig.session);
+    private static void doConfigure(List<SubscriptionConfig> configs) {
+        SubscriptionConfig netConfig = SubscriptionConfig.coalesce(configs);
+        EventDispatcher dispatcher = doApply(netConfig);
+        if (dispatcher == null) {
+            return;
+        }
+        
+        // ACK every batch that went into the net change, in the order they were received.
+        for (SubscriptionConfig config : configs) {
+            if (config.batchId != null) {
+                List<EventFilter> failures = new ArrayList<>();
+                for (EventFilter filter : config.subscribeSet) {
+                    if (netConfig.failures.contains(filter)) {
+                        failures.add(filter);
+                    }
+                }
+                try {
+                    dispatcher.dispatchEvent("configure", newAck(config, dispatcher, failures).toString());
+                } catch (Exception e) {
+                    LOGGER.error("Error sending configuration ACK for batchId=" + config.batchId, e);
+                }
+            }
+        }
+    }
+
+    private static JSONObject newAck(SubscriptionConfig config, EventDispatcher dispatcher, List<EventFilter> failures) {
+        JSONObject data = new JSONObject();
+        data.put("batchId", config.batchId);
+        data.put("dispatcherId", dispatcher.getId());
+        data.put("dispatcherInst", System.identityHashCode(dispatcher));
+        if (!failures.isEmpty()) {
+            // Subscriptions not applied e.g. over the subscriptions per dispatcher limit.
+            JSONArray failed = new JSONArray();
+            for (EventFilter filter : failures) {
+                failed.add(JSONObject.fromObject(filter));
+            }
+            data.put("failures", failed);
+        }
+        return data;
+    }
+
+    private static EventDispatcher doApply(SubscriptionConfig subscriptionConfig) {
+        EventDispatcher dispatcher = subscriptionConfig.getDispatcher();
 
         if (dispatcher == null) {
             LOGGER.warn("Failed Jenkins SSE Gateway configuration request. Unknown SSE event dispatcher " + subscriptionConfig.dispatcherId);
-            return;
+            return null;
         }
+        doApply(subscriptionConfig, dispatcher);
+        return dispatcher;
+    }
 
+    private static void doApply(SubscriptionConfig subscriptionConfig, EventDispatcher dispatcher) {
         if (subscriptionConfig.unsubscribeAll) {
             dispatcher.unsubscribeAll();
         }
@@ -135,32 +419,35 @@ final class SubscriptionConfigQueue {
         for (EventFilter filter : subscriptionConfig.subscribeSet) {
             if (dispatcher.subscribe(filter)) {
                 EventHistoryStore.onChannelSubscribe(filter.getChannelName());
-            }
-        }
-        
-        if (subscriptionConfig.batchId != null) {
-            try {
-                JSONObject data = new JSONObject();
-                data.put("batchId", subscriptionConfig.batchId);
-                data.put("dispatcherId", dispatcher.getId());
-                data.put("dispatcherInst", System.identityHashCode(dispatcher));
-                dispatcher.dispatchEvent("configure", data.toString());
-            } catch (Exception e) {
-                LOGGER.error("Error sending configuration ACK for batchId=" + subscriptionConfig.batchId, e);
+            } else {
+                subscriptionConfig.failures.add(filter);
             }
         }
     }
 
+    enum AddResult {
+        QUEUED,
+        SATURATED,
+        STOPPED
+    }
+
     static class SubscriptionConfig {
         
-        private static final SubscriptionConfig STOP_CONFIG = new SubscriptionConfig();
-
         private String batchId;
         private String dispatcherId;
         private HttpSession session;
+        // Sessionless clients identify their dispatcher by stream token, instead of session.
+        private StreamToken streamToken;
+        private boolean invalidStreamToken = false;
         private List<EventFilter> subscribeSet = Collections.emptyList();
         private List<EventFilter> unsubscribeSet = Collections.emptyList();
         private boolean unsubscribeAll = false;
+        private boolean syncAck = false;
+        // Carried on a listen request. See applyListenSubscriptions.
+        private boolean listen = false;
+        // Subscriptions that were not applied. Returned in the ACK.
+        private final List<EventFilter> failures = new ArrayList<>();
+        private long queuedAt;
 
         public String getBatchId() {
             return batchId;
@@ -170,45 +457,194 @@ final class SubscriptionConfigQueue {
             return dispatcherId;
         }
 
+        private String getDispatcherKey() {
+            if (streamToken != null) {
+                // Sessionless dispatchers are identified by token, not client Id.
+                return streamToken.getRegistryKey() + "/" + streamToken.getDispatcherKey();
+            }
+            // Dispatcher Ids are only unique within a session.
+            return getSessionKey() + "/" + dispatcherId;
+        }
+
+        boolean isInvalidStreamToken() {
+            return invalidStreamToken;
+        }
+
+        private EventDispatcher getDispatcher() {
+            if (streamToken != null) {
+                return EventDispatcherFactory.getDispatcher(streamToken);
+            }
+            return EventDispatcherFactory.getDispatcher(dispatcherId, session);
+        }
+
+        private String getSessionKey() {
+            if (streamToken != null) {
+                return streamToken.getRegistryKey();
+            } else if (session != null && session.getId() != null) {
+                return session.getId();
+            }
+            return dispatcherId;
+        }
+
         static SubscriptionConfig fromRequest(StaplerRequest2 request) throws IOException {
-            JSONObject payload = Util.readJSONPayload(request);
+            ConfigurePayloadReader payload;
+            try (Reader payloadReader = Util.newPayloadReader(request)) {
+                payload = ConfigurePayloadReader.read(payloadReader);
+            }
             SubscriptionConfig config = new SubscriptionConfig();
             
             config.batchId = request.getParameter("batchId");
-            config.session = request.getSession();
-            config.dispatcherId = payload.optString("dispatcherId", null);
+            // Does the client want the ACK in the response (if applied synchronously).
+            config.syncAck = Boolean.parseBoolean(request.getParameter("syncAck"));
+            config.dispatcherId = payload.getDispatcherId();
+            String streamTokenParam = request.getParameter(StreamToken.PARAMETER);
+            if (streamTokenParam != null) {
+                config.streamToken = StreamToken.verify(streamTokenParam);
+                config.invalidStreamToken = (config.streamToken == null
+                        || !config.streamToken.getClientId().equals(config.dispatcherId));
+            } else {
+                config.session = request.getSession();
+            }
             if (config.dispatcherId != null) {
-                config.subscribeSet = extractFilterSet(payload, "subscribe");
-                config.unsubscribeSet = extractFilterSet(payload, "unsubscribe");
-                if (config.unsubscribeSet.isEmpty()) {
-                    String unsubscribe = payload.optString("unsubscribe", null);
-                    if ("*".equals(unsubscribe) || "all".equalsIgnoreCase(unsubscribe)) {
-                        config.unsubscribeAll = true;
-                    }
-                }
+                config.setConfigs(payload);
             }
             
             return config;
         }
 
-        private static List<EventFilter> extractFilterSet(JSONObject payload, String key) {
-            JSONArray jsonObjs = payload.optJSONArray(key);
-            
-            if (jsonObjs != null && !jsonObjs.isEmpty()) {
-                List<EventFilter> filterSet = new ArrayList<>();
-                for (int i = 0; i < jsonObjs.size(); i++) {
-                    try {
-                        JSONObject jsonObj = jsonObjs.getJSONObject(i);
-                        EventFilter filter = (EventFilter) jsonObj.toBean(EventFilter.class);
-                        filterSet.add(filter);
-                    } catch (JSONException e) {
-                        LOGGER.error("Invalid SSE payload. Expecting an array of JSON Objects for property " + key, e);
+        /**
+         * Create a config from a message received on a client's own event stream e.g. a WebSocket.
+         * The ACK is wanted in the response i.e. applied straight away if possible.
+         * @param payload The message payload.
+         * @param dispatcherId The Id of the dispatcher the stream is attached to.
+         * @param session The client's HTTP session, or {@code null} if sessionless.
+         * @param streamToken The client's stream token, or {@code null} if not sessionless.
+         * @return The config.
+         */
+        static SubscriptionConfig fromPayload(@NonNull ConfigurePayloadReader payload, @NonNull String dispatcherId,
+                                              @CheckForNull HttpSession session, @CheckForNull StreamToken streamToken) {
+            SubscriptionConfig config = new SubscriptionConfig();
+
+            config.batchId = payload.getBatchId();
+            config.syncAck = true;
+            config.dispatcherId = dispatcherId;
+            config.session = session;
+            config.streamToken = streamToken;
+            config.setConfigs(payload);
+
+            return config;
+        }
+
+        /**
+         * Create a config from the subscriptions carried on a listen request.
+         * @param dispatcherId The dispatcher Id.
+         * @param session The client's HTTP session, or {@code null} if sessionless.
+         * @param streamToken The client's stream token, or {@code null} if not sessionless.
+         * @param subscribeSet The subscriptions.
+         * @return The config.
+         */
+        static SubscriptionConfig fromListen(@NonNull String dispatcherId, @CheckForNull HttpSession session,
+                                             @CheckForNull StreamToken streamToken, @NonNull List<EventFilter> subscribeSet) {
+            SubscriptionConfig config = new SubscriptionConfig();
+
+            config.syncAck = true;
+            config.listen = true;
+            config.dispatcherId = dispatcherId;
+            config.session = session;
+            config.streamToken = streamToken;
+            config.subscribeSet = subscribeSet;
+
+            return config;
+        }
+
+        private void setConfigs(ConfigurePayloadReader payload) {
+            subscribeSet = payload.getSubscribeSet();
+            unsubscribeSet = payload.getUnsubscribeSet();
+            unsubscribeAll = (unsubscribeSet.isEmpty() && payload.isUnsubscribeAll());
+        }
+
+        /**
+         * Coalesce a dispatcher's pending configs into the net change to be applied.
+         * <p>
+         * A subscribe followed (in the same or a later config) by an unsubscribe of the same
+         * filter cancel each other out, as do an unsubscribe followed by a subscribe (the dispatcher
+         * would otherwise drop the subscription and then add it straight back). An unsubscribe-all
+         * drops everything pending before it.
+         * Repeated subscribes of the same filter are kept, because the dispatcher reference
+         * counts them (only the first one does any bus subscribe work).
+         *
+         * @param configs The pending configs, in the order they were received.
+         * @return The net config.
+         */
+        static SubscriptionConfig coalesce(List<SubscriptionConfig> configs) {
+            SubscriptionConfig lastConfig = configs.get(configs.size() - 1);
+            if (configs.size() == 1) {
+                return lastConfig;
+            }
+
+            SubscriptionConfig netConfig = new SubscriptionConfig();
+            netConfig.dispatcherId = lastConfig.dispatcherId;
+            netConfig.session = lastConfig.session;
+            netConfig.streamToken = lastConfig.streamToken;
+
+            // Filter -> number of times. LinkedHashMap to keep the order stable.
+            Map<EventFilter, Integer> unsubscribes = new LinkedHashMap<>();
+            Map<EventFilter, Integer> subscribes = new LinkedHashMap<>();
+            for (SubscriptionConfig config : configs) {
+                if (config.unsubscribeAll) {
+                    netConfig.unsubscribeAll = true;
+                    unsubscribes.clear();
+                    subscribes.clear();
+                }
+                for (EventFilter filter : config.unsubscribeSet) {
+                    Integer pendingSubscribes = subscribes.get(filter);
+                    if (pendingSubscribes != null) {
+                        // Cancels out the latest pending subscribe.
+                        if (pendingSubscribes == 1) {
+                            subscribes.remove(filter);
+                        } else {
+                            subscribes.put(filter, pendingSubscribes - 1);
+                        }
+                        cancelledCount.incrementAndGet();
+                    } else if (!netConfig.unsubscribeAll) {
+                        unsubscribes.merge(filter, 1, Integer::sum);
                     }
+                    // else nothing to unsubscribe after an unsubscribe-all.
+                }
+                for (EventFilter filter : config.subscribeSet) {
+                    Integer pendingUnsubscribes = unsubscribes.get(filter);
+                    if (pendingUnsubscribes != null) {
+                        // Cancels out the latest pending unsubscribe.
+                        if (pendingUnsubscribes == 1) {
+                            unsubscribes.remove(filter);
+                        } else {
+                            unsubscribes.put(filter, pendingUnsubscribes - 1);
+                        }
+                        cancelledCount.incrementAndGet();
+                    } else {
+                        subscribes.merge(filter, 1, Integer::sum);
+                    }
+                }
+            }
+            netConfig.unsubscribeSet = toFilterList(unsubscribes);
+            netConfig.subscribeSet = toFilterList(subscribes);
+            coalescedCount.addAndGet(configs.size() - 1);
+
+            return netConfig;
+        }
+
+        private static List<EventFilter> toFilterList(Map<EventFilter, Integer> filterCounts) {
+            List<EventFilter> filters = new ArrayList<>();
+            for (Map.Entry<EventFilter, Integer> filterCount : filterCounts.entrySet()) {
+                for (int i = 0; i < filterCount.getValue(); i++) {
+                    filters.add(filterCount.getKey());
                 }
-                return filterSet;
             }
+            return filters;
+        }
 
-            return Collections.emptyList();
+        int size() {
+            return subscribeSet.size() + unsubscribeSet.size() + (unsubscribeAll ? 1 : 0);
         }
 
         public boolean hasConfigs() {
@@ -24,8 +24,6 @@
 package org.jenkinsci.plugins.ssegateway;
 
 import hudson.Functions;
-import net.sf.json.JSONObject;
-import org.apache.commons.io.IOUtils;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
 import org.kohsuke.stapler.StaplerRequest2;
@@ -48,20 +46,14 @@ public class Util {
     private Util() {
     }
 
-    public static JSONObject readJSONPayload(StaplerRequest2 request) throws IOException {
+    public static Reader newPayloadReader(StaplerRequest2 request) throws IOException {
         String characterEncoding = request.getCharacterEncoding();
         
         if (characterEncoding == null) {
             characterEncoding = "UTF-8";
         }
         
-        Reader streamReader = new InputStreamReader(request.getInputStream(), characterEncoding);
-        try {
-            String payloadAsString = IOUtils.toString(streamReader);
-            return JSONObject.fromObject(payloadAsString);
-        } finally {
-            IOUtils.closeQuietly(streamReader);
-        }
+        return new InputStreamReader(request.getInputStream(), characterEncoding);
     }
 
     private static Boolean isTestEnv = null;
@@ -0,0 +1,376 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+import jenkins.websocket.WebSocketSession;
+import jenkins.websocket.WebSockets;
+import net.sf.json.JSONObject;
+import net.sf.json.util.JSONUtils;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherFactory;
+import org.jenkinsci.plugins.ssegateway.sse.EventStream;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.core.Authentication;
+
+import jakarta.servlet.http.HttpSession;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * WebSocket transport.
+ * <p>
+ * Carries a client's events downstream and its subscription configuration and ping
+ * messages upstream on one connection (<code>/sse-gateway/websocket</code>), instead of an SSE
+ * <code>listen</code> stream plus separate <code>configure</code> and <code>ping</code> requests.
+ * It's the same dispatcher behind it (see {@link EventStream}) i.e. the same subscriptions,
+ * filtering and retry queue, and a client can switch between the two.
+ * <p>
+ * Downstream frames: <code>{"event": "&lt;name&gt;", "data": "&lt;data&gt;"}</code>, where the data is
+ * the SSE event data (as a JSON string). Upstream messages: <code>{"type": "ping"}</code>, and
+ * <code>{"type": "configure", "batchId": "..", "subscribe": [..], "unsubscribe": [..]}</code> (the
+ * same as a configure request payload). Configurations are acknowledged with a <code>configure</code>
+ * event as normal, or a <code>configureRetry</code> event (<code>{"batchId": .., "retryAfter": ..}</code>)
+ * if the configuration queue is full.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+final class WebSocketTransport extends WebSocketSession {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( WebSocketTransport.class.getName());
+
+    // set whether clients can use the WebSocket transport (if supported by the servlet container) - default true
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ boolean ENABLED = Boolean.parseBoolean(System.getProperty(WebSocketTransport.class.getName() + ".ENABLED", "true"));
+    // set how long a frame can take to send to a client, before giving up on it - default 10 sec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int SEND_TIMEOUT = Integer.getInteger(WebSocketTransport.class.getName() + ".SEND_TIMEOUT", 10);
+    // Max frames queued behind the send in flight, before giving up on the client.
+    private static final int MAX_PENDING_FRAMES = 1000;
+    // How often to check on the send in flight, while frames are queued (millis).
+    private static final long DRAIN_DELAY = 20;
+
+    private final String clientId;
+    private final HttpSession session;
+    private final StreamToken streamToken;
+    private final List<EventFilter> listenSubscriptions;
+    // The WebSocket callbacks are not on the request thread.
+    private final Authentication authentication;
+    private final Stream stream = new Stream();
+    private volatile EventDispatcher dispatcher;
+
+    /**
+     * Create a WebSocket transport for a client. Call on the upgrade request.
+     * @param clientId The dispatcher client Id.
+     * @param session The client's HTTP session, or {@code null} if sessionless.
+     * @param streamToken The client's (verified) stream token, or {@code null} if not sessionless.
+     * @param listenSubscriptions Subscriptions carried on the upgrade request.
+     */
+    WebSocketTransport(@NonNull String clientId, @CheckForNull HttpSession session, @CheckForNull StreamToken streamToken,
+                       @NonNull List<EventFilter> listenSubscriptions) {
+        this.clientId = clientId;
+        this.session = session;
+        this.streamToken = streamToken;
+        this.listenSubscriptions = listenSubscriptions;
+        this.authentication = Jenkins.getAuthentication2();
+    }
+
+    /**
+     * Can clients use the WebSocket transport.
+     * @return {@code true} if enabled and supported by the servlet container, otherwise {@code false}.
+     */
+    static boolean isAvailable() {
+        return ENABLED && WebSockets.isSupported();
+    }
+
+    @Override
+    protected void opened() {
+        try (ACLContext ignored = ACL.as2(authentication)) {
+            if (streamToken != null) {
+                dispatcher = EventDispatcherFactory.start(streamToken, listenSubscriptions, stream);
+            } else {
+                dispatcher = EventDispatcherFactory.start(clientId, session, listenSubscriptions, stream);
+            }
+        } catch (AdmissionControl.RejectedException e) {
+            LOGGER.debug("WebSocket for client {} rejected. {}", clientId, e.getMessage());
+            closeQuietly();
+        } catch (Exception e) {
+            LOGGER.warn("Error starting WebSocket for client " + clientId + ".", e);
+            closeQuietly();
+        }
+    }
+
+    @Override
+    protected void text(String message) throws IOException {
+        EventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher == null) {
+            return;
+        }
+
+        ConfigurePayloadReader payload;
+        try {
+            payload = ConfigurePayloadReader.read(new StringReader(message));
+        } catch (IOException e) {
+            LOGGER.debug("Invalid WebSocket message from client " + clientId + ".", e);
+            return;
+        }
+
+        if ("ping".equals(payload.getType())) {
+            dispatch(eventDispatcher, "pingback", "ack");
+        } else if ("configure".equals(payload.getType())) {
+            configure(eventDispatcher, payload);
+        } else {
+            LOGGER.debug("Unknown WebSocket message type '{}' from client {}.", payload.getType(), clientId);
+        }
+    }
+
+    @Override
+    protected void closed(int statusCode, String reason) {
+        LOGGER.debug("WebSocket for client {} closed ({}: {}).", clientId, statusCode, reason);
+        detach();
+    }
+
+    @Override
+    protected void error(Throwable cause) {
+        LOGGER.debug("WebSocket error for client " + clientId + ".", cause);
+        detach();
+    }
+
+    private void configure(EventDispatcher eventDispatcher, ConfigurePayloadReader payload) {
+        SubscriptionConfigQueue.SubscriptionConfig config = SubscriptionConfigQueue.SubscriptionConfig.fromPayload(payload, clientId, session, streamToken);
+        if (!config.hasConfigs()) {
+            LOGGER.debug("No 'subscribe' or 'unsubscribe' configurations in WebSocket message from client {}.", clientId);
+            return;
+        }
+
+        // As for a configure request. See Endpoint.doConfigure.
+        JSONObject ack = SubscriptionConfigQueue.applyNow(config);
+        if (ack != null) {
+            ack.put("applied", true);
+            dispatch(eventDispatcher, "configure", ack.toString());
+        } else if (SubscriptionConfigQueue.add(config) != SubscriptionConfigQueue.AddResult.QUEUED) {
+            // Backpressure. The client should back off and resend.
+            JSONObject retry = new JSONObject();
+            retry.put("batchId", config.getBatchId());
+            retry.put("retryAfter", SubscriptionConfigQueue.getRetryAfterSeconds());
+            dispatch(eventDispatcher, "configureRetry", retry.toString());
+        }
+    }
+
+    private void dispatch(EventDispatcher eventDispatcher, String name, String data) {
+        try {
+            eventDispatcher.dispatchEvent(name, data);
+        } catch (Exception e) {
+            LOGGER.debug("Error sending '" + name + "' to WebSocket client " + clientId + ".", e);
+        }
+    }
+
+    private void detach() {
+        EventDispatcher eventDispatcher = dispatcher;
+        if (eventDispatcher != null) {
+            eventDispatcher.detachStream(stream);
+        }
+        // Hand back anything still queued on it.
+        stream.close();
+    }
+
+    private void closeQuietly() {
+        try {
+            close();
+        } catch (IOException e) {
+            LOGGER.debug("Error closing WebSocket for client " + clientId + ".", e);
+        }
+    }
+
+    static String toFrame(@CheckForNull String name, @CheckForNull String data) {
+        StringBuilder frame = new StringBuilder(64 + (data != null ? data.length() : 0));
+        frame.append('{');
+        if (name != null) {
+            frame.append("\"event\":").append(JSONUtils.quote(name));
+        }
+        if (data != null) {
+            if (name != null) {
+                frame.append(',');
+            }
+            frame.append("\"data\":").append(JSONUtils.quote(data));
+        }
+        return frame.append('}').toString();
+    }
+
+    /**
+     * The dispatcher's view of the WebSocket.
+     */
+    private final class Stream implements EventStream {
+
+        // Frames queued behind the send in flight. Sent in order.
+        private final Deque<Frame> pendingFrames = new ArrayDeque<>();
+        private Frame lastFrame;
+        private Future<Void> lastSend;
+        private long lastSendTime;
+        private boolean drainScheduled = false;
+        private boolean closed = false;
+
+        @Override
+        public boolean write(@NonNull EventDispatcher dispatcher, @CheckForNull String name, @CheckForNull String data) {
+            // Never wait for the client here (the dispatcher monitor is held). Frames queue
+            // behind the send in flight. A client that can't keep up is dropped, and its
+            // events go to the retry queue.
+            boolean sending;
+            synchronized (this) {
+                if (closed || pendingFrames.size() >= MAX_PENDING_FRAMES) {
+                    sending = false;
+                } else {
+                    Frame frame = new Frame(name, data);
+                    pendingFrames.add(frame);
+                    sending = drain();
+                    if (!sending && pendingFrames.peekLast() == frame) {
+                        // Not accepted. The dispatcher retries this one itself.
+                        pendingFrames.pollLast();
+                    }
+                }
+            }
+            if (!sending) {
+                close();
+            }
+            return sending;
+        }
+
+        @Override
+        public void close() {
+            List<String> undelivered = new ArrayList<>();
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                if (lastFrame != null && !isSent(lastSend)) {
+                    // Might yet arrive, but better twice than never.
+                    undelivered.add(lastFrame.data);
+                }
+                for (Frame frame : pendingFrames) {
+                    undelivered.add(frame.data);
+                }
+                pendingFrames.clear();
+            }
+            closeQuietly();
+            EventDispatcher eventDispatcher = dispatcher;
+            if (eventDispatcher != null && !undelivered.isEmpty()) {
+                // Accepted by write, so the dispatcher thinks they were delivered.
+                eventDispatcher.requeueUndelivered(undelivered);
+            }
+        }
+
+        /**
+         * Send the pending frames, one at a time.
+         * @return {@code false} if the client can't keep up (or the send failed), otherwise {@code true}.
+         */
+        private synchronized boolean drain() {
+            while (!closed && !pendingFrames.isEmpty()) {
+                if (lastSend != null) {
+                    if (!lastSend.isDone()) {
+                        if (System.currentTimeMillis() - lastSendTime > TimeUnit.SECONDS.toMillis(SEND_TIMEOUT)) {
+                            LOGGER.debug("Timed out sending to WebSocket client {}.", clientId);
+                            return false;
+                        }
+                        scheduleDrain();
+                        return true;
+                    }
+                    try {
+                        lastSend.get();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return false;
+                    } catch (ExecutionException e) {
+                        LOGGER.debug("Error sending to WebSocket client " + clientId + ".", e);
+                        return false;
+                    }
+                }
+                lastFrame = pendingFrames.poll();
+                lastSend = sendText(toFrame(lastFrame.name, lastFrame.data));
+                lastSendTime = System.currentTimeMillis();
+            }
+            return true;
+        }
+
+        private void scheduleDrain() {
+            if (drainScheduled) {
+                return;
+            }
+            drainScheduled = true;
+            // The send Future has no completion callback.
+            Timer.get().schedule(() -> {
+                boolean sending;
+                synchronized (this) {
+                    drainScheduled = false;
+                    sending = drain();
+                }
+                if (!sending) {
+                    close();
+                }
+            }, DRAIN_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static boolean isSent(Future<Void> send) {
+        if (!send.isDone() || send.isCancelled()) {
+            return false;
+        }
+        try {
+            send.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    private static final class Frame {
+        private final String name;
+        private final String data;
+
+        private Frame(@CheckForNull String name, @CheckForNull String data) {
+            this.name = name;
+            this.data = data;
+        }
+    }
+}
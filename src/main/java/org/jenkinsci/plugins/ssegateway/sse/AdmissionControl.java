@@ -0,0 +1,219 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+
+/**
+ * Admission control for {@link EventDispatcher}s (i.e. SSE streams) and their subscriptions.
+ * <p>
+ * A dispatcher is admitted when it is created (see {@link EventDispatcherFactory}) and released
+ * when it is disposed of (evicted, replaced, or its session destroyed). Creating a dispatcher over
+ * the global or per user limit fails with a {@link RejectedException}, which the gateway turns into
+ * a fast <code>503</code> with a <code>Retry-After</code> hint. The per session limit is
+ * {@link EventDispatcher#MAX_DISPATCHERS_PER_SESSION}, which evicts the least recently seen
+ * dispatcher rather than rejecting the new one (so a page reload never gets rejected). Likewise, a
+ * new dispatcher over a limit takes the slot of a disconnected dispatcher on the same session (or
+ * for the same sessionless user) that is still in its reconnect grace period, before being rejected.
+ * <p>
+ * All limits are off (0) by default. Rejections are counted, per user too (for at most
+ * {@link #MAX_TRACKED_USERS} users), and reported in the gateway statistics.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class AdmissionControl {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( AdmissionControl.class.getName());
+
+    // set the max number of dispatchers (SSE streams) - default 0 i.e. unlimited
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_DISPATCHERS = Integer.getInteger(AdmissionControl.class.getName() + ".MAX_DISPATCHERS", 0);
+    // set the max number of dispatchers (SSE streams) per user - default 0 i.e. unlimited
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_DISPATCHERS_PER_USER = Integer.getInteger(AdmissionControl.class.getName() + ".MAX_DISPATCHERS_PER_USER", 0);
+    // set the max number of subscriptions (distinct filters) per dispatcher - default 0 i.e. unlimited
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_SUBSCRIPTIONS_PER_DISPATCHER = Integer.getInteger(AdmissionControl.class.getName() + ".MAX_SUBSCRIPTIONS_PER_DISPATCHER", 0);
+    // set the base Retry-After hint for rejected clients - default 10 sec. Clients get between 1 and 2 times this.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int RETRY_AFTER = Integer.getInteger(AdmissionControl.class.getName() + ".RETRY_AFTER", 10);
+
+    // Max number of users with their own rejection count in the statistics. Any more are only in the totals.
+    static final int MAX_TRACKED_USERS = 100;
+
+    private static final AtomicInteger dispatcherCount = new AtomicInteger();
+    private static final Map<String, AtomicInteger> userDispatcherCounts = new ConcurrentHashMap<>();
+    private static final AtomicLong rejectedGlobalCount = new AtomicLong();
+    private static final AtomicLong rejectedUserCount = new AtomicLong();
+    private static final AtomicLong rejectedSubscriptionCount = new AtomicLong();
+    private static final Map<String, AtomicLong> userRejectionCounts = new ConcurrentHashMap<>();
+
+    private AdmissionControl() {
+    }
+
+    /**
+     * Admit a new dispatcher for the supplied principal.
+     * @param principal The principal the dispatcher is being created for.
+     * @param reclaim Called when over a limit, to release a slot held by a disconnected dispatcher
+     * (e.g. one left in its reconnect grace period by a page reload). Returns {@code true} if it
+     * released one, in which case admission is tried again.
+     * @throws RejectedException The dispatcher is not admitted. Over the global or per user limit.
+     */
+    static void admitDispatcher(@NonNull String principal, @NonNull Predicate<String> reclaim) throws RejectedException {
+        while (true) {
+            int maxDispatchers = MAX_DISPATCHERS;
+            if (dispatcherCount.incrementAndGet() > maxDispatchers && maxDispatchers > 0) {
+                dispatcherCount.decrementAndGet();
+                if (reclaim.test(principal)) {
+                    continue;
+                }
+                rejectedGlobalCount.incrementAndGet();
+                throw reject(principal, "Too many SSE streams. Retry later.");
+            }
+
+            int maxUserDispatchers = MAX_DISPATCHERS_PER_USER;
+            AtomicInteger userCount = userDispatcherCounts.computeIfAbsent(principal, key -> new AtomicInteger());
+            if (userCount.incrementAndGet() > maxUserDispatchers && maxUserDispatchers > 0) {
+                releaseUser(principal, userCount);
+                dispatcherCount.decrementAndGet();
+                if (reclaim.test(principal)) {
+                    continue;
+                }
+                rejectedUserCount.incrementAndGet();
+                throw reject(principal, "Too many SSE streams for user. Retry later.");
+            }
+            return;
+        }
+    }
+
+    /**
+     * Release an admitted dispatcher.
+     * @param principal The principal the dispatcher was admitted for.
+     */
+    static void releaseDispatcher(@NonNull String principal) {
+        dispatcherCount.decrementAndGet();
+        AtomicInteger userCount = userDispatcherCounts.get(principal);
+        if (userCount != null) {
+            releaseUser(principal, userCount);
+        }
+    }
+
+    /**
+     * Can a dispatcher with the supplied number of subscriptions (distinct filters) take another.
+     * @param dispatcher The dispatcher.
+     * @param subscriptionCount The dispatcher's current number of subscriptions.
+     * @return {@code true} if it can, otherwise {@code false} (and the rejection is counted).
+     */
+    static boolean admitSubscription(@NonNull EventDispatcher dispatcher, int subscriptionCount) {
+        int maxSubscriptions = MAX_SUBSCRIPTIONS_PER_DISPATCHER;
+        if (maxSubscriptions > 0 && subscriptionCount >= maxSubscriptions) {
+            rejectedSubscriptionCount.incrementAndGet();
+            countUserRejection(dispatcher.getPrincipal());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Get admission metrics.
+     * @return Admission metrics.
+     */
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("dispatchers", dispatcherCount.get());
+        stats.put("users", userDispatcherCounts.size());
+        stats.put("rejectedGlobal", rejectedGlobalCount.get());
+        stats.put("rejectedUser", rejectedUserCount.get());
+        stats.put("rejectedSubscriptions", rejectedSubscriptionCount.get());
+        JSONObject userRejections = new JSONObject();
+        for (Map.Entry<String, AtomicLong> entry : userRejectionCounts.entrySet()) {
+            userRejections.put(entry.getKey(), entry.getValue().get());
+        }
+        stats.put("userRejections", userRejections);
+        return stats;
+    }
+
+    private static void releaseUser(String principal, AtomicInteger userCount) {
+        if (userCount.decrementAndGet() <= 0) {
+            // Drop the count for users with no dispatchers, unless it's been incremented again since.
+            userDispatcherCounts.computeIfPresent(principal, (key, count) -> (count.get() <= 0 ? null : count));
+        }
+    }
+
+    private static RejectedException reject(String principal, String message) {
+        countUserRejection(principal);
+        int retryAfter = Math.max(1, RETRY_AFTER);
+        // Spread the retries so that rejected clients don't all come back at the same time.
+        retryAfter += ThreadLocalRandom.current().nextInt(retryAfter + 1);
+        LOGGER.debug("Rejected new dispatcher for user {}. {}", principal, message);
+        return new RejectedException(message, retryAfter);
+    }
+
+    private static void countUserRejection(String principal) {
+        AtomicLong userRejectionCount = userRejectionCounts.get(principal);
+        if (userRejectionCount == null) {
+            if (userRejectionCounts.size() >= MAX_TRACKED_USERS) {
+                return;
+            }
+            userRejectionCount = userRejectionCounts.computeIfAbsent(principal, key -> new AtomicLong());
+        }
+        userRejectionCount.incrementAndGet();
+    }
+
+    /**
+     * New dispatcher rejected. Over an admission limit.
+     */
+    public static final class RejectedException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        private final int retryAfterSeconds;
+
+        private RejectedException(String message, int retryAfterSeconds) {
+            super(message);
+            this.retryAfterSeconds = retryAfterSeconds;
+        }
+
+        /**
+         * Get the number of seconds the client should wait before retrying.
+         * @return The number of seconds the client should wait before retrying.
+         */
+        public int getRetryAfterSeconds() {
+            return retryAfterSeconds;
+        }
+    }
+}
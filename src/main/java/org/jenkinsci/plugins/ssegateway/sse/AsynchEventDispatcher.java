@@ -33,6 +33,8 @@ import jakarta.servlet.AsyncListener;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -54,48 +56,119 @@ class AsynchEventDispatcher extends EventDispatcher {
     @SuppressFBWarnings(value = "SE_TRANSIENT_FIELD_NOT_RESTORED", justification = "Doesn't make sense to persist it")
     private transient final Lock asyncContextLock = new ReentrantLock();
 
+    private static final AtomicInteger openStreamCount = new AtomicInteger();
+    private static final AtomicLong handoverCount = new AtomicLong();
+
     @Override
     public void start(HttpServletRequest request, HttpServletResponse response) {
         final AsynchEventDispatcher dispatcher = this;
-        
-        asyncContextLock.lock();
-        try {
-            asyncContext = request.startAsync(request, response);
-            asyncContext.setTimeout(TIMEOUT);
-            asyncContext.addListener(new AsyncListener() {
-                @Override
-                public void onTimeout(AsyncEvent event) throws IOException {
-                    asyncContextLock.lock();
-                    try {
-                        LOGGER.debug("Async dispatcher 'onTimeout' event: {}", event);
-                        if (event.getAsyncContext() == asyncContext) {
-                            // nulling asyncContext will force messages to the retry
-                            // queue until we restart the connection.
-                            asyncContext = null;
-                        }
-                        event.getAsyncContext().complete();
-                    } finally {
-                        asyncContextLock.unlock();
-                    }
-                }
-                @Override
-                public void onStartAsync(AsyncEvent event) throws IOException {
-                    LOGGER.debug("Async dispatcher 'onStartAsync' event: {}", event);
+        final AsyncContext newContext = request.startAsync(request, response);
+
+        newContext.setTimeout(TIMEOUT);
+        newContext.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent event) throws IOException {
+                asyncContextLock.lock();
+                try {
+                    LOGGER.debug("Async dispatcher 'onTimeout' event: {}", event);
+                    // Forces messages to the retry queue until we restart the connection.
+                    streamEnded(event.getAsyncContext());
+                    event.getAsyncContext().complete();
+                } finally {
+                    asyncContextLock.unlock();
                 }
-                @Override
-                public void onError(AsyncEvent event) throws IOException {
-                    LOGGER.warn("Async dispatcher 'onError' event: {}", dispatcher);
+            }
+            @Override
+            public void onStartAsync(AsyncEvent event) throws IOException {
+                LOGGER.debug("Async dispatcher 'onStartAsync' event: {}", event);
+            }
+            @Override
+            public void onError(AsyncEvent event) throws IOException {
+                LOGGER.warn("Async dispatcher 'onError' event: {}", dispatcher);
+                asyncContextLock.lock();
+                try {
+                    streamEnded(event.getAsyncContext());
+                } finally {
+                    asyncContextLock.unlock();
                 }
-                @Override
-                public void onComplete(AsyncEvent event) throws IOException {
-                    LOGGER.debug("Async dispatcher 'onComplete' event: {}", event);
+            }
+            @Override
+            public void onComplete(AsyncEvent event) throws IOException {
+                LOGGER.debug("Async dispatcher 'onComplete' event: {}", event);
+                openStreamCount.decrementAndGet();
+                asyncContextLock.lock();
+                try {
+                    streamEnded(event.getAsyncContext());
+                } finally {
+                    asyncContextLock.unlock();
                 }
-            });
-        } finally {
-            asyncContextLock.unlock();
+            }
+        });
+        openStreamCount.incrementAndGet();
+
+        // Hand over to the new stream. Done under the dispatcher monitor (see dispatchEvent)
+        // so that no event is written to the old stream once the new one is in place. Events
+        // that could not be written to the old stream are in the retry queue, and get sent
+        // on the new stream once it's open (see EventDispatcherFactory).
+        AsyncContext oldContext;
+        synchronized (this) {
+            // Takes over from a WebSocket etc. too.
+            closeEventStream();
+            asyncContextLock.lock();
+            try {
+                oldContext = asyncContext;
+                asyncContext = newContext;
+                onStreamOpened();
+            } finally {
+                asyncContextLock.unlock();
+            }
+        }
+
+        if (oldContext != null) {
+            // The client reconnected without the old stream having timed out (e.g. a flapping
+            // network). Complete the old stream now, rather than have it hold on to the
+            // connection (and its buffers) until it times out.
+            handoverCount.incrementAndGet();
+            LOGGER.debug("Async dispatcher {} handing over to a new stream. Completing the old stream.", this);
+            try {
+                oldContext.complete();
+            } catch (IllegalStateException e) {
+                // Already completed e.g. timed out while we were handing over.
+                LOGGER.debug("Old stream already completed.", e);
+            }
         }
     }
 
+    /**
+     * The supplied stream has ended. If it's the current stream, the dispatcher is no longer
+     * connected. Ignored for an old stream (see handover in {@link #start}).
+     * Call with the {@link #asyncContextLock} held.
+     * @param context The stream's async context.
+     */
+    private void streamEnded(AsyncContext context) {
+        if (context == asyncContext) {
+            asyncContext = null;
+            onStreamClosed();
+        }
+    }
+
+    /**
+     * Get the number of open async SSE streams i.e. started but not yet completed.
+     * @return The number of open streams.
+     */
+    static int getOpenStreamCount() {
+        return openStreamCount.get();
+    }
+
+    /**
+     * Get the number of times a dispatcher's stream was handed over to a new listen request
+     * before the old stream was completed.
+     * @return The number of stream handovers.
+     */
+    static long getHandoverCount() {
+        return handoverCount.get();
+    }
+
     @Override
     public HttpServletResponse getResponse() {
         if (asyncContext == null) {
@@ -104,8 +177,31 @@ class AsynchEventDispatcher extends EventDispatcher {
         return (HttpServletResponse) asyncContext.getResponse();
     }
 
+    @Override
+    void closeResponseStream() {
+        AsyncContext oldContext;
+        asyncContextLock.lock();
+        try {
+            // Nulled first, so the stream callbacks ignore it (see streamEnded).
+            oldContext = asyncContext;
+            asyncContext = null;
+        } finally {
+            asyncContextLock.unlock();
+        }
+        if (oldContext != null) {
+            try {
+                oldContext.complete();
+            } catch (IllegalStateException e) {
+                LOGGER.debug("Old stream already completed.", e);
+            }
+        }
+    }
+
     @Override
     public void stop() {
-        asyncContext.complete();
+        AsyncContext context = asyncContext;
+        if (context != null) {
+            context.complete();
+        }
     }
 }
@@ -23,6 +23,7 @@
  */
 package org.jenkinsci.plugins.ssegateway.sse;
 
+import edu.umd.cs.findbugs.annotations.CheckForNull;
 import edu.umd.cs.findbugs.annotations.NonNull;
 import hudson.Extension;
 import hudson.model.User;
@@ -31,6 +32,7 @@ import hudson.util.CopyOnWriteMap;
 import hudson.util.NamingThreadFactory;
 import jenkins.model.Jenkins;
 import jenkins.util.HttpSessionListener;
+import net.sf.json.JSONException;
 import net.sf.json.JSONObject;
 import org.acegisecurity.Authentication;
 import org.jenkinsci.plugins.pubsub.ChannelSubscriber;
@@ -54,14 +56,18 @@ import jakarta.servlet.http.HttpSessionEvent;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentLinkedDeque;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+import java.util.function.Predicate;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
@@ -98,8 +104,47 @@ public abstract class EventDispatcher implements Serializable {
     @edu.umd.cs.findbugs.annotations.SuppressFBWarnings("MS_SHOULD_BE_FINAL")
     public static /* not final */ long TIMEOUT_DISPATCHERFAIL = Integer.getInteger(EventDispatcher.class.getName() + ".TIMEOUT_DISPATCHERFAIL", 15*60) * 1000;
 
+    // set how long a disconnected dispatcher is kept for its client to reconnect, before its
+    // subscriptions and retry state are torn down - default 2min - 120 sec - 120000 msec. 0 disables.
+    @edu.umd.cs.findbugs.annotations.SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long RECONNECT_GRACE_PERIOD = Integer.getInteger(EventDispatcher.class.getName() + ".RECONNECT_GRACE_PERIOD", 2*60) * 1000L;
+    // set max number of dispatchers per HTTP session - default 32. The least recently seen are evicted first. 0 disables.
+    @edu.umd.cs.findbugs.annotations.SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_DISPATCHERS_PER_SESSION = Integer.getInteger(EventDispatcher.class.getName() + ".MAX_DISPATCHERS_PER_SESSION", 32);
+    // set max number of sessionless (stream token) dispatchers per user - default 256. The least recently seen are evicted first. 0 disables.
+    @edu.umd.cs.findbugs.annotations.SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int MAX_SESSIONLESS_DISPATCHERS_PER_USER = Integer.getInteger(EventDispatcher.class.getName() + ".MAX_SESSIONLESS_DISPATCHERS_PER_USER", 256);
+
+    // set from the stream callbacks (see onStreamOpened and onStreamClosed), so that
+    // dispatching to a disconnected client never touches the servlet response.
+    // Not guarded by the dispatcher monitor, so that stream callbacks never wait on a dispatchEvent.
+    private transient volatile ConnectionState connectionState = ConnectionState.RECONNECTING;
+    private static final AtomicReferenceFieldUpdater<EventDispatcher, ConnectionState> CONNECTION_STATE =
+            AtomicReferenceFieldUpdater.newUpdater(EventDispatcher.class, ConnectionState.class, "connectionState");
+    // the attached non SSE stream, if any. Events are written to it instead of the SSE response.
+    private transient volatile EventStream eventStream;
+    private static final AtomicReferenceFieldUpdater<EventDispatcher, EventStream> EVENT_STREAM =
+            AtomicReferenceFieldUpdater.newUpdater(EventDispatcher.class, EventStream.class, "eventStream");
+    // the last event stream attached, kept after it's detached (e.g. so that a long-poll client's
+    // unacknowledged events are still sent on its next poll). Dropped when an SSE stream takes over
+    // and on dispose, so that it never outlives the dispatcher.
+    private transient volatile EventStream lastStream;
+    private static final AtomicReferenceFieldUpdater<EventDispatcher, EventStream> LAST_STREAM =
+            AtomicReferenceFieldUpdater.newUpdater(EventDispatcher.class, EventStream.class, "lastStream");
+    // time the client was last seen i.e. last connect, listen, configure or ping request.
+    private transient volatile long lastSeen = System.currentTimeMillis();
+    // true from connect until the next listen i.e. not set on EventSource reconnects.
+    private transient volatile boolean awaitingListen = false;
+    // true while a (staggered) reload directive is scheduled.
+    private transient boolean reloadPending = false;
+    // true if a reload directive fell due while the client was not connected (e.g. reconnecting).
+    // Sent once the client's next stream is open (see dispatchUndeliveredReload).
+    private transient boolean reloadUndelivered = false;
+    // true once counted by AdmissionControl, until disposed of.
+    private transient boolean admitted = false;
+
     // Lists of events that need to be retried on the next reconnect.
-    transient Queue<Retry> retryQueue = new ConcurrentLinkedQueue<>();
+    transient Deque<Retry> retryQueue = new ConcurrentLinkedDeque<>();
     
     public EventDispatcher() {
         this.bus = PubsubBus.getBus();
@@ -118,6 +163,217 @@ public abstract class EventDispatcher implements Serializable {
         return Collections.unmodifiableMap(subscribers);
     }
 
+    /**
+     * Get the filters this dispatcher is subscribed with. A filter subscribed
+     * more than once appears in the list once per subscribe.
+     * @return The subscription filters.
+     */
+    public @NonNull List<EventFilter> getSubscriptionFilters() {
+        List<EventFilter> filters = new ArrayList<>();
+        for (Map.Entry<EventFilter, ChannelSubscriber> entry : subscribers.entrySet()) {
+            SSEChannelSubscriber subscriber = (SSEChannelSubscriber) entry.getValue();
+            for (int i = 0; i < subscriber.numSubscribers; i++) {
+                filters.add(entry.getKey());
+            }
+        }
+        return filters;
+    }
+
+    /**
+     * Get the digest of this dispatcher's subscriptions.
+     * See {@link SubscriptionDigest}.
+     * @return The subscription digest.
+     */
+    public @NonNull String getSubscriptionDigest() {
+        return SubscriptionDigest.digest(getSubscriptionFilters());
+    }
+
+    /**
+     * Is the client connected to this dispatcher i.e. is there an open SSE channel.
+     * @return {@code true} if the client is connected, otherwise {@code false}.
+     */
+    public boolean isConnected() {
+        return (getConnectionState() == ConnectionState.CONNECTED);
+    }
+
+    /**
+     * Get the dispatcher's connection state.
+     * @return The connection state.
+     */
+    public @NonNull ConnectionState getConnectionState() {
+        ConnectionState state = connectionState;
+        // null if deserialized i.e. the stream did not survive.
+        return (state != null ? state : ConnectionState.RECONNECTING);
+    }
+
+    /**
+     * A new SSE stream has been opened for the client.
+     */
+    void onStreamOpened() {
+        ConnectionState state;
+        do {
+            state = connectionState;
+            if (state == ConnectionState.CLOSED) {
+                return;
+            }
+        } while (!CONNECTION_STATE.compareAndSet(this, state, ConnectionState.CONNECTED));
+    }
+
+    /**
+     * The client's SSE stream has ended (completed, timed out or failed). Events go
+     * straight to the retry queue until the client reconnects.
+     */
+    void onStreamClosed() {
+        CONNECTION_STATE.compareAndSet(this, ConnectionState.CONNECTED, ConnectionState.RECONNECTING);
+    }
+
+    /**
+     * Attach a non SSE event stream to the dispatcher e.g. a WebSocket. Any other
+     * stream (SSE response or event stream) is closed. See {@link EventStream}.
+     * @param stream The event stream.
+     */
+    public void attachStream(@NonNull EventStream stream) {
+        EventStream oldStream;
+        // Under the dispatcher monitor (see dispatchEvent), as for an SSE stream handover.
+        synchronized (this) {
+            closeResponseStream();
+            oldStream = EVENT_STREAM.getAndSet(this, stream);
+            EventStream oldLastStream = LAST_STREAM.getAndSet(this, stream);
+            if (oldStream == null) {
+                oldStream = oldLastStream;
+            }
+            onStreamOpened();
+        }
+        if (oldStream != null && oldStream != stream) {
+            oldStream.close();
+        }
+    }
+
+    /**
+     * Get the last event stream attached to the dispatcher, even if it has since been
+     * detached (see {@link #detachStream(EventStream)}) e.g. so that a transport can pick
+     * up where it left off. {@code null} once an SSE stream has taken over, or once the
+     * dispatcher is disposed of.
+     * @return The last event stream attached, or {@code null} if none.
+     */
+    public @CheckForNull EventStream getLastStream() {
+        return lastStream;
+    }
+
+    /**
+     * Detach an event stream from the dispatcher e.g. the WebSocket closed.
+     * Does nothing if the stream is no longer attached.
+     * @param stream The event stream.
+     */
+    public void detachStream(@NonNull EventStream stream) {
+        if (EVENT_STREAM.compareAndSet(this, stream, null)) {
+            onStreamClosed();
+        }
+    }
+
+    /**
+     * Close the attached event stream, if any. Called when an SSE stream takes over.
+     */
+    void closeEventStream() {
+        EventStream oldStream = EVENT_STREAM.getAndSet(this, null);
+        EventStream oldLastStream = LAST_STREAM.getAndSet(this, null);
+        if (oldStream != null) {
+            oldStream.close();
+        }
+        if (oldLastStream != null && oldLastStream != oldStream) {
+            // Detached, but still holding on to state e.g. unacknowledged events.
+            oldLastStream.close();
+        }
+    }
+
+    /**
+     * Close the SSE response stream, if any. Called when an event stream takes over.
+     */
+    void closeResponseStream() {
+        // override as needed
+    }
+
+    /**
+     * Record that the client was seen e.g. made a request for this dispatcher.
+     */
+    void touch() {
+        lastSeen = System.currentTimeMillis();
+    }
+
+    /**
+     * Get the time the client was last seen.
+     * @return The time the client was last seen.
+     */
+    public long getLastSeen() {
+        return lastSeen;
+    }
+
+    /**
+     * Mark the dispatcher as connected, but not yet listening. Subscriptions carried
+     * on a listen request are only applied on the first listen after a connect, and
+     * not on later EventSource reconnects of the same listen request.
+     */
+    public void setAwaitingListen() {
+        awaitingListen = true;
+    }
+
+    /**
+     * Is this the first listen since connect. Clears the flag.
+     * @return {@code true} if this is the first listen since connect, otherwise {@code false}.
+     */
+    boolean takeAwaitingListen() {
+        boolean wasAwaitingListen = awaitingListen;
+        awaitingListen = false;
+        return wasAwaitingListen;
+    }
+
+    /**
+     * Tear down the dispatcher's subscriptions and retry state, after
+     * it has been dropped from the {@link EventDispatcherRegistry}.
+     */
+    void dispose() {
+        connectionState = ConnectionState.CLOSED;
+        // e.g. complete a parked poll, so that the client finds out.
+        closeEventStream();
+        retryQueue.clear();
+        unsubscribeAll();
+        synchronized (this) {
+            if (admitted) {
+                admitted = false;
+                AdmissionControl.releaseDispatcher(getPrincipal());
+            }
+        }
+    }
+
+    /**
+     * Admit the dispatcher. See {@link AdmissionControl}.
+     * @throws AdmissionControl.RejectedException The dispatcher is not admitted.
+     */
+    void admit() throws AdmissionControl.RejectedException {
+        admit(principal -> false);
+    }
+
+    /**
+     * Admit the dispatcher. See {@link AdmissionControl}.
+     * @param reclaim Releases a disconnected dispatcher's slot, if over a limit.
+     * See {@link AdmissionControl#admitDispatcher(String, Predicate)}.
+     * @throws AdmissionControl.RejectedException The dispatcher is not admitted.
+     */
+    synchronized void admit(@NonNull Predicate<String> reclaim) throws AdmissionControl.RejectedException {
+        if (!admitted) {
+            AdmissionControl.admitDispatcher(getPrincipal(), reclaim);
+            admitted = true;
+        }
+    }
+
+    /**
+     * Get the name of the principal the dispatcher was created for.
+     * @return The principal name.
+     */
+    public @NonNull String getPrincipal() {
+        return authentication.getName();
+    }
+
     public final String getId() {
         if (id == null) {
             throw new IllegalStateException("Call to getId before the ID was set.");
@@ -169,6 +425,18 @@ public abstract class EventDispatcher implements Serializable {
      *      false if the response is not writable
      */
     public synchronized boolean dispatchEvent(String name, String data) throws IOException, ServletException {
+        if (getConnectionState() != ConnectionState.CONNECTED) {
+            checkDispatcherFailTimeout("response");
+            // The SSE channel is not connected. Event will go to retry queue,
+            // without touching the (completed) response.
+            return false;
+        }
+
+        EventStream stream = eventStream;
+        if (stream != null) {
+            return dispatchToStream(stream, name, data);
+        }
+
         HttpServletResponse response = null;
         // if the browser has been disconnected or for any reason connection cut
         // AsynchEventDispatcher has an AsyncListener which call asyncContext#complete
@@ -184,6 +452,8 @@ public abstract class EventDispatcher implements Serializable {
         }
 
         if (response == null) {
+            // Closed between the state check and here. The stream callback will catch up.
+            onStreamClosed();
             checkDispatcherFailTimeout("response");
             // The SSE channel is not connected or is reconnecting after timeout.
             // Event will go to retry queue.
@@ -196,11 +466,6 @@ public abstract class EventDispatcher implements Serializable {
         
         PrintWriter writer = response.getWriter();
         
-        if (writer.checkError()) {
-            checkDispatcherFailTimeout("writer.checkError");
-            return false;
-        }
-        
         if (name != null) {
             writer.write("event: " + name + "\n");
         }
@@ -217,12 +482,31 @@ public abstract class EventDispatcher implements Serializable {
             }
             timestamp_dispatchEventOK = System.currentTimeMillis();
         } else {
+            // The client has gone. No point writing to this stream again.
+            onStreamClosed();
             checkDispatcherFailTimeout("writer.write");
         }
 
         return (!writerStatus);
     }
     
+    private boolean dispatchToStream(EventStream stream, String name, String data) {
+        boolean written;
+        try {
+            written = stream.write(this, name, data);
+        } catch (IOException e) {
+            LOGGER.debug(String.format("SSE dispatcher %s error writing to event stream.", this), e);
+            written = false;
+        }
+        if (written) {
+            timestamp_dispatchEventOK = System.currentTimeMillis();
+        } else {
+            detachStream(stream);
+            checkDispatcherFailTimeout("stream.write");
+        }
+        return written;
+    }
+
     public void stop() {
         // override as needed
     }
@@ -242,10 +526,17 @@ public abstract class EventDispatcher implements Serializable {
         if (channelName != null) {
             SSEChannelSubscriber subscriber = (SSEChannelSubscriber) subscribers.get(filter);
             if (subscriber == null) {
+                if (!AdmissionControl.admitSubscription(this, subscribers.size())) {
+                    LOGGER.warn("Rejected SSE subscription on channel '{}' for dispatcher {}. Max {} subscriptions per dispatcher.",
+                            channelName, this, AdmissionControl.MAX_SUBSCRIPTIONS_PER_DISPATCHER);
+                    return false;
+                }
+                // Subscribe with the shared filter instance, rather than holding a copy per dispatcher.
+                EventFilter sharedFilter = EventFilters.intern(filter);
                 subscriber = new SSEChannelSubscriber();
 
-                bus.subscribe(channelName, subscriber, authentication, filter);
-                subscribers.put(filter, subscriber);
+                bus.subscribe(channelName, subscriber, authentication, sharedFilter);
+                subscribers.put(sharedFilter, subscriber);
             } else {
                 // Already subscribed to this event.
             }
@@ -305,6 +596,11 @@ public abstract class EventDispatcher implements Serializable {
             String channelName = filter.getChannelName();
 
             bus.unsubscribe(channelName, subscriber);
+            // Keep the EventHistoryStore channel subscriber counts in line with
+            // the individual unsubscribe calls, so idle channels get reclaimed.
+            for (int i = 0; i < subscriber.numSubscribers; i++) {
+                EventHistoryStore.onChannelUnsubscribe(channelName);
+            }
         }
         subscribers.clear();
     }
@@ -345,13 +641,90 @@ public abstract class EventDispatcher implements Serializable {
         }
     }
 
-    private void dispatchReload() {
+    void dispatchReload() {
         retryQueue.clear();
+
+        // Spread the reloads (full page loads) e.g. after a restart, when lots
+        // of clients are told to reload at the same time. See ReconnectControl.
+        long delay = ReconnectControl.getReloadDelay();
+        if (delay <= 0) {
+            sendReload(false);
+            return;
+        }
+        synchronized (this) {
+            if (reloadPending) {
+                return;
+            }
+            reloadPending = true;
+        }
+        ReconnectControl.onReloadScheduled();
+        try {
+            scheduledExecutorService.schedule(() -> sendReload(true), delay, TimeUnit.MILLISECONDS);
+        } catch (Exception e) {
+            LOGGER.info(String.format("EventDispatcher (%s) - dispatchReload - Error scheduling reload.", this), e);
+            sendReload(true);
+        }
+    }
+
+    private void sendReload(boolean scheduled) {
+        synchronized (this) {
+            if (scheduled) {
+                reloadPending = false;
+            }
+            // Kept for the next stream if the client is not connected right now.
+            reloadUndelivered = !tryDispatchReload();
+        }
+        ReconnectControl.onReloadSent(scheduled);
+    }
+
+    /**
+     * Send the reload directive that fell due while the client was not connected, if any.
+     * Called once the client's new stream is open.
+     */
+    synchronized void dispatchUndeliveredReload() {
+        if (reloadUndelivered) {
+            reloadUndelivered = !tryDispatchReload();
+        }
+    }
+
+    /**
+     * Is a reload directive waiting for the client to connect.
+     * @return {@code true} if a reload directive is waiting, otherwise {@code false}.
+     */
+    synchronized boolean isReloadUndelivered() {
+        return reloadUndelivered;
+    }
+
+    private synchronized boolean tryDispatchReload() {
+        if (getConnectionState() == ConnectionState.CLOSED) {
+            // Disposed of. Nothing to deliver to.
+            return true;
+        }
         try {
-            dispatchEvent("reload", null);
+            return dispatchEvent("reload", null);
         } catch (Exception e) {
             LOGGER.warn("Unable to send reload event to client.", e);
+            return false;
+        }
+    }
+
+    /**
+     * Send the client a randomized SSE <code>retry:</code> hint (see {@link ReconnectControl}),
+     * telling the EventSource how long to wait before reconnecting if the connection drops.
+     * @return false if the response is not writable
+     * @throws IOException io-exception
+     */
+    synchronized boolean dispatchRetryHint() throws IOException {
+        if (getConnectionState() != ConnectionState.CONNECTED || eventStream != null) {
+            return false;
+        }
+        HttpServletResponse response = getResponse();
+        if (response == null) {
+            return false;
         }
+        PrintWriter writer = response.getWriter();
+        writer.write("retry: " + ReconnectControl.getRetryHint() + "\n\n");
+        return !writer.checkError();
     }
 
     /**
@@ -391,7 +764,9 @@ public abstract class EventDispatcher implements Serializable {
             // that it needs to reload the page.
             dispatchReload();
         } else {
-            // Event was added to the queue.
+            // Event was added to the queue. Make sure the store keeps
+            // it (it might only be holding it if lazily persisting).
+            EventHistoryStore.onRetryQueued(message);
             // If it was the first event -> start the retry loop timer
             if (isFirstEvent) {
                 scheduleRetryQueueProcessing(RETRY_QUEUE_PROCESSING_DELAY);
@@ -399,6 +774,69 @@ public abstract class EventDispatcher implements Serializable {
         }
     }
 
+    /**
+     * Put events back on the retry queue that an event stream accepted (see {@link EventStream#write}),
+     * but never delivered e.g. they were still queued on the stream when it was closed.
+     * <p>
+     * They were written before anything now on the retry queue, so they go on the front of it, in
+     * the order supplied. Only channel events can be retried. Others (e.g. "pingback") are dropped.
+     *
+     * @param undelivered The undelivered events' data, oldest first.
+     */
+    public synchronized void requeueUndelivered(@NonNull List<String> undelivered) {
+        if (getConnectionState() == ConnectionState.CLOSED) {
+            return;
+        }
+        List<Message> messages = new ArrayList<>();
+        for (String data : undelivered) {
+            Message message = toChannelMessage(data);
+            if (message != null) {
+                messages.add(message);
+            }
+        }
+        if (messages.isEmpty()) {
+            return;
+        }
+        validateDispatcher();
+        if (subscribers.isEmpty()) {
+            // As for addToRetryQueue.
+            dispatchReload();
+            return;
+        }
+        boolean isFirstEvent = retryQueue.isEmpty();
+        for (int i = messages.size() - 1; i >= 0; i--) {
+            retryQueue.addFirst(new Retry(messages.get(i)));
+        }
+        for (Message message : messages) {
+            // Delivered to the stream, so never pinned (see addToRetryQueue).
+            EventHistoryStore.onRetryQueued(message);
+        }
+        if (isFirstEvent) {
+            scheduleRetryQueueProcessing(RETRY_QUEUE_PROCESSING_DELAY);
+        }
+    }
+
+    private static @CheckForNull Message toChannelMessage(@CheckForNull String data) {
+        if (data == null) {
+            return null;
+        }
+        JSONObject json;
+        try {
+            json = JSONObject.fromObject(data);
+        } catch (JSONException e) {
+            // e.g. "ack"
+            return null;
+        }
+        SimpleMessage message = new SimpleMessage();
+        for (Object key : json.keySet()) {
+            message.set(key.toString(), json.getString(key.toString()));
+        }
+        if (message.getChannelName() == null || message.getEventUUID() == null) {
+            return null;
+        }
+        return message;
+    }
+
     synchronized void processRetries() {
         if (!isRetryLoopActive) {
             isRetryLoopActive = true;
@@ -411,6 +849,12 @@ public abstract class EventDispatcher implements Serializable {
                         String eventJSON = EventHistoryStore.getChannelEvent(retry.channelName, retry.eventUUID);
 
                         if (eventJSON == null) {
+                            if (EventHistoryStore.isEventDropped(retry.channelName, retry.eventUUID)) {
+                                // Dropped from the store by the channel's retention caps, so it is never
+                                // going to land there. No point waiting on it. The client has missed it.
+                                dispatchReload(); // This clears the queue too.
+                                return;
+                            }
                             // The event is not in the store. This can be simply because the event has
                             // not yet arrived at the store and been stored. It might need another
                             // moment or two to get there.
@@ -481,7 +925,10 @@ public abstract class EventDispatcher implements Serializable {
     }
 
     private void doDispatch(@NonNull Message message) {
-        if (!retryQueue.isEmpty()) {
+        if (!isConnected()) {
+            // Straight to the retry queue. Sent when the client reconnects.
+            addToRetryQueue(message);
+        } else if (!retryQueue.isEmpty()) {
             // We do not attempt to dispatch events directly
             // while there are events sitting in the retryQueue.
             // The retryQueue must be empty.
@@ -522,14 +969,17 @@ public abstract class EventDispatcher implements Serializable {
         @Override
         public void sessionDestroyed(HttpSessionEvent httpSessionEvent) {
             try {
-                Map<String, EventDispatcher> dispatchers = EventDispatcherFactory.getDispatchers(httpSessionEvent.getSession());
+                Map<String, EventDispatcher> dispatchers = EventDispatcherRegistry.removeSession(httpSessionEvent.getSession());
+                if (dispatchers == null) {
+                    return;
+                }
                 try {
                     for (EventDispatcher dispatcher : dispatchers.values()) {
                         try {
-                            dispatcher.unsubscribeAll();
+                            dispatcher.dispose();
                         } catch (Exception e) {
                             if(LOGGER.isDebugEnabled()){
-                                LOGGER.debug("Error during unsubscribeAll() for dispatcher " + dispatcher.getId() + ".", e);
+                                LOGGER.debug("Error during dispose() for dispatcher " + dispatcher.getId() + ".", e);
                             }
                         }
                     }
@@ -542,10 +992,10 @@ public abstract class EventDispatcher implements Serializable {
         }
     }
     
-    private static class Retry {
+    static class Retry {
         private final long timestamp = System.currentTimeMillis();
         private final String channelName;
-        private final String eventUUID;
+        final String eventUUID;
 
         private Retry(@NonNull Message message) {
             // We want to keep the memory footprint of the retryQueue
@@ -577,4 +1027,23 @@ public abstract class EventDispatcher implements Serializable {
             return (System.currentTimeMillis() - timestamp < 10000);
         }
     }
+
+    /**
+     * Dispatcher connection state.
+     */
+    public enum ConnectionState {
+        /**
+         * The client has an open SSE stream.
+         */
+        CONNECTED,
+        /**
+         * No open SSE stream. Waiting for the client to connect (or reconnect).
+         * Events go to the retry queue.
+         */
+        RECONNECTING,
+        /**
+         * Disposed of. See {@link EventDispatcherRegistry}.
+         */
+        CLOSED
+    }
 }
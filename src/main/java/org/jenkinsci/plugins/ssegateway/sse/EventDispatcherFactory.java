@@ -26,6 +26,8 @@ package org.jenkinsci.plugins.ssegateway.sse;
 import hudson.security.csrf.CrumbIssuer;
 import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.ssegateway.SubscriptionConfigQueue;
 import org.jenkinsci.plugins.ssegateway.Util;
 import org.kohsuke.accmod.Restricted;
 import org.kohsuke.accmod.restrictions.NoExternalUse;
@@ -37,8 +39,10 @@ import edu.umd.cs.findbugs.annotations.NonNull;
 import jakarta.servlet.http.HttpServletRequest;
 import jakarta.servlet.http.HttpServletResponse;
 import jakarta.servlet.http.HttpSession;
-import java.util.HashMap;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Predicate;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
@@ -65,66 +69,179 @@ public class EventDispatcherFactory {
     }
     
     public static EventDispatcher start(@NonNull String clientId, @NonNull HttpServletRequest request, @NonNull HttpServletResponse response) {
+        return start(clientId, request, response, Collections.emptyList());
+    }
+
+    /**
+     * Start a session dispatcher.
+     * @param clientId The dispatcher client Id.
+     * @param request The listen request.
+     * @param response The listen response.
+     * @param listenSubscriptions Subscriptions carried on the listen request. Only applied on the
+     * first listen after a connect (see {@link EventDispatcher#setAwaitingListen()}).
+     * @return The dispatcher.
+     */
+    public static EventDispatcher start(@NonNull String clientId, @NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                        @NonNull List<EventFilter> listenSubscriptions) {
+        return start(clientId, request.getSession(), request, listenSubscriptions,
+                dispatcher -> openResponseStream(dispatcher, request, response));
+    }
+
+    /**
+     * Start a session dispatcher on a non SSE event stream e.g. a WebSocket.
+     * @param clientId The dispatcher client Id.
+     * @param session The client's HTTP session.
+     * @param listenSubscriptions Subscriptions carried on the stream request. Only applied on the
+     * first listen after a connect (see {@link EventDispatcher#setAwaitingListen()}).
+     * @param stream The event stream.
+     * @return The dispatcher.
+     */
+    public static EventDispatcher start(@NonNull String clientId, @NonNull HttpSession session,
+                                        @NonNull List<EventFilter> listenSubscriptions, @NonNull EventStream stream) {
+        return start(clientId, session, null, listenSubscriptions, dispatcher -> dispatcher.attachStream(stream));
+    }
+
+    private static EventDispatcher start(@NonNull String clientId, @NonNull HttpSession session, @CheckForNull HttpServletRequest request,
+                                         @NonNull List<EventFilter> listenSubscriptions, @NonNull StreamOpener opener) {
         try {
-            HttpSession session = request.getSession();
             EventDispatcher dispatcher = EventDispatcherFactory.getDispatcher(clientId, session);
+            boolean evicted = false;
             
             if (dispatcher == null) {
+                evicted = EventDispatcherRegistry.wasEvicted(session, clientId);
                 LOGGER.debug(String.format("Unknown dispatcher client Id '%s' on HTTP session '%s'. Creating a new one. " +
                         "Make sure you are calling 'connect' before 'listen' and that HTTP sessions are being maintained between 'connect' and 'configure' calls. " +
                         "SSE client reconnects will not work - probably fine if running in non-browser/test mode.", clientId, session.getId()));
                 dispatcher = EventDispatcherFactory.newDispatcher(clientId, session);
             }
 
-            dispatcher.start(request, response);
-            dispatcher.setDefaultHeaders();
+            return start(dispatcher, evicted, session, null, request, listenSubscriptions, opener);
+        } catch (AdmissionControl.RejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unexpected Exception.", e);
+        }
+    }
+
+    /**
+     * Start a sessionless dispatcher, identified by the supplied stream token.
+     * @param streamToken The client's (verified) stream token.
+     * @param request The listen request.
+     * @param response The listen response.
+     * @param listenSubscriptions Subscriptions carried on the listen request. Only applied on the
+     * first listen after a connect (see {@link EventDispatcher#setAwaitingListen()}).
+     * @return The dispatcher.
+     */
+    public static EventDispatcher start(@NonNull StreamToken streamToken, @NonNull HttpServletRequest request, @NonNull HttpServletResponse response,
+                                        @NonNull List<EventFilter> listenSubscriptions) {
+        return start(streamToken, request, listenSubscriptions, dispatcher -> openResponseStream(dispatcher, request, response));
+    }
+
+    /**
+     * Start a sessionless dispatcher on a non SSE event stream e.g. a WebSocket.
+     * @param streamToken The client's (verified) stream token.
+     * @param listenSubscriptions Subscriptions carried on the stream request. Only applied on the
+     * first listen after a connect (see {@link EventDispatcher#setAwaitingListen()}).
+     * @param stream The event stream.
+     * @return The dispatcher.
+     */
+    public static EventDispatcher start(@NonNull StreamToken streamToken, @NonNull List<EventFilter> listenSubscriptions,
+                                        @NonNull EventStream stream) {
+        return start(streamToken, null, listenSubscriptions, dispatcher -> dispatcher.attachStream(stream));
+    }
+
+    private static EventDispatcher start(@NonNull StreamToken streamToken, @CheckForNull HttpServletRequest request,
+                                         @NonNull List<EventFilter> listenSubscriptions, @NonNull StreamOpener opener) {
+        try {
+            EventDispatcher dispatcher = EventDispatcherFactory.getDispatcher(streamToken);
+            boolean evicted = false;
+
+            if (dispatcher == null) {
+                evicted = EventDispatcherRegistry.wasEvicted(streamToken);
+                LOGGER.debug("Unknown dispatcher for stream token {}. Creating a new one.", streamToken);
+                dispatcher = EventDispatcherFactory.newDispatcher(streamToken);
+            }
+
+            return start(dispatcher, evicted, null, streamToken, request, listenSubscriptions, opener);
+        } catch (AdmissionControl.RejectedException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IllegalStateException("Unexpected Exception.", e);
+        }
+    }
 
-            JSONObject openData = new JSONObject();
+    private static void openResponseStream(@NonNull EventDispatcher dispatcher, @NonNull HttpServletRequest request,
+                                           @NonNull HttpServletResponse response) throws Exception {
+        dispatcher.start(request, response);
+        dispatcher.setDefaultHeaders();
+        // Spread the EventSource reconnects if this connection is dropped.
+        dispatcher.dispatchRetryHint();
+    }
+
+    private static EventDispatcher start(@NonNull EventDispatcher dispatcher, boolean evicted, @CheckForNull HttpSession session,
+                                         @CheckForNull StreamToken streamToken, @CheckForNull HttpServletRequest request,
+                                         @NonNull List<EventFilter> listenSubscriptions, @NonNull StreamOpener opener) throws Exception {
+        boolean firstListen = dispatcher.takeAwaitingListen();
+        opener.open(dispatcher);
 
-            openData.put("dispatcherId", dispatcher.getId());
-            openData.put("dispatcherInst", System.identityHashCode(dispatcher));
+        JSONObject openData = new JSONObject();
 
-            if (Util.isTestEnv()) {
+        openData.put("dispatcherId", dispatcher.getId());
+        openData.put("dispatcherInst", System.identityHashCode(dispatcher));
+
+        if (Util.isTestEnv()) {
+            if (session != null) {
                 openData.putAll(Util.getSessionInfo(session));
+            }
 
-                // Crumb needed for testing because we use it to fire off some
-                // test builds via the POST API.
-                Jenkins jenkins = Jenkins.get();
-                CrumbIssuer crumbIssuer = jenkins.getCrumbIssuer();
-                if (crumbIssuer != null) {
+            // Crumb needed for testing because we use it to fire off some
+            // test builds via the POST API.
+            if (request != null) { // null if not on an HTTP request e.g. a WebSocket.
+                CrumbIssuer crumbIssuer = Jenkins.get().getCrumbIssuer();
+                if (crumbIssuer == null) {
+                    LOGGER.warn("No CrumbIssuer on Jenkins instance. Some POSTs might not work.");
+                } else {
                     JSONObject crumb = new JSONObject();
                     crumb.put("name", crumbIssuer.getDescriptor().getCrumbRequestField());
                     crumb.put("value", crumbIssuer.getCrumb(request));
                     openData.put("crumb", crumb);
-                } else {
-                    LOGGER.warn("No CrumbIssuer on Jenkins instance. Some POSTs might not work.");
                 }
             }
+        }
 
-            dispatcher.dispatchEvent("open", openData.toString());
+        dispatcher.dispatchEvent("open", openData.toString());
 
-            // Run the retry process in case this is a reconnect.
-            dispatcher.processRetries();
+        if (firstListen && !evicted && !listenSubscriptions.isEmpty()) {
+            // Subscribe straight away, on the listen request itself. Saves the client
+            // waiting for the "open" event and then sending a configure request.
+            SubscriptionConfigQueue.applyListenSubscriptions(dispatcher, session, streamToken, listenSubscriptions);
+        }
 
-            return dispatcher;
-        } catch (Exception e) {
-            throw new IllegalStateException("Unexpected Exception.", e);
+        if (evicted) {
+            // The client was away for longer than the reconnect grace period (e.g. the
+            // machine was asleep) and its subscriptions were torn down. It needs to reload.
+            dispatcher.dispatchReload();
+        } else {
+            // A (staggered) reload that fell due while the client was reconnecting.
+            dispatcher.dispatchUndeliveredReload();
         }
+
+        // Run the retry process in case this is a reconnect.
+        dispatcher.processRetries();
+
+        return dispatcher;
     }
 
     /**
-     * Get the session {@link EventDispatcher}s from the {@link HttpSession}.
+     * Get the session {@link EventDispatcher}s.
+     * <p>
+     * This is the session local view of the {@link EventDispatcherRegistry}.
      *     
      * @param session The {@link HttpSession}.
      * @return The session {@link EventDispatcher}s.
      */
-    public synchronized static Map<String, EventDispatcher> getDispatchers(@NonNull HttpSession session) {
-        Map<String, EventDispatcher> dispatchers = (Map<String, EventDispatcher>) session.getAttribute(DISPATCHER_SESSION_KEY);
-        if (dispatchers == null) {
-            dispatchers = new HashMap<>();
-            session.setAttribute(DISPATCHER_SESSION_KEY, dispatchers);
-        }
-        return dispatchers;
+    public static Map<String, EventDispatcher> getDispatchers(@NonNull HttpSession session) {
+        return EventDispatcherRegistry.getSessionDispatchers(session);
     }
 
     /**
@@ -133,20 +250,31 @@ public class EventDispatcherFactory {
      * @param clientId The dispatcher client Id.
      * @param session The {@link HttpSession}.
      * @return The new {@link EventDispatcher} instance.
+     * @throws AdmissionControl.RejectedException The new dispatcher is not admitted.
      */
-    public synchronized static EventDispatcher newDispatcher(@NonNull String clientId, @NonNull HttpSession session) {
-        Map<String, EventDispatcher> dispatchers = getDispatchers(session);
-        try {
-            EventDispatcher dispatcher = runtimeClass.newInstance();
-            dispatcher.setId(clientId);
-            dispatchers.put(clientId, dispatcher);
-            if (LOGGER.isDebugEnabled()) {
-                LOGGER.debug(String.format("New dispatcher '%s' attached to HTTP session '%s'.", dispatcher, session.getId()));
-            }
-            return dispatcher;
-        } catch (Exception e) {
-            throw new IllegalStateException("Unexpected Exception.", e);
+    public static EventDispatcher newDispatcher(@NonNull String clientId, @NonNull HttpSession session) {
+        EventDispatcher dispatcher = createDispatcher(clientId, principal -> EventDispatcherRegistry.evictDisconnected(session, principal));
+        EventDispatcherRegistry.put(session, clientId, dispatcher);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("New dispatcher '%s' attached to HTTP session '%s'.", dispatcher, session.getId()));
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Create a new sessionless {@link EventDispatcher} instance, identified by the supplied stream token.
+     *
+     * @param streamToken The client's (verified) stream token.
+     * @return The new {@link EventDispatcher} instance.
+     * @throws AdmissionControl.RejectedException The new dispatcher is not admitted.
+     */
+    public static EventDispatcher newDispatcher(@NonNull StreamToken streamToken) {
+        EventDispatcher dispatcher = createDispatcher(streamToken.getClientId(), principal -> EventDispatcherRegistry.evictDisconnected(streamToken, principal));
+        EventDispatcherRegistry.put(streamToken, dispatcher);
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("New sessionless dispatcher '%s' for stream token %s.", dispatcher, streamToken));
         }
+        return dispatcher;
     }
 
     /**
@@ -156,8 +284,28 @@ public class EventDispatcherFactory {
      * @return The {@link EventDispatcher}, or {@code null} if no such dispatcher is known. 
      */
     public static @CheckForNull EventDispatcher getDispatcher(@NonNull String dispatcherId, @NonNull HttpSession session) {
-        Map<String, EventDispatcher> dispatchers = getDispatchers(session);
-        return dispatchers.get(dispatcherId);
+        return EventDispatcherRegistry.get(session, dispatcherId);
+    }
+
+    /**
+     * Get the sessionless {@link EventDispatcher} instance identified by the supplied stream token.
+     * @param streamToken The client's (verified) stream token.
+     * @return The {@link EventDispatcher}, or {@code null} if no such dispatcher is known. 
+     */
+    public static @CheckForNull EventDispatcher getDispatcher(@NonNull StreamToken streamToken) {
+        return EventDispatcherRegistry.get(streamToken);
+    }
+
+    private static EventDispatcher createDispatcher(String clientId, Predicate<String> reclaim) {
+        EventDispatcher dispatcher;
+        try {
+            dispatcher = runtimeClass.newInstance();
+            dispatcher.setId(clientId);
+        } catch (Exception e) {
+            throw new IllegalStateException("Unexpected Exception.", e);
+        }
+        dispatcher.admit(reclaim);
+        return dispatcher;
     }
 
     private static boolean isAsyncSupported() {
@@ -174,4 +322,11 @@ public class EventDispatcherFactory {
             return false;
         }
     }
+
+    /**
+     * Opens the stream the dispatcher's events are to be written to.
+     */
+    private interface StreamOpener {
+        void open(@NonNull EventDispatcher dispatcher) throws Exception;
+    }
 }
@@ -0,0 +1,504 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import jenkins.util.Timer;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import jakarta.servlet.http.HttpSession;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Global {@link EventDispatcher} registry.
+ * <p>
+ * Dispatchers are keyed by HTTP session Id and then dispatcher client Id (client Ids are
+ * only unique within a session). Lookups, adds and removes are lock free, so connect, listen,
+ * ping and configure requests from different clients do not contend with each other.
+ * <p>
+ * Each session's dispatchers are held in a session local view, which is also stored on the
+ * session itself (as it was before there was a registry). A session that the registry does
+ * not know about (e.g. one restored by the container, or one that had its Id changed) is
+ * adopted into the registry from that session attribute on first lookup.
+ * <p>
+ * Dispatchers are evicted independently of the session lifetime. A dispatcher whose client has
+ * been disconnected for longer than {@link EventDispatcher#RECONNECT_GRACE_PERIOD} (e.g. the tab
+ * was closed) is evicted, as is the least recently seen dispatcher on a session that goes over
+ * {@link EventDispatcher#MAX_DISPATCHERS_PER_SESSION}. Evicted dispatchers have their
+ * subscriptions and retry state torn down. A client that comes back after its dispatcher was
+ * evicted is told to reload (see {@link #wasEvicted(HttpSession, String)}).
+ * <p>
+ * Sessionless dispatchers (see {@link StreamToken}) are registered under the token principal
+ * instead of a session, keyed by the token's server issued nonce rather than the client Id. The
+ * least recently seen are evicted once a principal goes over
+ * {@link EventDispatcher#MAX_SESSIONLESS_DISPATCHERS_PER_USER}.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class EventDispatcherRegistry {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger( EventDispatcherRegistry.class.getName());
+
+    private static final long EVICTION_PERIOD = TimeUnit.SECONDS.toMillis(15);
+    // How long we remember that a client's dispatcher was evicted.
+    private static final long EVICTED_CLIENT_MEMORY = TimeUnit.HOURS.toMillis(1);
+
+    private static final ConcurrentMap<String, SessionDispatchers> sessions = new ConcurrentHashMap<>();
+    // "sessionId/clientId" -> eviction time.
+    private static final ConcurrentMap<String, Long> evictedClients = new ConcurrentHashMap<>();
+    private static final AtomicLong idleEvictedCount = new AtomicLong();
+    private static final AtomicLong lruEvictedCount = new AtomicLong();
+    private static final AtomicLong reclaimedCount = new AtomicLong();
+
+    private EventDispatcherRegistry() {
+    }
+
+    /**
+     * Get the session local view of the registry, creating it if needed.
+     * @param session The {@link HttpSession}.
+     * @return The session {@link EventDispatcher}s, keyed by client Id.
+     */
+    public static @NonNull ConcurrentMap<String, EventDispatcher> getSessionDispatchers(@NonNull HttpSession session) {
+        String sessionId = session.getId();
+        SessionDispatchers dispatchers = sessions.get(sessionId);
+        if (dispatchers != null) {
+            return dispatchers;
+        }
+
+        dispatchers = adopt(session);
+        if (dispatchers == null) {
+            SessionDispatchers newDispatchers = new SessionDispatchers(sessionId);
+            dispatchers = sessions.putIfAbsent(sessionId, newDispatchers);
+            if (dispatchers == null) {
+                session.setAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY, newDispatchers);
+                dispatchers = newDispatchers;
+            }
+        }
+        return dispatchers;
+    }
+
+    /**
+     * Get a dispatcher. Counts as the client being seen (see {@link EventDispatcher#getLastSeen()}).
+     * @param session The {@link HttpSession}.
+     * @param clientId The dispatcher client Id.
+     * @return The {@link EventDispatcher}, or {@code null} if no such dispatcher is known.
+     */
+    public static @CheckForNull EventDispatcher get(@NonNull HttpSession session, @NonNull String clientId) {
+        SessionDispatchers dispatchers = sessions.get(session.getId());
+        if (dispatchers == null) {
+            // Don't create an empty session view just for a lookup.
+            dispatchers = adopt(session);
+            if (dispatchers == null) {
+                return null;
+            }
+        }
+        EventDispatcher dispatcher = dispatchers.get(clientId);
+        if (dispatcher != null) {
+            dispatcher.touch();
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Add a dispatcher, replacing (and disposing of) any dispatcher with the same client Id on the
+     * same session. The session's least recently seen dispatchers are evicted if this takes the
+     * session over {@link EventDispatcher#MAX_DISPATCHERS_PER_SESSION}.
+     * @param session The {@link HttpSession}.
+     * @param clientId The dispatcher client Id.
+     * @param dispatcher The dispatcher.
+     */
+    public static void put(@NonNull HttpSession session, @NonNull String clientId, @NonNull EventDispatcher dispatcher) {
+        SessionDispatchers dispatchers = getSessionDispatchers(session);
+        EventDispatcher replaced = dispatchers.put(clientId, dispatcher);
+        evictedClients.remove(toClientKey(session.getId(), clientId));
+        if (replaced != null && replaced != dispatcher) {
+            dispose(replaced);
+        }
+
+        int maxDispatchers = EventDispatcher.MAX_DISPATCHERS_PER_SESSION;
+        if (maxDispatchers > 0) {
+            while (dispatchers.size() > maxDispatchers) {
+                if (!evictLeastRecentlySeen(session.getId(), dispatchers, clientId)) {
+                    break;
+                }
+            }
+        }
+
+        EvictionTask.start();
+    }
+
+    /**
+     * Get a sessionless dispatcher. Counts as the client being seen.
+     * @param streamToken The client's (verified) stream token.
+     * @return The {@link EventDispatcher}, or {@code null} if no such dispatcher is known.
+     */
+    public static @CheckForNull EventDispatcher get(@NonNull StreamToken streamToken) {
+        SessionDispatchers dispatchers = sessions.get(streamToken.getRegistryKey());
+        if (dispatchers == null) {
+            return null;
+        }
+        EventDispatcher dispatcher = dispatchers.get(streamToken.getDispatcherKey());
+        if (dispatcher != null) {
+            dispatcher.touch();
+        }
+        return dispatcher;
+    }
+
+    /**
+     * Add a sessionless dispatcher, replacing (and disposing of) any dispatcher for the same token.
+     * The principal's least recently seen sessionless dispatchers are evicted if this takes it over
+     * {@link EventDispatcher#MAX_SESSIONLESS_DISPATCHERS_PER_USER}.
+     * @param streamToken The client's (verified) stream token.
+     * @param dispatcher The dispatcher.
+     */
+    public static void put(@NonNull StreamToken streamToken, @NonNull EventDispatcher dispatcher) {
+        String registryKey = streamToken.getRegistryKey();
+        String dispatcherKey = streamToken.getDispatcherKey();
+        EventDispatcher[] replacedHolder = new EventDispatcher[1];
+        // Under the registry entry lock, so an (empty) entry being removed (see evict) is never added to.
+        SessionDispatchers dispatchers = sessions.compute(registryKey, (key, existing) -> {
+            SessionDispatchers principalDispatchers = (existing != null ? existing : new SessionDispatchers(key));
+            replacedHolder[0] = principalDispatchers.put(dispatcherKey, dispatcher);
+            return principalDispatchers;
+        });
+        EventDispatcher replaced = replacedHolder[0];
+        evictedClients.remove(toClientKey(registryKey, dispatcherKey));
+        if (replaced != null && replaced != dispatcher) {
+            dispose(replaced);
+        }
+
+        int maxDispatchers = EventDispatcher.MAX_SESSIONLESS_DISPATCHERS_PER_USER;
+        if (maxDispatchers > 0) {
+            while (dispatchers.size() > maxDispatchers) {
+                if (!evictLeastRecentlySeen(registryKey, dispatchers, dispatcherKey)) {
+                    break;
+                }
+            }
+        }
+
+        EvictionTask.start();
+    }
+
+    /**
+     * Was the sessionless client's dispatcher evicted. The eviction is forgotten once checked.
+     * @param streamToken The client's (verified) stream token.
+     * @return {@code true} if the client's dispatcher was evicted, otherwise {@code false}.
+     */
+    public static boolean wasEvicted(@NonNull StreamToken streamToken) {
+        return (evictedClients.remove(toClientKey(streamToken.getRegistryKey(), streamToken.getDispatcherKey())) != null);
+    }
+
+    /**
+     * Was the client's dispatcher evicted. The eviction is forgotten once checked.
+     * @param session The {@link HttpSession}.
+     * @param clientId The dispatcher client Id.
+     * @return {@code true} if the client's dispatcher was evicted, otherwise {@code false}.
+     */
+    public static boolean wasEvicted(@NonNull HttpSession session, @NonNull String clientId) {
+        return (evictedClients.remove(toClientKey(session.getId(), clientId)) != null);
+    }
+
+    /**
+     * Evict the dispatchers that have been disconnected for longer than
+     * {@link EventDispatcher#RECONNECT_GRACE_PERIOD}.
+     * @param now The current time.
+     * @return The number of dispatchers evicted.
+     */
+    static int evictIdle(long now) {
+        long gracePeriod = EventDispatcher.RECONNECT_GRACE_PERIOD;
+        int evicted = 0;
+
+        if (gracePeriod > 0) {
+            for (Map.Entry<String, SessionDispatchers> session : sessions.entrySet()) {
+                for (Map.Entry<String, EventDispatcher> entry : session.getValue().entrySet()) {
+                    EventDispatcher dispatcher = entry.getValue();
+                    if (now - dispatcher.getLastSeen() > gracePeriod && !dispatcher.isConnected()) {
+                        if (evict(session.getKey(), session.getValue(), entry.getKey(), dispatcher)) {
+                            evicted++;
+                        }
+                    }
+                }
+            }
+            idleEvictedCount.addAndGet(evicted);
+        }
+
+        evictedClients.values().removeIf(evictedAt -> now - evictedAt > EVICTED_CLIENT_MEMORY);
+
+        return evicted;
+    }
+
+    /**
+     * Remove a session's dispatchers from the registry.
+     * @param session The {@link HttpSession}.
+     * @return The removed session {@link EventDispatcher}s, or {@code null} if the registry had none.
+     */
+    public static @CheckForNull Map<String, EventDispatcher> removeSession(@NonNull HttpSession session) {
+        SessionDispatchers dispatchers = sessions.remove(session.getId());
+        if (dispatchers == null) {
+            // Maybe only on the session (never looked up since being restored).
+            dispatchers = asSessionDispatchers(session.getAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY));
+        }
+        if (dispatchers != null && dispatchers.sessionId != null) {
+            sessions.remove(dispatchers.sessionId, dispatchers);
+        }
+        return dispatchers;
+    }
+
+    /**
+     * Iterate all registered dispatchers e.g. for admin and metrics. The iteration is weakly
+     * consistent i.e. it may or may not see dispatchers added or removed while iterating.
+     * @param action The action to perform on each dispatcher.
+     */
+    public static void forEach(@NonNull Consumer<EventDispatcher> action) {
+        for (SessionDispatchers dispatchers : sessions.values()) {
+            dispatchers.values().forEach(action);
+        }
+    }
+
+    /**
+     * Get registry metrics.
+     * @return Registry metrics.
+     */
+    public static JSONObject getStats() {
+        int sessionCount = 0;
+        int dispatcherCount = 0;
+        int connectedCount = 0;
+        for (SessionDispatchers dispatchers : sessions.values()) {
+            sessionCount++;
+            for (EventDispatcher dispatcher : dispatchers.values()) {
+                dispatcherCount++;
+                if (dispatcher.isConnected()) {
+                    connectedCount++;
+                }
+            }
+        }
+
+        JSONObject stats = new JSONObject();
+        stats.put("sessions", sessionCount);
+        stats.put("dispatchers", dispatcherCount);
+        stats.put("connected", connectedCount);
+        stats.put("idleEvicted", idleEvictedCount.get());
+        stats.put("lruEvicted", lruEvictedCount.get());
+        stats.put("reclaimed", reclaimedCount.get());
+        stats.put("openStreams", AsynchEventDispatcher.getOpenStreamCount());
+        stats.put("streamHandovers", AsynchEventDispatcher.getHandoverCount());
+        return stats;
+    }
+
+    /**
+     * Evict the principal's least recently seen disconnected dispatcher on the session (i.e. one
+     * in its reconnect grace period), releasing its admission slot for a new dispatcher.
+     * See {@link AdmissionControl}.
+     * @param session The {@link HttpSession}.
+     * @param principal The principal.
+     * @return {@code true} if a dispatcher was evicted, otherwise {@code false}.
+     */
+    static boolean evictDisconnected(@NonNull HttpSession session, @NonNull String principal) {
+        SessionDispatchers dispatchers = sessions.get(session.getId());
+        return dispatchers != null && evictDisconnected(session.getId(), dispatchers, principal);
+    }
+
+    /**
+     * As {@link #evictDisconnected(HttpSession, String)}, for the principal's sessionless dispatchers.
+     * @param streamToken The client's (verified) stream token.
+     * @param principal The principal.
+     * @return {@code true} if a dispatcher was evicted, otherwise {@code false}.
+     */
+    static boolean evictDisconnected(@NonNull StreamToken streamToken, @NonNull String principal) {
+        SessionDispatchers dispatchers = sessions.get(streamToken.getRegistryKey());
+        return dispatchers != null && evictDisconnected(streamToken.getRegistryKey(), dispatchers, principal);
+    }
+
+    private static boolean evictDisconnected(String sessionId, SessionDispatchers dispatchers, String principal) {
+        Map.Entry<String, EventDispatcher> victim = null;
+        for (Map.Entry<String, EventDispatcher> entry : dispatchers.entrySet()) {
+            EventDispatcher dispatcher = entry.getValue();
+            if (!dispatcher.isConnected() && dispatcher.getPrincipal().equals(principal)
+                    && (victim == null || dispatcher.getLastSeen() < victim.getValue().getLastSeen())) {
+                victim = entry;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (evict(sessionId, dispatchers, victim.getKey(), victim.getValue())) {
+            reclaimedCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    private static boolean evictLeastRecentlySeen(String sessionId, SessionDispatchers dispatchers, String keepClientId) {
+        // Disconnected dispatchers go first.
+        Map.Entry<String, EventDispatcher> victim = null;
+        boolean victimConnected = true;
+        for (Map.Entry<String, EventDispatcher> entry : dispatchers.entrySet()) {
+            if (entry.getKey().equals(keepClientId)) {
+                continue;
+            }
+            boolean connected = entry.getValue().isConnected();
+            if (victim == null
+                    || (victimConnected && !connected)
+                    || (victimConnected == connected && entry.getValue().getLastSeen() < victim.getValue().getLastSeen())) {
+                victim = entry;
+                victimConnected = connected;
+            }
+        }
+        if (victim == null) {
+            return false;
+        }
+        if (evict(sessionId, dispatchers, victim.getKey(), victim.getValue())) {
+            lruEvictedCount.incrementAndGet();
+        }
+        return true;
+    }
+
+    private static boolean evict(String sessionId, SessionDispatchers dispatchers, String clientId, EventDispatcher dispatcher) {
+        if (!dispatchers.remove(clientId, dispatcher)) {
+            // Replaced or removed by someone else.
+            return false;
+        }
+        if (StreamToken.isRegistryKey(sessionId)) {
+            // Nothing else removes a principal's sessionless entry.
+            sessions.computeIfPresent(sessionId, (key, existing) -> (existing.isEmpty() ? null : existing));
+        }
+        evictedClients.put(toClientKey(sessionId, clientId), System.currentTimeMillis());
+        if (LOGGER.isDebugEnabled()) {
+            LOGGER.debug(String.format("Evicting dispatcher '%s' from HTTP session '%s'. Last seen %dms ago.",
+                    dispatcher, sessionId, System.currentTimeMillis() - dispatcher.getLastSeen()));
+        }
+        dispose(dispatcher);
+        return true;
+    }
+
+    private static void dispose(EventDispatcher dispatcher) {
+        try {
+            dispatcher.dispose();
+        } catch (Exception e) {
+            LOGGER.debug("Error disposing of dispatcher " + dispatcher + ".", e);
+        }
+    }
+
+    private static String toClientKey(String sessionId, String clientId) {
+        return sessionId + "/" + clientId;
+    }
+
+    private static SessionDispatchers adopt(HttpSession session) {
+        SessionDispatchers dispatchers = asSessionDispatchers(session.getAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY));
+        if (dispatchers == null) {
+            return null;
+        }
+
+        String sessionId = session.getId();
+        String oldSessionId = dispatchers.sessionId;
+        if (oldSessionId != null && !oldSessionId.equals(sessionId)) {
+            // The session Id has changed. Drop the registry entry for the old Id.
+            sessions.remove(oldSessionId, dispatchers);
+        }
+        dispatchers.sessionId = sessionId;
+
+        SessionDispatchers registered = sessions.putIfAbsent(sessionId, dispatchers);
+        if (registered != null) {
+            return registered;
+        }
+        if (!(session.getAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY) instanceof SessionDispatchers)) {
+            // Replace the old style session attribute (a plain map).
+            session.setAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY, dispatchers);
+        }
+        return dispatchers;
+    }
+
+    private static SessionDispatchers asSessionDispatchers(Object sessionAttribute) {
+        if (sessionAttribute instanceof SessionDispatchers) {
+            return (SessionDispatchers) sessionAttribute;
+        } else if (sessionAttribute instanceof Map) {
+            // Dispatcher map from before there was a registry.
+            SessionDispatchers dispatchers = new SessionDispatchers(null);
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) sessionAttribute).entrySet()) {
+                if (entry.getKey() instanceof String && entry.getValue() instanceof EventDispatcher) {
+                    dispatchers.put((String) entry.getKey(), (EventDispatcher) entry.getValue());
+                }
+            }
+            return dispatchers;
+        }
+        return null;
+    }
+
+    /**
+     * Periodic idle dispatcher eviction.
+     */
+    private static final class EvictionTask implements Runnable {
+
+        // On the shared Jenkins timer, which is shut down with Jenkins. The timer
+        // it was scheduled on, so it's scheduled again if Jenkins is restarted.
+        private static ScheduledExecutorService scheduledOn;
+
+        private static synchronized void start() {
+            ScheduledExecutorService timer = Timer.get();
+            if (scheduledOn != timer) {
+                timer.scheduleWithFixedDelay(new EvictionTask(), EVICTION_PERIOD, EVICTION_PERIOD, TimeUnit.MILLISECONDS);
+                scheduledOn = timer;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                int evicted = evictIdle(System.currentTimeMillis());
+                if (evicted > 0) {
+                    LOGGER.debug("Evicted {} idle dispatchers.", evicted);
+                }
+            } catch (Exception e) {
+                // Don't let an error kill the scheduled task.
+                LOGGER.warn("Unexpected error evicting idle dispatchers.", e);
+            }
+        }
+    }
+
+    /**
+     * The session local view of the registry.
+     */
+    private static final class SessionDispatchers extends ConcurrentHashMap<String, EventDispatcher> {
+        private static final long serialVersionUID = 1L;
+
+        // The session Id the view is registered against. Not serialized,
+        // because the session might have a new Id when restored.
+        private transient volatile String sessionId;
+
+        private SessionDispatchers(String sessionId) {
+            this.sessionId = sessionId;
+        }
+    }
+}
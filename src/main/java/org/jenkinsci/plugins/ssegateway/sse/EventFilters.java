@@ -0,0 +1,146 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared {@link EventFilter} instances.
+ * <p>
+ * Lots of clients subscribe using the same filters (e.g. every open job page subscribes to
+ * the same "job" channel filter). Rather than each client's dispatcher holding its own copy,
+ * identical filters are interned to a single, shared instance. Filters are looked up by their
+ * canonical string (see {@link SubscriptionDigest}), which caches its own hash. Equality checks
+ * on interned filters (e.g. the dispatcher subscriber map lookups) short-circuit on identity.
+ * <p>
+ * Interned filters are only weakly held, so a filter is released once no dispatcher is
+ * subscribed with it. <strong>Interned filters are shared, so must never be modified.</strong>
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class EventFilters {
+
+    private static final ConcurrentMap<String, FilterReference> filters = new ConcurrentHashMap<>();
+    private static final ReferenceQueue<EventFilter> releasedFilters = new ReferenceQueue<>();
+    private static final AtomicLong internHitCount = new AtomicLong();
+    private static final AtomicLong internMissCount = new AtomicLong();
+
+    private EventFilters() {
+    }
+
+    /**
+     * Get the shared filter instance for the supplied filter properties.
+     * @param properties The filter properties.
+     * @return The shared filter instance.
+     */
+    public static @NonNull EventFilter intern(@NonNull Map<String, String> properties) {
+        return intern(properties, null);
+    }
+
+    /**
+     * Get the shared filter instance equal to the supplied filter.
+     * @param filter The filter.
+     * @return The shared filter instance. The supplied filter instance, if it was not
+     * already interned.
+     */
+    public static @NonNull EventFilter intern(@NonNull EventFilter filter) {
+        return intern(filter, filter);
+    }
+
+    /**
+     * Get interning metrics.
+     * @return Interning metrics.
+     */
+    public static JSONObject getStats() {
+        expungeReleased();
+        JSONObject stats = new JSONObject();
+        stats.put("interned", filters.size());
+        stats.put("hits", internHitCount.get());
+        stats.put("misses", internMissCount.get());
+        return stats;
+    }
+
+    private static EventFilter intern(Map<?, ?> properties, EventFilter filter) {
+        expungeReleased();
+
+        String key = SubscriptionDigest.toCanonicalString(properties);
+        while (true) {
+            FilterReference reference = filters.get(key);
+            if (reference != null) {
+                EventFilter interned = reference.get();
+                if (interned != null) {
+                    internHitCount.incrementAndGet();
+                    return interned;
+                }
+                // Released, but not yet expunged.
+                filters.remove(key, reference);
+            }
+
+            EventFilter newFilter = (filter != null ? filter : newFilter(properties));
+            if (filters.putIfAbsent(key, new FilterReference(key, newFilter, releasedFilters)) == null) {
+                internMissCount.incrementAndGet();
+                return newFilter;
+            }
+            // Lost the race with another thread interning the same filter. Use theirs.
+        }
+    }
+
+    private static EventFilter newFilter(Map<?, ?> properties) {
+        EventFilter filter = new EventFilter();
+        for (Map.Entry<?, ?> property : properties.entrySet()) {
+            filter.set(String.valueOf(property.getKey()), String.valueOf(property.getValue()));
+        }
+        return filter;
+    }
+
+    private static void expungeReleased() {
+        Reference<? extends EventFilter> released;
+        while ((released = releasedFilters.poll()) != null) {
+            FilterReference reference = (FilterReference) released;
+            filters.remove(reference.key, reference);
+        }
+    }
+
+    private static final class FilterReference extends WeakReference<EventFilter> {
+        private final String key;
+
+        private FilterReference(String key, EventFilter filter, ReferenceQueue<EventFilter> queue) {
+            super(filter, queue);
+            this.key = key;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.io.IOException;
+
+/**
+ * A non SSE transport for a dispatcher's events e.g. a WebSocket.
+ * <p>
+ * By default, a dispatcher writes its events to the SSE response of its listen request. A
+ * dispatcher with an event stream attached (see {@link EventDispatcher#attachStream(EventStream)})
+ * writes them to the stream instead. It's still the same dispatcher i.e. the same subscriptions,
+ * filtering and retry queue. At most one stream (SSE response or event stream) is attached to
+ * a dispatcher at any time.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public interface EventStream {
+
+    /**
+     * Write an event to the stream.
+     * <p>
+     * Called with the dispatcher monitor held, so events for a dispatcher are written in order.
+     *
+     * @param dispatcher The dispatcher the event is for.
+     * @param name The event name, or {@code null} if the event has no name.
+     * @param data The event data, or {@code null} if the event has no data.
+     * @return {@code true} if the event was written, otherwise {@code false}, in which
+     * case the stream is detached from the dispatcher and the event goes to its retry queue.
+     * @throws IOException Error writing the event. Handled as for {@code false}.
+     */
+    boolean write(@NonNull EventDispatcher dispatcher, @CheckForNull String name, @CheckForNull String data) throws IOException;
+
+    /**
+     * Close the stream, after it has been replaced by another stream.
+     * <p>
+     * A stream that accepts events before delivering them (e.g. queues them behind a send
+     * in flight) must hand back any it did not deliver (see {@link EventDispatcher#requeueUndelivered}).
+     */
+    void close();
+}
@@ -0,0 +1,191 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import net.sf.json.JSONObject;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconnect storm control.
+ * <p>
+ * When Jenkins restarts, or a proxy drops its connections, every client reconnects at
+ * about the same time. Left alone, they all hit <code>/connect</code> and <code>/listen</code>
+ * together, and the ones that can't be resumed are all told to reload the page (a full
+ * Jenkins page load) together. This spreads that load out:
+ * <ul>
+ *     <li>Every SSE stream starts with a randomized <code>retry:</code> hint, so that EventSource
+ *     reconnects after a dropped connection are spread over {@link #RETRY_SPREAD}.</li>
+ *     <li><code>/connect</code> and <code>/listen</code> requests go through a token bucket. Throttled
+ *     connects get a <code>503</code> with a <code>Retry-After</code> hint. Throttled listens get an empty
+ *     SSE stream with a <code>retry:</code> hint, so the EventSource just tries again later.</li>
+ *     <li><code>reload</code> directives are delivered after a random delay within {@link #RELOAD_WINDOW}.</li>
+ * </ul>
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class ReconnectControl {
+
+    // set the min SSE retry: hint sent to clients - default 3 sec - 3000 msec
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long RETRY_MIN = Integer.getInteger(ReconnectControl.class.getName() + ".RETRY_MIN", 3000);
+    // set the random spread added to the SSE retry: hint - default 10 sec - 10000 msec. 0 disables.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long RETRY_SPREAD = Integer.getInteger(ReconnectControl.class.getName() + ".RETRY_SPREAD", 10000);
+    // set the rate at which connect and listen requests are let through, per second - default 0 i.e. unlimited
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int CONNECT_RATE = Integer.getInteger(ReconnectControl.class.getName() + ".CONNECT_RATE", 0);
+    // set the number of connect and listen requests let through in a burst - default 100
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ int CONNECT_BURST = Integer.getInteger(ReconnectControl.class.getName() + ".CONNECT_BURST", 100);
+    // set the window over which reload directives are spread - default 30 sec - 30000 msec. 0 disables.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long RELOAD_WINDOW = Integer.getInteger(ReconnectControl.class.getName() + ".RELOAD_WINDOW", 30) * 1000L;
+
+    // The token bucket. Refilled at CONNECT_RATE, up to CONNECT_BURST.
+    private static double tokens = 0;
+    private static int bucketSize = 0;
+    private static long lastRefill = 0;
+
+    private static final AtomicLong throttledConnectCount = new AtomicLong();
+    private static final AtomicLong throttledListenCount = new AtomicLong();
+    private static final AtomicLong reloadCount = new AtomicLong();
+    private static final AtomicInteger pendingReloadCount = new AtomicInteger();
+
+    private ReconnectControl() {
+    }
+
+    /**
+     * Get a randomized SSE <code>retry:</code> hint.
+     * @return The retry hint, in milliseconds.
+     */
+    public static long getRetryHint() {
+        long retry = Math.max(0, RETRY_MIN);
+        long spread = RETRY_SPREAD;
+        if (spread > 0) {
+            retry += ThreadLocalRandom.current().nextLong(spread + 1);
+        }
+        return retry;
+    }
+
+    /**
+     * Let a connect request through.
+     * @return {@code true} if the request can go ahead, otherwise {@code false} (throttled).
+     */
+    public static boolean tryConnect() {
+        if (tryAcquire()) {
+            return true;
+        }
+        throttledConnectCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Let a listen request through.
+     * @return {@code true} if the request can go ahead, otherwise {@code false} (throttled).
+     */
+    public static boolean tryListen() {
+        if (tryAcquire()) {
+            return true;
+        }
+        throttledListenCount.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Get the <code>Retry-After</code> hint for a throttled connect request. Roughly how long
+     * until the bucket has refilled enough to let the current burst through, with jitter.
+     * @return The number of seconds the client should wait before retrying.
+     */
+    public static int getRetryAfterSeconds() {
+        int rate = CONNECT_RATE;
+        int refillSeconds = (rate > 0 ? Math.max(1, Math.max(1, CONNECT_BURST) / rate) : 1);
+        return refillSeconds + ThreadLocalRandom.current().nextInt(refillSeconds + 1);
+    }
+
+    /**
+     * Get the delay before a <code>reload</code> directive is delivered.
+     * @return The delay, in milliseconds.
+     */
+    static long getReloadDelay() {
+        long window = RELOAD_WINDOW;
+        if (window <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(window);
+    }
+
+    static void onReloadScheduled() {
+        pendingReloadCount.incrementAndGet();
+    }
+
+    static void onReloadSent(boolean scheduled) {
+        if (scheduled) {
+            pendingReloadCount.decrementAndGet();
+        }
+        reloadCount.incrementAndGet();
+    }
+
+    /**
+     * Get reconnect control metrics.
+     * @return Reconnect control metrics.
+     */
+    public static JSONObject getStats() {
+        JSONObject stats = new JSONObject();
+        stats.put("throttledConnects", throttledConnectCount.get());
+        stats.put("throttledListens", throttledListenCount.get());
+        stats.put("reloads", reloadCount.get());
+        stats.put("pendingReloads", pendingReloadCount.get());
+        return stats;
+    }
+
+    private static synchronized boolean tryAcquire() {
+        int rate = CONNECT_RATE;
+        if (rate <= 0) {
+            return true;
+        }
+        int burst = Math.max(1, CONNECT_BURST);
+        long now = System.nanoTime();
+        if (bucketSize != burst) {
+            // First use, or reconfigured. Start full.
+            bucketSize = burst;
+            tokens = burst;
+        } else {
+            tokens = Math.min(burst, tokens + (now - lastRefill) * rate / (double) TimeUnit.SECONDS.toNanos(1));
+        }
+        lastRefill = now;
+        if (tokens >= 1) {
+            tokens--;
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.CheckForNull;
+import edu.umd.cs.findbugs.annotations.NonNull;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jenkins.model.Jenkins;
+import jenkins.security.HMACConfidentialKey;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Base64;
+
+/**
+ * Signed stream token, for sessionless clients.
+ * <p>
+ * Issued by <code>/sse-gateway/connect?sessionless=true</code>. The client then identifies its
+ * dispatcher on <code>listen</code>, <code>configure</code> and <code>ping</code> requests by
+ * passing the token in the {@link #PARAMETER} request parameter, instead of by HTTP session. No
+ * HTTP session is created, so headless and wallboard clients do not each carry a session around,
+ * and a lost session cookie does not lose the client's subscriptions.
+ * <p>
+ * The token encodes the client Id, the principal it was issued to, a random nonce and the time
+ * it was issued, signed with a Jenkins confidential key. It is only accepted from the same principal
+ * (the requests must still be authenticated as normal) and only until it expires. The client Id is
+ * chosen by the client, so the dispatcher is identified by the nonce (see {@link #getDispatcherKey()}),
+ * not by the client Id alone. Another client of the same principal (e.g. another anonymous user)
+ * that knows the client Id can not get a token for the same dispatcher. A client keeps its
+ * dispatcher across reconnects by passing its token back on <code>connect</code>, which renews it
+ * with the same nonce.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class StreamToken {
+
+    public static final String PARAMETER = "streamToken";
+
+    // set how long a stream token is accepted for - default 24h - 86400 sec. 0 means forever.
+    @SuppressFBWarnings("MS_SHOULD_BE_FINAL")
+    public static /* not final */ long LIFETIME = Integer.getInteger(StreamToken.class.getName() + ".LIFETIME", 24*60*60) * 1000L;
+
+    private static final HMACConfidentialKey KEY = new HMACConfidentialKey(StreamToken.class, "key");
+    private static final String REGISTRY_KEY_PREFIX = "stream:";
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final int NONCE_BYTES = 16;
+
+    private final String clientId;
+    private final String principal;
+    private final String nonce;
+    private final long issuedAt;
+    private final String value;
+
+    private StreamToken(String clientId, String principal, String nonce, long issuedAt, String value) {
+        this.clientId = clientId;
+        this.principal = principal;
+        this.nonce = nonce;
+        this.issuedAt = issuedAt;
+        this.value = value;
+    }
+
+    /**
+     * Issue a stream token for the supplied client Id, to the current principal.
+     * The token identifies a new dispatcher.
+     * @param clientId The dispatcher client Id.
+     * @return The token.
+     */
+    public static @NonNull StreamToken issue(@NonNull String clientId) {
+        return issue(clientId, null);
+    }
+
+    /**
+     * Issue a stream token for the supplied client Id, to the current principal.
+     * @param clientId The dispatcher client Id.
+     * @param previous The (verified) token previously issued to the client, or {@code null} if none.
+     * The new token identifies the same dispatcher if it was issued for the same client Id.
+     * Otherwise, the new token identifies a new dispatcher.
+     * @return The token.
+     */
+    public static @NonNull StreamToken issue(@NonNull String clientId, @CheckForNull StreamToken previous) {
+        String principal = Jenkins.getAuthentication2().getName();
+        String nonce;
+        if (previous != null && previous.clientId.equals(clientId) && previous.principal.equals(principal)) {
+            nonce = previous.nonce;
+        } else {
+            byte[] nonceBytes = new byte[NONCE_BYTES];
+            RANDOM.nextBytes(nonceBytes);
+            nonce = Base64.getUrlEncoder().withoutPadding().encodeToString(nonceBytes);
+        }
+        long issuedAt = System.currentTimeMillis();
+        String payload = encode(clientId) + "." + encode(principal) + "." + nonce + "." + issuedAt;
+        return new StreamToken(clientId, principal, nonce, issuedAt, payload + "." + KEY.mac(payload));
+    }
+
+    /**
+     * Verify a stream token, for the current principal.
+     * @param token The token value.
+     * @return The token, or {@code null} if the token is not valid (bad signature, expired,
+     * or issued to a different principal).
+     */
+    public static @CheckForNull StreamToken verify(@NonNull String token) {
+        String[] parts = token.split("\\.");
+        if (parts.length != 5) {
+            return null;
+        }
+
+        String payload = parts[0] + "." + parts[1] + "." + parts[2] + "." + parts[3];
+        if (!KEY.checkMac(payload, parts[4])) {
+            return null;
+        }
+
+        try {
+            String clientId = decode(parts[0]);
+            String principal = decode(parts[1]);
+            String nonce = parts[2];
+            long issuedAt = Long.parseLong(parts[3]);
+
+            if (LIFETIME > 0 && System.currentTimeMillis() - issuedAt > LIFETIME) {
+                return null;
+            }
+            if (!principal.equals(Jenkins.getAuthentication2().getName())) {
+                return null;
+            }
+            return new StreamToken(clientId, principal, nonce, issuedAt, token);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    public @NonNull String getClientId() {
+        return clientId;
+    }
+
+    public @NonNull String getPrincipal() {
+        return principal;
+    }
+
+    public long getIssuedAt() {
+        return issuedAt;
+    }
+
+    /**
+     * Get the token value, as passed in the {@link #PARAMETER} request parameter.
+     * @return The token value.
+     */
+    public @NonNull String getValue() {
+        return value;
+    }
+
+    /**
+     * Get the {@link EventDispatcherRegistry} key for dispatchers identified by stream token.
+     * Takes the place of the HTTP session Id i.e. all of the principal's sessionless dispatchers
+     * are registered under the same key.
+     * @return The registry key.
+     */
+    public @NonNull String getRegistryKey() {
+        return REGISTRY_KEY_PREFIX + principal;
+    }
+
+    /**
+     * Is the key a sessionless dispatcher registry key (see {@link #getRegistryKey()}).
+     * @param key The registry key.
+     * @return {@code true} if the key is a sessionless registry key, otherwise {@code false}.
+     */
+    static boolean isRegistryKey(@NonNull String key) {
+        return key.startsWith(REGISTRY_KEY_PREFIX);
+    }
+
+    /**
+     * Get the key the dispatcher is registered with, under the {@link #getRegistryKey() registry key}.
+     * Takes the place of the client Id. Includes the token nonce, so that the dispatcher can only be
+     * looked up with a token issued for it.
+     * @return The dispatcher key.
+     */
+    public @NonNull String getDispatcherKey() {
+        return nonce + "/" + clientId;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s (%s)", clientId, principal);
+    }
+
+    private static String encode(String string) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static String decode(String string) {
+        return new String(Base64.getUrlDecoder().decode(string), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import edu.umd.cs.findbugs.annotations.NonNull;
+import org.kohsuke.accmod.Restricted;
+import org.kohsuke.accmod.restrictions.NoExternalUse;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Subscription set digest.
+ * <p>
+ * Lets a reconnecting client tell the gateway which subscriptions it thinks its
+ * dispatcher has, without sending them all. The JavaScript client computes exactly
+ * the same digest (see <code>subscriptionDigest</code> in <code>SSEConnection.js</code>),
+ * so <strong>any change here must be made there too</strong>.
+ * <p>
+ * Each filter is written as its <code>key=value</code> pairs in key order, the filter
+ * strings are sorted (the set is unordered, but repeated filters count), and the result
+ * is hashed with two 32 bit FNV-1a hashes (different offset bases) over the UTF-16 chars.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+@Restricted(NoExternalUse.class)
+public final class SubscriptionDigest {
+
+    private static final int FNV_PRIME = 0x01000193;
+    private static final int FNV_OFFSET_BASIS_1 = 0x811c9dc5;
+    private static final int FNV_OFFSET_BASIS_2 = 0x050c5d1f;
+
+    private SubscriptionDigest() {
+    }
+
+    public static @NonNull String digest(@NonNull List<? extends Map<?, ?>> filters) {
+        List<String> filterStrings = new ArrayList<>(filters.size());
+        for (Map<?, ?> filter : filters) {
+            filterStrings.add(toCanonicalString(filter));
+        }
+        Collections.sort(filterStrings);
+
+        String canonical = String.join("\n", filterStrings);
+        return toHex(fnv1a(canonical, FNV_OFFSET_BASIS_1)) + toHex(fnv1a(canonical, FNV_OFFSET_BASIS_2));
+    }
+
+    static String toCanonicalString(Map<?, ?> filter) {
+        Map<String, String> sorted = new TreeMap<>();
+        for (Map.Entry<?, ?> entry : filter.entrySet()) {
+            sorted.put(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        StringBuilder builder = new StringBuilder();
+        for (Map.Entry<String, String> entry : sorted.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append('&');
+            }
+            builder.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return builder.toString();
+    }
+
+    private static int fnv1a(String string, int offsetBasis) {
+        int hash = offsetBasis;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static String toHex(int hash) {
+        String hex = Integer.toHexString(hash);
+        while (hex.length() < 8) {
+            hex = "0" + hex;
+        }
+        return hex;
+    }
+}
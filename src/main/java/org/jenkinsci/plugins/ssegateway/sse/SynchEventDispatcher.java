@@ -46,7 +46,11 @@ class SynchEventDispatcher extends EventDispatcher {
 
     @Override
     public void start(HttpServletRequest request, HttpServletResponse response) {
-        this.response = response;
+        synchronized (this) {
+            closeEventStream();
+            this.response = response;
+            onStreamOpened();
+        }
         LOGGER.warn("This servlet container does not support asynchronous requests. Servicing of Server Sent Events (SSE) may result in servlet request thread starvation. DO NOT use this in production!!!");
     }
 
@@ -54,4 +58,9 @@ class SynchEventDispatcher extends EventDispatcher {
     public HttpServletResponse getResponse() {
         return response;
     }
+
+    @Override
+    void closeResponseStream() {
+        response = null;
+    }
 }
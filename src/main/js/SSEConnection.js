@@ -40,6 +40,9 @@ var clientConnections = {};
 
 var eventSourceSupported = (window !== undefined && window.EventSource !== undefined);
 
+// Multiplexed listen streams, by Jenkins URL. See MuxChannel.
+var muxChannels = {};
+
 /* eslint-disable no-use-before-define */
 /* eslint-disable quotes */
 
@@ -68,8 +71,15 @@ function SSEConnection(clientId, configuration) {
         unsubscribe: []
     };
     this.configurationListeners = {};
+    this.resumedConfigs = undefined;
+    this.releaseResumedTimeout = undefined;
     this.nextDoConfigureTimeout = undefined;
     this.doPingTimeout = undefined;
+    this.connectRetryTimeout = undefined;
+    this.connectAttempt = 0;
+    // Configuration batches sent over the WebSocket, awaiting an ACK (by batchId).
+    this.webSocketBatches = {};
+    this.streamProbeTimeout = undefined;
 
     // Initialize the queue config batch tracking
     this._resetConfigQueue();
@@ -77,7 +87,21 @@ function SSEConnection(clientId, configuration) {
 
 SSEConnection.DEFAULT_CONFIGURATION = {
     batchConfigDelay: 100,
-    sendSessionId: false
+    maxConfigureRetries: 10,
+    maxConfigureBackoff: 30000,
+    syncConfigure: true,
+    resumeSubscriptions: true,
+    resumeClaimTimeout: 5000,
+    sendSessionId: false,
+    sessionless: false,
+    listenSubscribe: true,
+    maxListenSubscribeLength: 2000,
+    webSocket: true,
+    longPoll: true,
+    streamProbeTimeout: 5000,
+    streamProbes: 2,
+    longPollErrorDelay: 3000,
+    multiplex: false
 };
 
 SSEConnection.prototype = {
@@ -107,6 +131,8 @@ SSEConnection.prototype = {
             }
         }
 
+        this.tabClientId = tabClientId;
+
         if (this.jenkinsUrl === undefined) {
             try {
                 this.jenkinsUrl = jsModules.getRootURL();
@@ -146,10 +172,43 @@ SSEConnection.prototype = {
             var connectUrl = this.jenkinsUrl + '/sse-gateway/connect?clientId='
                 + encodeURIComponent(tabClientId);
 
+            // Send the digest of the subscriptions we had before e.g. before a page
+            // reload. If the gateway still has them, we do not need to resubscribe.
+            var savedConfigs = this._loadSubscriptionState();
+            if (savedConfigs) {
+                connectUrl += '&subscriptionDigest='
+                    + encodeURIComponent(subscriptionDigest(savedConfigs));
+            }
+            if (this.configuration.sessionless) {
+                // No HTTP session. Identify the gateway dispatcher by stream token instead.
+                // Send back the token we had before, so as to get the same dispatcher.
+                connectUrl += '&sessionless=true';
+                var previousStreamToken = this.streamToken || this._loadStreamToken();
+                if (previousStreamToken) {
+                    connectUrl += '&streamToken=' + encodeURIComponent(previousStreamToken);
+                }
+            }
+
             var sseConnection = this;
             ajax.get(connectUrl, function (response) {
+                sseConnection.connectAttempt = 0;
+                sseConnection._resumeSubscriptions(response.data, savedConfigs);
+
+                var listenParams = [];
+                if (response.data.streamToken) {
+                    sseConnection.streamToken = response.data.streamToken;
+                    sseConnection._saveStreamToken();
+                    listenParams.push('streamToken=' + encodeURIComponent(sseConnection.streamToken));
+                }
+                // Send the subscriptions made so far on the listen request itself. They are
+                // applied as soon as the SSE channel opens, without a configure request.
+                var listenBatchId = sseConnection._takeListenSubscriptions(listenParams);
+
                 var listenUrl = sseConnection.jenkinsUrl + '/sse-gateway/listen/'
                     + encodeURIComponent(tabClientId);
+                if (listenParams.length > 0) {
+                    listenUrl += '?' + listenParams.join('&');
+                }
 
                 var options = undefined;
                 if (sseConnection.configuration.sendSessionId) {
@@ -159,20 +218,61 @@ SSEConnection.prototype = {
                     options = {headers: {Cookie: 'jsessionid=' + jsessionid}}
                 }
 
-                var EventSource = window.EventSource;
-                var source = new EventSource(listenUrl, options);
+                // Events are getting through on the stream. See probeStream below.
+                var streamHealthy = false;
+                // Keep track of the connection listeners, in case we need to switch source.
+                sseConnection.sourceListeners = {};
+                var addSourceListener = function (name, listener) {
+                    if (!sseConnection.sourceListeners[name]) {
+                        sseConnection.sourceListeners[name] = [];
+                    }
+                    sseConnection.sourceListeners[name].push(listener);
+                    source.addEventListener(name, listener, false);
+                };
+                var pingParams = '?dispatcherId=' + encodeURIComponent(tabClientId)
+                    + sseConnection._getStreamTokenParam();
+
+                var source;
+                if (sseConnection.configuration.multiplex && !sseConnection.streamToken) {
+                    // One listen stream for all of the page's connections.
+                    source = MuxChannel.get(sseConnection.jenkinsUrl)
+                        .join(tabClientId, listenParams, listenUrl, options);
+                } else if (sseConnection.configuration.webSocket && response.data.webSocket
+                    && window.WebSocket !== undefined) {
+                    // Events, configure and ping all on the one connection. Falls
+                    // back to the SSE listen URL if the WebSocket can't be opened.
+                    var webSocketUrl = toWebSocketUrl(sseConnection.jenkinsUrl)
+                        + '/sse-gateway/websocket?clientId=' + encodeURIComponent(tabClientId);
+                    if (listenParams.length > 0) {
+                        webSocketUrl += '&' + listenParams.join('&');
+                    }
+                    source = new WebSocketSource(webSocketUrl, listenUrl, options);
+                } else {
+                    var EventSource = window.EventSource;
+                    source = new EventSource(listenUrl, options);
+                }
 
-                source.addEventListener('open', function (e) {
+                addSourceListener('open', function (e) {
                     LOGGER.debug('SSE channel "open" event.', e);
                     errorTracking.reset();
                     if (e.data) {
+                        streamHealthy = true;
                         sseConnection.jenkinsSessionInfo = JSON.parse(e.data);
                         if (onConnect) {
                             onConnect(sseConnection.jenkinsSessionInfo);
                         }
                     }
+                    if (listenBatchId !== undefined) {
+                        // The subscriptions sent on the listen request are applied.
+                        sseConnection._notifyConfigQueueListeners(listenBatchId);
+                        listenBatchId = undefined;
+                    }
+                    if (e.data) {
+                        // A WebSocket reopened. Anything sent on the old one may be lost.
+                        sseConnection._resendWebSocketBatches();
+                    }
                 }, false);
-                source.addEventListener('error', function (e) {
+                addSourceListener('error', function (e) {
                     LOGGER.debug('SSE channel "error" event.', e);
                     if (errorTracking.errors.length === 0) {
                         // First give the connection a chance to heal itself.
@@ -198,26 +298,48 @@ SSEConnection.prototype = {
                                         errorTracking.reset();
                                     }
                                 }, 3000); // TODO: magic num ... what's realistic ?
-                                ajax.get(sseConnection.pingUrl + '?dispatcherId=' +
-                                    encodeURIComponent(
-                                        sseConnection.jenkinsSessionInfo.dispatcherId));
+                                if (!(typeof source.send === 'function'
+                                    && source.send({type: 'ping'}))) {
+                                    ajax.get(sseConnection.pingUrl + pingParams);
+                                }
                             }
                         }, 4000); // TODO: magic num ... what's realistic ?
                     }
                     errorTracking.errors.push(e);
                 }, false);
-                source.addEventListener('pingback', function (e) {
+                addSourceListener('pingback', function (e) {
                     LOGGER.debug('SSE channel "pingback" event received.', e);
+                    streamHealthy = true;
                     errorTracking.reset();
                 }, false);
-                source.addEventListener('configure', function (e) {
+                addSourceListener('configure', function (e) {
                     LOGGER.debug('SSE channel "configure" ACK event (see batchId on event).', e);
                     if (e.data) {
                         var configureInfo = JSON.parse(e.data);
+                        delete sseConnection.webSocketBatches[configureInfo.batchId];
+                        sseConnection._logConfigureFailures(configureInfo);
                         sseConnection._notifyConfigQueueListeners(configureInfo.batchId);
                     }
                 }, false);
-                source.addEventListener('reload', function (e) {
+                addSourceListener('configureRetry', function (e) {
+                    // WebSocket only. The gateway configure queue is saturated. Back off
+                    // and send the same batch again (see _postConfigure).
+                    var retryInfo = JSON.parse(e.data);
+                    var batch = sseConnection.webSocketBatches[retryInfo.batchId];
+                    if (!batch) {
+                        return;
+                    }
+                    delete sseConnection.webSocketBatches[retryInfo.batchId];
+                    if (batch.attempt >= sseConnection.configuration.maxConfigureRetries) {
+                        LOGGER.error('Error configuring SSE connection. Configure queue saturated.', retryInfo);
+                        return;
+                    }
+                    setTimeout(function () {
+                        sseConnection._sendConfigure(batch.configurationQueue, retryInfo.batchId,
+                            batch.attempt + 1);
+                    }, sseConnection._getBackoffDelay(retryInfo.retryAfter, batch.attempt));
+                }, false);
+                addSourceListener('reload', function (e) {
                     LOGGER.debug('SSE channel "reload" event received. Reloading page now.', e);
                     window.location.reload(true);
                 }, false);
@@ -231,8 +353,50 @@ SSEConnection.prototype = {
                 sseConnection.eventSource = source;
                 if (sseConnection.connectable === false) {
                     sseConnection.disconnect();
+                    return;
+                }
+
+                // Some proxies buffer event streams, so events only arrive in delayed
+                // chunks. If the "open" event doesn't arrive, and a ping doesn't get
+                // a pingback either, switch to long-polling.
+                var probeStream = function (probe) {
+                    sseConnection.streamProbeTimeout = setTimeout(function () {
+                        sseConnection.streamProbeTimeout = undefined;
+                        if (streamHealthy || sseConnection.eventSource !== source) {
+                            return;
+                        }
+                        if (probe < sseConnection.configuration.streamProbes) {
+                            ajax.get(sseConnection.pingUrl + pingParams);
+                            probeStream(probe + 1);
+                        } else {
+                            LOGGER.warn('SSE Gateway events are not getting through (buffering proxy?). '
+                                + 'Switching to long-polling.');
+                            sseConnection._switchSource(source, new LongPollSource(
+                                sseConnection.jenkinsUrl + '/sse-gateway/poll/'
+                                + encodeURIComponent(tabClientId), listenParams,
+                                sseConnection.configuration.longPollErrorDelay));
+                        }
+                    }, sseConnection.configuration.streamProbeTimeout);
+                };
+                if (sseConnection.configuration.longPoll) {
+                    probeStream(0);
                 }
             }, function (httpObject) {
+                if (httpObject.status === 503 && sseConnection.connectable) {
+                    // The gateway is over its stream limits (admission control). Back off
+                    // and connect again. Subscriptions made in the meantime stay queued.
+                    var delay = sseConnection._getConfigureRetryDelay(httpObject,
+                        sseConnection.connectAttempt);
+                    sseConnection.connectAttempt++;
+                    LOGGER.debug('SSE Gateway not accepting new connections. Retrying connect in '
+                        + delay + 'ms.');
+                    delete clientConnections[sseConnection.clientId];
+                    sseConnection.connectRetryTimeout = setTimeout(function () {
+                        sseConnection.connectRetryTimeout = undefined;
+                        sseConnection.connect(onConnect);
+                    }, delay);
+                    return;
+                }
                 LOGGER.error('SSEConnection failure (' + httpObject.status
                     + '): ' + httpObject.responseText, httpObject);
                 sseConnection.connectable = false;
@@ -323,6 +487,21 @@ SSEConnection.prototype = {
         } finally {
             this.connectable = false;
             this._clearDoConfigure();
+            if (this.streamProbeTimeout) {
+                clearTimeout(this.streamProbeTimeout);
+                this.streamProbeTimeout = undefined;
+            }
+            if (this.connectRetryTimeout) {
+                clearTimeout(this.connectRetryTimeout);
+                this.connectRetryTimeout = undefined;
+                delete clientConnections[this.clientId];
+            }
+            if (this.releaseResumedTimeout) {
+                clearTimeout(this.releaseResumedTimeout);
+                this.releaseResumedTimeout = undefined;
+            }
+            this.resumedConfigs = undefined;
+            this.webSocketBatches = {};
         }
     },
     subscribe: function () {
@@ -379,15 +558,26 @@ SSEConnection.prototype = {
             config: config,
             callback: callback
         });
-        if (!this.configurationQueue.subscribe) {
-            this.configurationQueue.subscribe = [];
-        }
-        this.configurationQueue.subscribe.push(config);
 
         if (!this.channelListeners[channelName]) {
             this._addChannelListener(channelName);
         }
 
+        if (this._claimResumedConfig(config)) {
+            // The gateway dispatcher is already subscribed
+            // (resumed on connect). Nothing to configure.
+            this._saveSubscriptionState();
+            if (onSubscribed) {
+                setTimeout(onSubscribed, 0);
+            }
+            return callback;
+        }
+
+        if (!this.configurationQueue.subscribe) {
+            this.configurationQueue.subscribe = [];
+        }
+        this.configurationQueue.subscribe.push(config);
+
         this._scheduleDoConfigure();
 
         if (onSubscribed) {
@@ -452,6 +642,13 @@ SSEConnection.prototype = {
                 + '. This should never happen!!'));
         }
     },
+    _logConfigureFailures: function (configureInfo) {
+        if (configureInfo.failures) {
+            // e.g. over the gateway's subscriptions per connection limit.
+            LOGGER.warn('SSE Gateway did not apply some subscriptions (batchId '
+                + configureInfo.batchId + ').', configureInfo.failures);
+        }
+    },
     _notifyConfigQueueListeners: function (batchId) {
         var batchListeners = this.configurationListeners[batchId.toString()];
         if (batchListeners) {
@@ -545,6 +742,12 @@ SSEConnection.prototype = {
         } else if (this._hasPendingConfigs()) {
             var configureUrl = this.jenkinsUrl + '/sse-gateway/configure?batchId='
                 + this.configurationBatchId;
+            if (this.configuration.syncConfigure) {
+                // Small batches may then be applied straight away by the gateway,
+                // with the ACK in the response (instead of a "configure" event).
+                configureUrl += '&syncAck=true';
+            }
+            configureUrl += this._getStreamTokenParam();
 
             if (LOGGER.isDebugEnabled()) {
                 LOGGER.debug('Sending notification configuration request for configuration batch '
@@ -554,17 +757,235 @@ SSEConnection.prototype = {
             this.configurationQueue.dispatcherId = sessionInfo.dispatcherId;
             // clone the config, just in case of bad change later.
             var configurationQueue = JSON.parse(json.stringify(this.configurationQueue));
-            var sseConnection = this;
 
-            ajax.post(configurationQueue, configureUrl, sessionInfo, function (data, http) {
-                LOGGER.error('Error configuring SSE connection.', data, http);
-                if (sseConnection.configuration.onConfigError) {
-                    sseConnection.configuration.onConfigError(data, http);
-                }
-            });
+            if (!this._sendConfigure(configurationQueue, this.configurationBatchId, 0)) {
+                this._postConfigure(configurationQueue, configureUrl, sessionInfo, 0);
+            }
+            this._resetConfigQueue(true);
+            this._saveSubscriptionState();
+        }
+    },
+    _resumeSubscriptions: function (connectResponse, savedConfigs) {
+        var resumedConfigs;
+        if (connectResponse && connectResponse.subscriptions === 'resumed') {
+            // The gateway dispatcher has exactly the subscriptions we had before.
+            resumedConfigs = savedConfigs;
+        } else if (connectResponse && Array.isArray(connectResponse.subscriptions)) {
+            // The gateway dispatcher has different subscriptions. Work from those.
+            resumedConfigs = connectResponse.subscriptions;
+        }
+        if (!resumedConfigs || resumedConfigs.length === 0) {
+            return;
+        }
 
+        // Subscriptions made before we got to here do not need to be sent
+        // to the gateway if it already has them.
+        this.resumedConfigs = resumedConfigs.slice();
+        var pendingSubscribes = this.configurationQueue.subscribe || [];
+        this.configurationQueue.subscribe = [];
+        for (var i = 0; i < pendingSubscribes.length; i++) {
+            if (!this._claimResumedConfig(pendingSubscribes[i])) {
+                this.configurationQueue.subscribe.push(pendingSubscribes[i]);
+            }
+        }
+        if (!this._hasPendingConfigs()) {
+            // Nothing left to send for the current batch, so it's done.
+            this._clearDoConfigure();
+            this._notifyConfigQueueListeners(this.configurationBatchId);
             this._resetConfigQueue(true);
         }
+
+        // Any resumed subscriptions not claimed by a subscribe call within the
+        // claim timeout are no longer wanted. Unsubscribe them i.e. the diff.
+        var sseConnection = this;
+        this.releaseResumedTimeout = setTimeout(function () {
+            sseConnection._releaseResumedConfigs();
+        }, this.configuration.resumeClaimTimeout);
+    },
+    _claimResumedConfig: function (config) {
+        if (!this.resumedConfigs) {
+            return false;
+        }
+        var configString = canonicalFilterString(config);
+        for (var i = 0; i < this.resumedConfigs.length; i++) {
+            if (canonicalFilterString(this.resumedConfigs[i]) === configString) {
+                this.resumedConfigs.splice(i, 1);
+                return true;
+            }
+        }
+        return false;
+    },
+    _releaseResumedConfigs: function () {
+        var unclaimedConfigs = this.resumedConfigs;
+        this.resumedConfigs = undefined;
+        this.releaseResumedTimeout = undefined;
+        if (unclaimedConfigs && unclaimedConfigs.length > 0) {
+            for (var i = 0; i < unclaimedConfigs.length; i++) {
+                this.configurationQueue.unsubscribe.push(unclaimedConfigs[i]);
+            }
+            this._scheduleDoConfigure();
+        }
+    },
+    _getSubscriptionStateKey: function () {
+        if (!this.configuration.resumeSubscriptions || !this.tabClientId || !window.sessionStorage) {
+            return undefined;
+        }
+        return 'jenkins-sse-gateway-subs-' + this.tabClientId;
+    },
+    _loadSubscriptionState: function () {
+        var storeKey = this._getSubscriptionStateKey();
+        if (!storeKey) {
+            return undefined;
+        }
+        var savedState = window.sessionStorage.getItem(storeKey);
+        if (!savedState) {
+            return undefined;
+        }
+        try {
+            return JSON.parse(savedState);
+        } catch (e) {
+            return undefined;
+        }
+    },
+    _saveSubscriptionState: function () {
+        var storeKey = this._getSubscriptionStateKey();
+        if (storeKey) {
+            var configs = [];
+            for (var i = 0; i < this.subscriptions.length; i++) {
+                configs.push(this.subscriptions[i].config);
+            }
+            window.sessionStorage.setItem(storeKey, json.stringify(configs));
+        }
+    },
+    _postConfigure: function (configurationQueue, configureUrl, sessionInfo, attempt) {
+        var sseConnection = this;
+
+        ajax.post(configurationQueue, configureUrl, sessionInfo, function (data, http) {
+            if (http.status === 429 && attempt < sseConnection.configuration.maxConfigureRetries) {
+                // The gateway is overloaded. Back off and send the same batch
+                // again (same batchId, so the batch listeners still get notified).
+                var delay = sseConnection._getConfigureRetryDelay(http, attempt);
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug('SSE Gateway configure queue saturated. Retrying configuration request in '
+                        + delay + 'ms.', configureUrl);
+                }
+                setTimeout(function () {
+                    sseConnection._postConfigure(configurationQueue, configureUrl, sessionInfo, attempt + 1);
+                }, delay);
+                return;
+            }
+
+            LOGGER.error('Error configuring SSE connection.', data, http);
+            if (sseConnection.configuration.onConfigError) {
+                sseConnection.configuration.onConfigError(data, http);
+            }
+        }, function (response) {
+            if (response.data && response.data.applied) {
+                // Applied synchronously. The ACK is in the response.
+                sseConnection._logConfigureFailures(response.data);
+                sseConnection._notifyConfigQueueListeners(response.data.batchId);
+            }
+        });
+    },
+    _switchSource: function (oldSource, newSource) {
+        // Move the connection listeners (see connect) and channel listeners over.
+        for (var name in this.sourceListeners) {
+            if (this.sourceListeners.hasOwnProperty(name)) {
+                for (var i = 0; i < this.sourceListeners[name].length; i++) {
+                    newSource.addEventListener(name, this.sourceListeners[name][i], false);
+                }
+            }
+        }
+        for (var channelName in this.channelListeners) {
+            if (this.channelListeners.hasOwnProperty(channelName)) {
+                newSource.addEventListener(channelName, this.channelListeners[channelName], false);
+            }
+        }
+        oldSource.close();
+        this.eventSource = newSource;
+    },
+    _sendConfigure: function (configurationQueue, batchId, attempt) {
+        // Send the batch over the WebSocket, if we have one open. The ACK comes back
+        // as a "configure" event, or a "configureRetry" event if the gateway is overloaded.
+        if (!this.eventSource || typeof this.eventSource.send !== 'function') {
+            return false;
+        }
+        var message = extend({type: 'configure', batchId: batchId}, configurationQueue);
+        if (!this.eventSource.send(message)) {
+            return false;
+        }
+        this.webSocketBatches[batchId] = {
+            configurationQueue: configurationQueue,
+            attempt: attempt
+        };
+        return true;
+    },
+    _resendWebSocketBatches: function () {
+        var batches = this.webSocketBatches;
+        this.webSocketBatches = {};
+        for (var batchId in batches) {
+            if (batches.hasOwnProperty(batchId)) {
+                var batch = batches[batchId];
+                if (!this._sendConfigure(batch.configurationQueue, batchId, batch.attempt)) {
+                    var configureUrl = this.jenkinsUrl + '/sse-gateway/configure?batchId='
+                        + batchId + this._getStreamTokenParam();
+                    this._postConfigure(batch.configurationQueue, configureUrl,
+                        this.jenkinsSessionInfo, batch.attempt);
+                }
+            }
+        }
+    },
+    _getConfigureRetryDelay: function (http, attempt) {
+        return this._getBackoffDelay(parseInt(http.getResponseHeader('Retry-After'), 10), attempt);
+    },
+    _getBackoffDelay: function (retryAfter, attempt) {
+        // Exponential backoff, but never sooner than the gateway's Retry-After hint.
+        var backoff = this.configuration.batchConfigDelay * Math.pow(2, attempt + 1);
+        if (!isNaN(retryAfter)) {
+            backoff = Math.max(backoff, retryAfter * 1000);
+        }
+        backoff = Math.min(backoff, this.configuration.maxConfigureBackoff);
+        // Add some jitter so that all the clients backing off
+        // at the same time do not all retry at the same time.
+        return Math.round(backoff + (Math.random() * backoff * 0.5));
+    },
+    _takeListenSubscriptions: function (listenParams) {
+        var subscribes = this.configurationQueue.subscribe;
+        if (!this.configuration.listenSubscribe || !subscribes || subscribes.length === 0
+            || this.configurationQueue.unsubscribe.length > 0) {
+            return undefined;
+        }
+        var subscribeParam = 'subscribe=' + encodeURIComponent(json.stringify(subscribes));
+        if (subscribeParam.length > this.configuration.maxListenSubscribeLength) {
+            // Too long for a URL. Send them in a configure request as normal.
+            return undefined;
+        }
+
+        listenParams.push(subscribeParam);
+        // The current batch is now going on the listen request, so no configure
+        // request for it. Its listeners get notified when the channel opens.
+        var listenBatchId = this.configurationBatchId;
+        this._clearDoConfigure();
+        this._resetConfigQueue(true);
+        this._saveSubscriptionState();
+        return listenBatchId;
+    },
+    _loadStreamToken: function () {
+        if (!this.tabClientId || !window.sessionStorage) {
+            return undefined;
+        }
+        return window.sessionStorage.getItem('jenkins-sse-gateway-token-' + this.tabClientId) || undefined;
+    },
+    _saveStreamToken: function () {
+        if (this.tabClientId && window.sessionStorage) {
+            window.sessionStorage.setItem('jenkins-sse-gateway-token-' + this.tabClientId, this.streamToken);
+        }
+    },
+    _getStreamTokenParam: function () {
+        if (this.streamToken) {
+            return '&streamToken=' + encodeURIComponent(this.streamToken);
+        }
+        return '';
     },
     _hasPendingConfigs: function () {
         return (this.configurationQueue.subscribe.length > 0
@@ -574,6 +995,40 @@ SSEConnection.prototype = {
 
 /* eslint-disable no-param-reassign */
 
+// Must produce exactly the same string as SubscriptionDigest.toCanonicalString (Java).
+function canonicalFilterString(filter) {
+    var keys = Object.keys(filter).sort();
+    var pairs = [];
+    for (var i = 0; i < keys.length; i++) {
+        pairs.push(keys[i] + '=' + String(filter[keys[i]]));
+    }
+    return pairs.join('&');
+}
+
+function fnv1a(string, offsetBasis) {
+    var hash = offsetBasis;
+    for (var i = 0; i < string.length; i++) {
+        hash ^= string.charCodeAt(i);
+        hash = Math.imul(hash, 0x01000193);
+    }
+    var hex = (hash >>> 0).toString(16);
+    while (hex.length < 8) {
+        hex = '0' + hex;
+    }
+    return hex;
+}
+
+// Must produce exactly the same digest as SubscriptionDigest.digest (Java).
+function subscriptionDigest(configs) {
+    var filterStrings = [];
+    for (var i = 0; i < configs.length; i++) {
+        filterStrings.push(canonicalFilterString(configs[i]));
+    }
+    filterStrings.sort();
+    var canonical = filterStrings.join('\n');
+    return fnv1a(canonical, 0x811c9dc5) + fnv1a(canonical, 0x050c5d1f);
+}
+
 function containsAll(object, filter) {
     for (var property in filter) {
         if (filter.hasOwnProperty(property)) {
@@ -591,6 +1046,346 @@ function containsAll(object, filter) {
     return true;
 }
 
+/**
+ * An EventSource lookalike on a WebSocket (see WebSocketTransport.java). Each frame is
+ * <code>{"event": .., "data": ..}</code> and is passed to the event listeners as
+ * <code>{data: ..}</code>, just like an EventSource event. If the WebSocket never opens
+ * (e.g. blocked by a proxy), it falls back to an EventSource on the SSE listen URL.
+ * @constructor
+ */
+function WebSocketSource(webSocketUrl, listenUrl, options) {
+    this.webSocketUrl = webSocketUrl;
+    this.listenUrl = listenUrl;
+    this.options = options;
+    this.listeners = {};
+    this.socket = undefined;
+    this.eventSource = undefined;
+    this.everOpened = false;
+    this.closed = false;
+    this.reconnectTimeout = undefined;
+    this._open();
+}
+
+WebSocketSource.prototype = {
+    addEventListener: function (name, listener) {
+        if (!this.listeners[name]) {
+            this.listeners[name] = [];
+        }
+        this.listeners[name].push(listener);
+        if (this.eventSource) {
+            this.eventSource.addEventListener(name, listener, false);
+        }
+    },
+    removeEventListener: function (name, listener) {
+        var listeners = this.listeners[name];
+        if (listeners) {
+            var index = listeners.indexOf(listener);
+            if (index !== -1) {
+                listeners.splice(index, 1);
+            }
+        }
+        if (this.eventSource) {
+            this.eventSource.removeEventListener(name, listener);
+        }
+    },
+    send: function (message) {
+        if (this.socket && this.socket.readyState === 1) {
+            this.socket.send(json.stringify(message));
+            return true;
+        }
+        return false;
+    },
+    close: function () {
+        this.closed = true;
+        if (this.reconnectTimeout) {
+            clearTimeout(this.reconnectTimeout);
+            this.reconnectTimeout = undefined;
+        }
+        if (this.socket) {
+            this.socket.close();
+            this.socket = undefined;
+        }
+        if (this.eventSource) {
+            this.eventSource.close();
+        }
+    },
+    _open: function () {
+        var self = this;
+        var socket = new window.WebSocket(this.webSocketUrl);
+
+        socket.onopen = function () {
+            self.everOpened = true;
+        };
+        socket.onmessage = function (e) {
+            var frame;
+            try {
+                frame = JSON.parse(e.data);
+            } catch (error) {
+                LOGGER.debug('Invalid WebSocket frame.', e.data);
+                return;
+            }
+            self._emit(frame.event || 'message', {data: frame.data});
+        };
+        socket.onclose = function (e) {
+            self.socket = undefined;
+            if (self.closed) {
+                return;
+            }
+            if (!self.everOpened) {
+                LOGGER.debug('Unable to open WebSocket. Falling back to SSE.', e);
+                self._fallBack();
+                return;
+            }
+            self._emit('error', e);
+            // As the gateway's SSE retry hint i.e. spread the reconnects.
+            self.reconnectTimeout = setTimeout(function () {
+                self.reconnectTimeout = undefined;
+                self._open();
+            }, 3000 + Math.round(Math.random() * 10000));
+        };
+        this.socket = socket;
+    },
+    _fallBack: function () {
+        var EventSource = window.EventSource;
+        this.eventSource = new EventSource(this.listenUrl, this.options);
+        for (var name in this.listeners) {
+            if (this.listeners.hasOwnProperty(name)) {
+                for (var i = 0; i < this.listeners[name].length; i++) {
+                    this.eventSource.addEventListener(name, this.listeners[name][i], false);
+                }
+            }
+        }
+    },
+    _emit: function (name, event) {
+        var listeners = this.listeners[name];
+        if (listeners) {
+            // Copy, in case a listener removes itself.
+            listeners = listeners.slice();
+            for (var i = 0; i < listeners.length; i++) {
+                try {
+                    listeners[i](event);
+                } catch (e) {
+                    LOGGER.error('Unexpected error in WebSocket "' + name + '" event listener.', e);
+                }
+            }
+        }
+    }
+};
+
+/**
+ * An EventSource lookalike on long-poll requests (see LongPollTransport.java), for when
+ * event streams are buffered by a proxy. Each poll response is
+ * <code>{"cursor": .., "events": [{"event": .., "data": ..}, ..]}</code>. The events are
+ * passed to the event listeners as <code>{data: ..}</code>, and the cursor is sent on
+ * the next poll (acknowledging the events).
+ * @constructor
+ */
+function LongPollSource(pollUrl, pollParams, errorDelay) {
+    this.pollUrl = pollUrl;
+    this.pollParams = pollParams.slice();
+    this.errorDelay = errorDelay;
+    this.listeners = {};
+    this.cursor = undefined;
+    this.closed = false;
+    this.pollTimeout = undefined;
+    this._poll();
+}
+
+LongPollSource.prototype = {
+    addEventListener: WebSocketSource.prototype.addEventListener,
+    removeEventListener: WebSocketSource.prototype.removeEventListener,
+    close: function () {
+        this.closed = true;
+        if (this.pollTimeout) {
+            clearTimeout(this.pollTimeout);
+            this.pollTimeout = undefined;
+        }
+    },
+    _poll: function () {
+        var self = this;
+        var params = this.pollParams.slice();
+        if (this.cursor !== undefined) {
+            params.push('cursor=' + encodeURIComponent(this.cursor));
+        }
+        var url = this.pollUrl;
+        if (params.length > 0) {
+            url += '?' + params.join('&');
+        }
+        var pollStart = new Date().getTime();
+
+        ajax.get(url, function (response) {
+            if (self.closed) {
+                return;
+            }
+            self.cursor = response.cursor;
+            var events = response.events || [];
+            for (var i = 0; i < events.length; i++) {
+                self._emit(events[i].event || 'message', {data: events[i].data});
+            }
+            // Poll again straight away, unless the gateway could not park the
+            // poll (no events and no wait), in which case don't hammer it.
+            var parked = (events.length > 0 || new Date().getTime() - pollStart > 1000);
+            self._schedulePoll(parked ? 0 : self.errorDelay);
+        }, function (httpObject) {
+            if (self.closed) {
+                return;
+            }
+            self._emit('error', httpObject);
+            var delay = self.errorDelay + Math.round(Math.random() * self.errorDelay);
+            var retryAfter = parseInt(httpObject.getResponseHeader('Retry-After'), 10);
+            if (!isNaN(retryAfter)) {
+                delay = Math.max(delay, retryAfter * 1000);
+            }
+            self._schedulePoll(delay);
+        });
+    },
+    _schedulePoll: function (delay) {
+        var self = this;
+        if (this.closed) {
+            return;
+        }
+        this.pollTimeout = setTimeout(function () {
+            self.pollTimeout = undefined;
+            self._poll();
+        }, delay);
+    },
+    _emit: WebSocketSource.prototype._emit
+};
+
+/**
+ * A multiplexed listen stream (see MuxStream.java), shared by all the connections on the
+ * page to the same Jenkins. Each connection joins it and gets a {@link MuxSource}.
+ * @constructor
+ */
+function MuxChannel(jenkinsUrl) {
+    var channel = this;
+    this.jenkinsUrl = jenkinsUrl;
+    this.muxId = generateId();
+    this.sources = {};
+    // The join params, by clientId.
+    this.joinParams = {};
+    this.opened = false;
+
+    var EventSource = window.EventSource;
+    this.eventSource = new EventSource(jenkinsUrl + '/sse-gateway/mux/' + encodeURIComponent(this.muxId));
+    this.eventSource.addEventListener('open', function () {
+        // Clients can join once the gateway has the stream. Join all of them again
+        // on every open. The gateway may not know the stream after a reconnect
+        // (e.g. a restart) and joining a client already on the stream is a no-op.
+        channel.opened = true;
+        for (var clientId in channel.sources) {
+            if (channel.sources.hasOwnProperty(clientId)) {
+                channel._sendJoin(clientId, channel.joinParams[clientId]);
+            }
+        }
+    }, false);
+    this.eventSource.addEventListener('mux', function (e) {
+        var frame = JSON.parse(e.data);
+        var source = channel.sources[frame.client];
+        if (source) {
+            source._emit(frame.event || 'message', {data: frame.data});
+        }
+    }, false);
+    this.eventSource.addEventListener('error', function (e) {
+        // Hold joins until the stream is open again.
+        channel.opened = false;
+        for (var clientId in channel.sources) {
+            if (channel.sources.hasOwnProperty(clientId)) {
+                channel.sources[clientId]._emit('error', e);
+            }
+        }
+    }, false);
+}
+
+MuxChannel.get = function (jenkinsUrl) {
+    if (!muxChannels[jenkinsUrl]) {
+        muxChannels[jenkinsUrl] = new MuxChannel(jenkinsUrl);
+    }
+    return muxChannels[jenkinsUrl];
+};
+
+MuxChannel.prototype = {
+    join: function (clientId, params, listenUrl, options) {
+        var source = new MuxSource(this, clientId, listenUrl, options);
+        this.sources[clientId] = source;
+        this.joinParams[clientId] = params.slice();
+        if (this.opened) {
+            this._sendJoin(clientId, params);
+        }
+        return source;
+    },
+    leave: function (clientId) {
+        delete this.sources[clientId];
+        delete this.joinParams[clientId];
+        ajax.post(undefined, this.jenkinsUrl + '/sse-gateway/muxLeave?muxId=' + encodeURIComponent(this.muxId)
+            + '&clientId=' + encodeURIComponent(clientId), {}, function () {
+        });
+        for (var otherClientId in this.sources) {
+            if (this.sources.hasOwnProperty(otherClientId)) {
+                return;
+            }
+        }
+        // No clients left on the stream.
+        this.eventSource.close();
+        delete muxChannels[this.jenkinsUrl];
+    },
+    _sendJoin: function (clientId, params) {
+        var channel = this;
+        var joinUrl = this.jenkinsUrl + '/sse-gateway/muxJoin?muxId=' + encodeURIComponent(this.muxId)
+            + '&clientId=' + encodeURIComponent(clientId);
+        if (params.length > 0) {
+            joinUrl += '&' + params.join('&');
+        }
+        ajax.post(undefined, joinUrl, {}, function (data, httpObject) {
+            var source = channel.sources[clientId];
+            if (source) {
+                // e.g. the stream is full. Listen on a stream of its own instead.
+                LOGGER.debug('Unable to join multiplexed SSE stream (' + httpObject.status
+                    + '). Listening on a separate stream.');
+                delete channel.sources[clientId];
+                delete channel.joinParams[clientId];
+                source._fallBack();
+            }
+        });
+    }
+};
+
+/**
+ * A connection's view of a {@link MuxChannel}. An EventSource lookalike.
+ * @constructor
+ */
+function MuxSource(channel, clientId, listenUrl, options) {
+    this.channel = channel;
+    this.clientId = clientId;
+    this.listenUrl = listenUrl;
+    this.options = options;
+    this.listeners = {};
+    this.eventSource = undefined;
+}
+
+MuxSource.prototype = {
+    addEventListener: WebSocketSource.prototype.addEventListener,
+    removeEventListener: WebSocketSource.prototype.removeEventListener,
+    close: function () {
+        if (this.eventSource) {
+            this.eventSource.close();
+        } else {
+            this.channel.leave(this.clientId);
+        }
+    },
+    _fallBack: WebSocketSource.prototype._fallBack,
+    _emit: WebSocketSource.prototype._emit
+};
+
+function toWebSocketUrl(url) {
+    if (url.indexOf('http') === 0) {
+        return 'ws' + url.substring(4);
+    }
+    // Relative to the page e.g. the Jenkins root URL is "/jenkins".
+    var protocol = (window.location.protocol === 'https:' ? 'wss:' : 'ws:');
+    return protocol + '//' + window.location.host + url;
+}
+
 function normalizeUrl(url) {
     if (!url) {
         return '';
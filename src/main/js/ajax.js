@@ -13,20 +13,9 @@ exports.get = function (url, onSuccess, onError) {
                 LOGGER.debug('HTTP GET %s', url, http);
             }
             if (http.status >= 200 && http.status < 300) {
+                var responseJSON;
                 try {
-                    var responseJSON = JSON.parse(http.responseText);
-                    // The request may have succeeded, but there might have been
-                    // some processing error on the backend and a hudson.util.HttpResponses
-                    // JSON response.
-                    if (responseJSON.status && responseJSON.status === 'error') {
-                        LOGGER.error('SSE Gateway error response to '
-                            + url + ': '
-                            + responseJSON.message);
-                    }
-
-                    if (onSuccess) {
-                        onSuccess(responseJSON);
-                    }
+                    responseJSON = JSON.parse(http.responseText);
                 } catch (e) {
                     // Not a JSON response.
                     if (onError) {
@@ -34,6 +23,21 @@ exports.get = function (url, onSuccess, onError) {
                     } else {
                         LOGGER.warn('SSE Gateway error parsing response to GET ' + url, e);
                     }
+                    return;
+                }
+                // The request may have succeeded, but there might have been
+                // some processing error on the backend and a hudson.util.HttpResponses
+                // JSON response.
+                if (responseJSON.status && responseJSON.status === 'error') {
+                    LOGGER.error('SSE Gateway error response to '
+                        + url + ': '
+                        + responseJSON.message);
+                }
+
+                // Outside the try, so that an exception in the callback is not
+                // taken for a parse error (and onError called after onSuccess).
+                if (onSuccess) {
+                    onSuccess(responseJSON);
                 }
             } else {
                 if (onError) {
@@ -79,7 +83,7 @@ exports.isAlive = function (url, callback) {
     http.send();
 };
 
-exports.post = function (data, toUrl, jenkinsSessionInfo, onError) {
+exports.post = function (data, toUrl, jenkinsSessionInfo, onError, onSuccess) {
     var http = new XMLHttpRequest();
 
     if (typeof data === 'string') {
@@ -93,22 +97,30 @@ exports.post = function (data, toUrl, jenkinsSessionInfo, onError) {
                 LOGGER.debug('HTTP POST %s', toUrl, http);
             }
             if (http.status >= 200 && http.status < 300) {
+                var responseJSON;
                 try {
-                    var responseJSON = JSON.parse(http.responseText);
-                    // The request may have succeeded, but there might have been
-                    // some processing error on the backend and a hudson.util.HttpResponses
-                    // JSON response.
-                    if (responseJSON.status && responseJSON.status === 'error') {
-                        LOGGER.error('SSE Gateway error response to '
-                            + toUrl + ': '
-                            + responseJSON.message);
-                    }
+                    responseJSON = JSON.parse(http.responseText);
                 } catch (e) {
+                    // Not a JSON response.
                     if (onError) {
                         onError(data, http);
                     } else {
                         LOGGER.warn('SSE Gateway error parsing response to POST ' + toUrl, e);
                     }
+                    return;
+                }
+                // The request may have succeeded, but there might have been
+                // some processing error on the backend and a hudson.util.HttpResponses
+                // JSON response.
+                if (responseJSON.status && responseJSON.status === 'error') {
+                    LOGGER.error('SSE Gateway error response to '
+                        + toUrl + ': '
+                        + responseJSON.message);
+                }
+
+                // Outside the try. See get.
+                if (onSuccess) {
+                    onSuccess(responseJSON);
                 }
             } else {
                 if (onError) {
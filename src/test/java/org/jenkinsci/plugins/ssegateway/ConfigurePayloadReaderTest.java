@@ -0,0 +1,74 @@
+package org.jenkinsci.plugins.ssegateway;
+
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+/**
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class ConfigurePayloadReaderTest {
+
+    @Test
+    public void test_read() throws IOException {
+        ConfigurePayloadReader payload = ConfigurePayloadReader.read(new StringReader("{"
+                + "\"dispatcherId\": \"1111111111\","
+                + "\"other\": [{\"a\": [1, 2]}, \"b\", null],"
+                + "\"subscribe\": ["
+                + "  {\"jenkins_channel\": \"job\", \"job_name\": \"my \\\"job\\\" \\u00e9\", \"job_run_queueId\": 12, \"x\": {\"y\": 1}},"
+                + "  \"not-a-filter\","
+                + "  {\"job_run_queueId\": \"12\", \"job_name\": \"my \\\"job\\\" \\u00e9\", \"jenkins_channel\": \"job\"}"
+                + "],"
+                + "\"unsubscribe\": [{\"jenkins_channel\": \"security\"}]"
+                + "}"));
+
+        Assert.assertEquals("1111111111", payload.getDispatcherId());
+        Assert.assertFalse(payload.isUnsubscribeAll());
+
+        List<EventFilter> subscribeSet = payload.getSubscribeSet();
+        Assert.assertEquals(2, subscribeSet.size());
+        EventFilter filter = subscribeSet.get(0);
+        Assert.assertEquals("job", filter.getChannelName());
+        Assert.assertEquals("my \"job\" \u00e9", filter.get("job_name"));
+        Assert.assertEquals("12", filter.get("job_run_queueId"));
+        Assert.assertNull(filter.get("x"));
+        // Identical filters (regardless of property order) are the same, shared instance.
+        Assert.assertSame(filter, subscribeSet.get(1));
+
+        Assert.assertEquals(1, payload.getUnsubscribeSet().size());
+        Assert.assertEquals("security", payload.getUnsubscribeSet().get(0).getChannelName());
+    }
+
+    @Test
+    public void test_read_unsubscribe_all() throws IOException {
+        ConfigurePayloadReader payload = ConfigurePayloadReader.read(new StringReader("{\"dispatcherId\":\"1111111111\",\"unsubscribe\":\"*\"}"));
+        Assert.assertTrue(payload.isUnsubscribeAll());
+        Assert.assertTrue(payload.getSubscribeSet().isEmpty());
+        Assert.assertTrue(payload.getUnsubscribeSet().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void test_read_truncated() throws IOException {
+        ConfigurePayloadReader.read(new StringReader("{\"dispatcherId\":\"1111111111\",\"subscribe\":[{\"jenkins_channel\":\"job\"}"));
+    }
+
+    @Test
+    public void test_read_filters() throws IOException {
+        List<EventFilter> filters = ConfigurePayloadReader.read(new StringReader("{}")).getSubscribeSet();
+        Assert.assertTrue(filters.isEmpty());
+
+        filters = ConfigurePayloadReader.readFilters(new StringReader("[{\"jenkins_channel\":\"job\"},{\"jenkins_channel\":\"pipeline\"}] "));
+        Assert.assertEquals(2, filters.size());
+        Assert.assertEquals("job", filters.get(0).getChannelName());
+        Assert.assertEquals("pipeline", filters.get(1).getChannelName());
+    }
+
+    @Test(expected = IOException.class)
+    public void test_read_filters_trailing() throws IOException {
+        ConfigurePayloadReader.readFilters(new StringReader("[{\"jenkins_channel\":\"job\"}]]"));
+    }
+}
@@ -17,6 +17,8 @@ import org.mockito.Mockito;
 import jakarta.servlet.ServletException;
 import jakarta.servlet.http.HttpSession;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Map;
 
 /**
@@ -99,12 +101,97 @@ public class EndpointUnitTest {
         waitForCountToShrink(subscribers, 0);
     }
 
+    @Test
+    public void test_configure_batches_applied_in_order() throws Exception {
+        Endpoint endpoint = new Endpoint() {
+            @Override protected void init() {}
+        };
+        long applied = SubscriptionConfigQueue.getStats().getLong("applied");
+
+        // Subscribe and unsubscribe without waiting in between. Both batches are for the
+        // same dispatcher, so must be applied in order i.e. should end up unsubscribed.
+        endpoint.doConfigure(newRequest("/sample-config-02.json"), response);
+        endpoint.doConfigure(newRequest("/sample-config-03.json"), response);
+
+        long start = System.currentTimeMillis();
+        while (SubscriptionConfigQueue.getStats().getLong("applied") < applied + 2) {
+            if (System.currentTimeMillis() > start + 10000) {
+                Assert.fail("Timed out waiting on configure batches to be applied.");
+            }
+            Thread.sleep(50);
+        }
+        Assert.assertEquals(0, eventDispatcher.getSubscribers().size());
+    }
+
+    @Test
+    public void test_configure_saturated() throws Exception {
+        Endpoint endpoint = new Endpoint() {
+            @Override protected void init() {}
+        };
+
+        int maxQueuedPerSession = SubscriptionConfigQueue.MAX_QUEUED_PER_SESSION;
+        SubscriptionConfigQueue.MAX_QUEUED_PER_SESSION = 0;
+        try {
+            endpoint.doConfigure(newRequest("/sample-config-02.json"), response);
+            Mockito.verify(response).setStatus(429);
+            Mockito.verify(response).setHeader(Mockito.eq("Retry-After"), Mockito.anyString());
+            Assert.assertEquals(0, eventDispatcher.getSubscribers().size());
+        } finally {
+            SubscriptionConfigQueue.MAX_QUEUED_PER_SESSION = maxQueuedPerSession;
+        }
+    }
+
+    @Test
+    public void test_coalesce_configs() throws Exception {
+        // A subscribe followed by an unsubscribe of the same filter cancel out.
+        Assert.assertFalse(SubscriptionConfigQueue.SubscriptionConfig.coalesce(Arrays.asList(
+                newConfig("/sample-config-02.json"), newConfig("/sample-config-03.json"))).hasConfigs());
+
+        // As do an unsubscribe followed by a subscribe.
+        Assert.assertFalse(SubscriptionConfigQueue.SubscriptionConfig.coalesce(Arrays.asList(
+                newConfig("/sample-config-03.json"), newConfig("/sample-config-02.json"))).hasConfigs());
+
+        // Only the once. Repeated subscribes are kept.
+        SubscriptionConfigQueue.SubscriptionConfig netConfig = SubscriptionConfigQueue.SubscriptionConfig.coalesce(Arrays.asList(
+                newConfig("/sample-config-03.json"), newConfig("/sample-config-02.json"), newConfig("/sample-config-02.json"),
+                newConfig("/sample-config-02.json")));
+        Assert.assertEquals(2, netConfig.size());
+
+        // An unsubscribe-all is never dropped.
+        Assert.assertTrue(SubscriptionConfigQueue.SubscriptionConfig.coalesce(Arrays.asList(
+                newConfig("/sample-config-04.json"), newConfig("/sample-config-05.json"))).hasConfigs());
+    }
+
+    @Test
+    public void test_configure_sync() throws Exception {
+        Endpoint endpoint = new Endpoint() {
+            @Override protected void init() {}
+        };
+
+        // Small batch, and the client wants the ACK in the response i.e.
+        // should be applied before doConfigure returns. No waiting.
+        StaplerRequest2 request = newRequest("/sample-config-02.json");
+        Mockito.when(request.getParameter("syncAck")).thenReturn("true");
+        endpoint.doConfigure(request, response);
+        Assert.assertEquals(1, eventDispatcher.getSubscribers().size());
+
+        request = newRequest("/sample-config-03.json");
+        Mockito.when(request.getParameter("syncAck")).thenReturn("true");
+        endpoint.doConfigure(request, response);
+        Assert.assertEquals(0, eventDispatcher.getSubscribers().size());
+    }
+
+    private SubscriptionConfigQueue.SubscriptionConfig newConfig(String config) throws IOException {
+        return SubscriptionConfigQueue.SubscriptionConfig.fromRequest(newRequest(config));
+    }
+
     private StaplerRequest2 newRequest(String config) throws IOException {
         StaplerRequest2 request = Mockito.mock(StaplerRequest2.class);
         HttpSession session = Mockito.mock(HttpSession.class);
-        Map dispatchers = Mockito.mock(Map.class);
+        Map<String, EventDispatcher> dispatchers = new HashMap<>();
         
-        Mockito.when(dispatchers.get("1111111111")).thenReturn(eventDispatcher);
+        dispatchers.put("1111111111", eventDispatcher);
+        Mockito.when(session.getId()).thenReturn("session-" + System.identityHashCode(eventDispatcher));
         Mockito.when(request.getSession()).thenReturn(session);
         Mockito.when(session.getAttribute(EventDispatcher.SESSION_SYNC_OBJ)).thenReturn("blah");
         Mockito.when(session.getAttribute(EventDispatcherFactory.DISPATCHER_SESSION_KEY)).thenReturn(dispatchers);
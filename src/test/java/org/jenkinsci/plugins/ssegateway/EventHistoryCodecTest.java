@@ -0,0 +1,70 @@
+package org.jenkinsci.plugins.ssegateway;
+
+import org.jenkinsci.plugins.pubsub.EventProps;
+import org.jenkinsci.plugins.pubsub.SimpleMessage;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link EventHistoryCodec} roundtrip and compression ratio on realistic
+ * Jenkins event payloads.
+ *
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class EventHistoryCodecTest {
+
+    @Test
+    public void test_roundtrip() throws Exception {
+        for (String channelName : new String[] {"job", "pipeline", "some-other-channel"}) {
+            String eventJSON = createJobEvent(channelName, 1).toJSON();
+            Assert.assertEquals(eventJSON, EventHistoryCodec.decode(EventHistoryCodec.encode(channelName, eventJSON)));
+        }
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void test_decode_unknown_format() throws Exception {
+        EventHistoryCodec.decode("{}".getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void test_job_events_compression() throws Exception {
+        List<String> events = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            events.add(createJobEvent("job", i).toJSON());
+        }
+
+        long rawBytes = 0;
+        long encodedBytes = 0;
+        for (String eventJSON : events) {
+            byte[] encoded = EventHistoryCodec.encode("job", eventJSON);
+            rawBytes += eventJSON.getBytes(StandardCharsets.UTF_8).length;
+            encodedBytes += encoded.length;
+            Assert.assertEquals(eventJSON, EventHistoryCodec.decode(encoded));
+        }
+
+        // These events are ~500 bytes, most of which are the same keys and values
+        // that are in the dictionary. Measured at ~3.5x. Guard against falling under 3x.
+        Assert.assertTrue("Compressed to " + encodedBytes + " of " + rawBytes, encodedBytes * 3 < rawBytes);
+    }
+
+    private SimpleMessage createJobEvent(String channelName, int runNumber) {
+        return new SimpleMessage()
+                .setChannelName(channelName)
+                .setEventName("job_run_ended")
+                .set(EventProps.Jenkins.jenkins_object_type, "org.jenkinsci.plugins.workflow.job.WorkflowRun")
+                .set(EventProps.Jenkins.jenkins_object_name, "#" + runNumber)
+                .set(EventProps.Jenkins.jenkins_object_id, Integer.toString(runNumber))
+                .set(EventProps.Jenkins.jenkins_object_url, "job/order-management-webapp/job/master/" + runNumber + "/")
+                .set("jenkins_org", "jenkins")
+                .set("job_name", "order-management-webapp/master")
+                .set("job_ismultibranch", "true")
+                .set("job_run_queueId", Integer.toString(10000 + runNumber))
+                .set("job_run_status", "SUCCESS")
+                .set("sse_subs_dispatcher", "jenkins-blueocean-core-js-1520341245813-x8rjz")
+                .set("sse_subs_dispatcher_inst", "1283749561");
+    }
+}
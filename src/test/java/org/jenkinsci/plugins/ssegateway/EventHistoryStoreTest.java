@@ -11,6 +11,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
 
 /**
  * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
@@ -44,6 +48,18 @@ public class EventHistoryStoreTest {
         Assert.assertEquals(0, EventHistoryStore.getChannelEventCount("job"));
     }
 
+    @Test
+    public void test_count_ignores_in_flight_writes() throws Exception {
+        storeMessages(3);
+        File[] bucketDirs = EventHistoryStore.getChannelDir("job").listFiles(File::isDirectory);
+        Assert.assertNotNull(bucketDirs);
+        Assert.assertTrue(bucketDirs.length > 0);
+
+        // An event file still being written is not an event (yet).
+        Assert.assertTrue(new File(bucketDirs[0], "in-flight_WRITE.json").createNewFile());
+        Assert.assertEquals(3, EventHistoryStore.getChannelEventCount("job"));
+    }
+
     @Test
     public void test_delete_stale_events() throws Exception {
         // SKip the test on Windows ci.jenkins.io agents because it
@@ -98,6 +114,308 @@ public class EventHistoryStoreTest {
         Assert.assertEquals(message.getEventUUID(), eventAsJSON.getString(EventProps.Jenkins.jenkins_event_uuid.name()));
     }
     
+    @Test
+    public void test_get_event_after_expire() throws Exception {
+        Assume.assumeFalse(Functions.isWindows() && System.getenv("CI") != null);
+        SimpleMessage message = createMessage();
+
+        EventHistoryStore.store(message);
+        Assert.assertNotNull(EventHistoryStore.getChannelEvent("job", message.getEventUUID()));
+
+        // The expiry was set to 3 seconds in the @Before. The bucket holding the
+        // event should be dropped (index and all) a bucket width after that.
+        new WaitTimer().waitUntil(4000);
+        EventHistoryStore.deleteStaleHistory();
+        Assert.assertNull(EventHistoryStore.getChannelEvent("job", message.getEventUUID()));
+        Assert.assertEquals(0, EventHistoryStore.getChannelEventCount("job"));
+        Assert.assertTrue(EventHistoryStore.getStats().getLong("expiredBuckets") > 0);
+    }
+
+    @Test
+    public void test_startup_purge() throws Exception {
+        File purgeTestRoot = new File("./target/purgeTest/sse-events");
+        EventHistoryStore.setHistoryRoot(purgeTestRoot);
+        storeMessages(10, 0);
+        Assert.assertEquals(10, EventHistoryStore.getChannelEventCount("job"));
+
+        // Simulate a restart. The old history should be moved
+        // aside straight away and the new history root be empty.
+        EventHistoryPurge.start(purgeTestRoot);
+        Assert.assertFalse(purgeTestRoot.exists());
+        EventHistoryStore.setHistoryRoot(purgeTestRoot);
+        Assert.assertEquals(0, EventHistoryStore.getChannelEventCount("job"));
+
+        // And the old history should get purged in the background.
+        Assert.assertTrue(EventHistoryPurge.awaitCompletion(10000));
+        String[] purgeTestFiles = purgeTestRoot.getParentFile().list();
+        Assert.assertNotNull(purgeTestFiles);
+        Assert.assertEquals(1, purgeTestFiles.length); // just the new history root
+        Assert.assertTrue(EventHistoryPurge.getStats().getLong("purgedFiles") >= 10);
+    }
+
+    @Test
+    public void test_startup_purge_repeated() throws Exception {
+        File purgeTestRoot = new File("./target/purgeRepeatedTest/sse-events");
+
+        // Restarts in quick succession, some while the previous purge is still running.
+        for (int i = 0; i < 5; i++) {
+            EventHistoryStore.setHistoryRoot(purgeTestRoot);
+            storeMessages(5, 0);
+            EventHistoryPurge.start(purgeTestRoot);
+            Thread.sleep(2); // a new purge dir name
+        }
+        EventHistoryStore.setHistoryRoot(purgeTestRoot);
+
+        // None of the purge dirs is missed.
+        Assert.assertTrue(EventHistoryPurge.awaitCompletion(10000));
+        String[] purgeTestFiles = purgeTestRoot.getParentFile().list();
+        Assert.assertNotNull(purgeTestFiles);
+        Assert.assertEquals(1, purgeTestFiles.length); // just the new history root
+    }
+
+    @Test
+    public void test_reclaim_idle_channel() throws Exception {
+        EventHistoryStore.onChannelSubscribe("job");
+        storeMessages(5, 0);
+        Assert.assertEquals(5, EventHistoryStore.getChannelEventCount("job"));
+
+        EventHistoryStore.onChannelUnsubscribe("job");
+        long reclaimedChannels = EventHistoryStore.getStats().getLong("reclaimedChannels");
+
+        // Still inside the grace period. Nothing should be reclaimed.
+        EventHistoryStore.reclaimIdleChannels(System.currentTimeMillis());
+        Assert.assertEquals(reclaimedChannels, EventHistoryStore.getStats().getLong("reclaimedChannels"));
+        Assert.assertTrue(new File(historyRoot, "job").exists());
+
+        // Outside the grace period. The channel state (and history) should be reclaimed.
+        EventHistoryStore.reclaimIdleChannels(System.currentTimeMillis() + EventHistoryStore.CHANNEL_IDLE_GRACE_PERIOD + 5000);
+        Assert.assertEquals(reclaimedChannels + 1, EventHistoryStore.getStats().getLong("reclaimedChannels"));
+        Assert.assertFalse(new File(historyRoot, "job").exists());
+        String[] historyFiles = historyRoot.list();
+        Assert.assertNotNull(historyFiles);
+        Assert.assertEquals(0, historyFiles.length); // not left renamed aside
+
+        // Subscribed to again before the grace period is up. Nothing should be reclaimed.
+        EventHistoryStore.onChannelSubscribe("job");
+        storeMessages(5, 0);
+        EventHistoryStore.onChannelUnsubscribe("job");
+        EventHistoryStore.onChannelSubscribe("job");
+        EventHistoryStore.reclaimIdleChannels(System.currentTimeMillis() + EventHistoryStore.CHANNEL_IDLE_GRACE_PERIOD + 5000);
+        Assert.assertEquals(reclaimedChannels + 1, EventHistoryStore.getStats().getLong("reclaimedChannels"));
+        Assert.assertEquals(5, EventHistoryStore.getChannelEventCount("job"));
+        EventHistoryStore.onChannelUnsubscribe("job");
+    }
+
+    @Test
+    public void test_replay_channel_events() throws Exception {
+        List<SimpleMessage> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            SimpleMessage message = createMessage();
+            EventHistoryStore.store(message);
+            messages.add(message);
+        }
+
+        // Page through them, 4 at a time.
+        List<String> replayed = new ArrayList<>();
+        long[] lastPosition = {0};
+        boolean hasMore = true;
+        while (hasMore) {
+            hasMore = EventHistoryStore.replayChannelEvents("job", lastPosition[0], 0, 4, (position, timestamp, eventJSON) -> {
+                Assert.assertTrue(position > lastPosition[0]);
+                lastPosition[0] = position;
+                replayed.add(eventJSON);
+            });
+        }
+
+        // Should be all of them, in store order.
+        Assert.assertEquals(10, replayed.size());
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(messages.get(i).toJSON(), replayed.get(i));
+        }
+
+        // Nothing stored since now.
+        Assert.assertTrue(EventHistoryStore.getChannelEvents("job", 0, System.currentTimeMillis() + 1, 100).isEmpty());
+    }
+
+    @Test
+    public void test_replay_concurrent_store() throws Exception {
+        int threadCount = 4;
+        int messagesPerThread = 50;
+        List<List<SimpleMessage>> threadMessages = new ArrayList<>();
+        for (int i = 0; i < threadCount; i++) {
+            List<SimpleMessage> messages = new ArrayList<>();
+            for (int ii = 0; ii < messagesPerThread; ii++) {
+                messages.add(createMessage());
+            }
+            threadMessages.add(messages);
+        }
+
+        List<Thread> storeThreads = new ArrayList<>();
+        for (List<SimpleMessage> messages : threadMessages) {
+            Thread storeThread = new Thread(() -> {
+                for (SimpleMessage message : messages) {
+                    EventHistoryStore.store(message);
+                }
+            });
+            storeThreads.add(storeThread);
+            storeThread.start();
+        }
+
+        // Replay while storing. Positions must only ever go up and no event may be skipped.
+        Set<String> replayed = new HashSet<>();
+        long[] lastPosition = {0};
+        boolean storing = true;
+        while (storing) {
+            storing = false;
+            for (Thread storeThread : storeThreads) {
+                storing |= storeThread.isAlive();
+            }
+            EventHistoryStore.replayChannelEvents("job", lastPosition[0], 0, 1000, (position, timestamp, eventJSON) -> {
+                Assert.assertTrue(position > lastPosition[0]);
+                lastPosition[0] = position;
+                Assert.assertTrue(replayed.add(eventJSON));
+            });
+        }
+
+        Assert.assertEquals(threadCount * messagesPerThread, replayed.size());
+        Assert.assertEquals(threadCount * messagesPerThread, lastPosition[0]);
+    }
+
+    @Test
+    public void test_channel_retention_caps() throws Exception {
+        // 3s expiry (i.e. 500ms buckets), but capped at 5 events.
+        EventHistoryStore.setRetention("job", new EventHistoryRetention(3000, 5, 0));
+        try {
+            // Store 20 events, 100ms apart i.e. spread across
+            // about 4 buckets. Caps are enforced a bucket at a time
+            // as we store, so the oldest buckets should get dropped.
+            storeMessages(20, 100);
+            Assert.assertTrue(EventHistoryStore.getChannelEventCount("job") < 20);
+            Assert.assertTrue(EventHistoryStore.getStats().getLong("cappedEvents") > 0);
+        } finally {
+            EventHistoryStore.setRetention("job", null);
+        }
+    }
+
+    @Test
+    public void test_channel_retention_caps_current_bucket() throws Exception {
+        // 60s expiry i.e. all of the events land in the one (current) bucket, but capped at 5 events.
+        EventHistoryStore.setRetention("job", new EventHistoryRetention(60000, 5, 0));
+        try {
+            List<SimpleMessage> messages = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                SimpleMessage message = createMessage();
+                EventHistoryStore.store(message);
+                messages.add(message);
+            }
+            Assert.assertEquals(5, EventHistoryStore.getChannelEventCount("job"));
+            Assert.assertEquals(5, EventHistoryStore.getStats().getJSONObject("channels").getJSONObject("job").getLong("events"));
+
+            // The oldest are dropped, and known to have been (e.g. no point in a retry waiting on them).
+            SimpleMessage oldest = messages.get(0);
+            Assert.assertNull(EventHistoryStore.getChannelEvent("job", oldest.getEventUUID()));
+            Assert.assertTrue(EventHistoryStore.isEventDropped("job", oldest.getEventUUID()));
+            SimpleMessage newest = messages.get(19);
+            Assert.assertEquals(newest.toJSON(), EventHistoryStore.getChannelEvent("job", newest.getEventUUID()));
+            Assert.assertFalse(EventHistoryStore.isEventDropped("job", newest.getEventUUID()));
+        } finally {
+            EventHistoryStore.setRetention("job", null);
+        }
+    }
+
+    @Test
+    public void test_get_compressed_event() throws Exception {
+        EventHistoryStore.COMPRESSION = true;
+        try {
+            SimpleMessage message = createMessage();
+
+            EventHistoryStore.store(message);
+            Assert.assertEquals(1, EventHistoryStore.getChannelEventCount("job"));
+
+            String eventAsString = EventHistoryStore.getChannelEvent("job", message.getEventUUID());
+            Assert.assertEquals(message.toJSON(), eventAsString);
+        } finally {
+            EventHistoryStore.COMPRESSION = false;
+        }
+    }
+
+    @Test
+    public void test_lazy_persistence() throws Exception {
+        EventHistoryStore.LAZY_PERSISTENCE = true;
+        try {
+            SimpleMessage delivered = createMessage();
+            SimpleMessage missed = createMessage();
+
+            // Neither should hit the disk, but both should be readable from the hold window.
+            EventHistoryStore.hold(delivered);
+            EventHistoryStore.hold(missed);
+            Assert.assertEquals(0, EventHistoryStore.getChannelEventCount("job"));
+            Assert.assertNotNull(EventHistoryStore.getChannelEvent("job", delivered.getEventUUID()));
+            Assert.assertNotNull(EventHistoryStore.getChannelEvent("job", missed.getEventUUID()));
+
+            // Only the missed event should get persisted (and only once).
+            EventHistoryStore.onRetryQueued(missed);
+            EventHistoryStore.onRetryQueued(missed);
+            Assert.assertEquals(1, EventHistoryStore.getChannelEventCount("job"));
+
+            // Pinned before it landed in the hold window.
+            SimpleMessage early = createMessage();
+            EventHistoryStore.onRetryQueued(early);
+            EventHistoryStore.hold(early);
+            Assert.assertEquals(2, EventHistoryStore.getChannelEventCount("job"));
+        } finally {
+            EventHistoryStore.LAZY_PERSISTENCE = false;
+        }
+    }
+
+    @Test
+    public void test_lazy_persistence_late_pin() throws Exception {
+        EventHistoryStore.LAZY_PERSISTENCE = true;
+        int holdMaxEvents = EventHistoryStore.LAZY_PERSISTENCE_HOLD_MAX_EVENTS;
+        EventHistoryStore.LAZY_PERSISTENCE_HOLD_MAX_EVENTS = 1;
+        try {
+            SimpleMessage late = createMessage();
+            EventHistoryStore.hold(late);
+            // Pushes it out of the (1 event) hold window.
+            EventHistoryStore.hold(createMessage());
+            Assert.assertNull(EventHistoryStore.getChannelEvent("job", late.getEventUUID()));
+
+            // Still persisted, from the retry queued message.
+            EventHistoryStore.onRetryQueued(late);
+            Assert.assertEquals(1, EventHistoryStore.getChannelEventCount("job"));
+            Assert.assertEquals(late.toJSON(), EventHistoryStore.getChannelEvent("job", late.getEventUUID()));
+        } finally {
+            EventHistoryStore.LAZY_PERSISTENCE = false;
+            EventHistoryStore.LAZY_PERSISTENCE_HOLD_MAX_EVENTS = holdMaxEvents;
+        }
+    }
+
+    @Test
+    public void test_lazy_persistence_concurrent_pin() throws Exception {
+        EventHistoryStore.LAZY_PERSISTENCE = true;
+        try {
+            List<SimpleMessage> messages = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                messages.add(createMessage());
+            }
+            long storedEvents = EventHistoryStore.getStats().getLong("storedEvents");
+
+            // Pin every event while they are landing in the hold window.
+            Thread holdThread = new Thread(() -> messages.forEach(EventHistoryStore::hold));
+            holdThread.start();
+            for (SimpleMessage message : messages) {
+                EventHistoryStore.onRetryQueued(message);
+            }
+            holdThread.join();
+
+            // Every event persisted, and only once.
+            Assert.assertEquals(200, EventHistoryStore.getChannelEventCount("job"));
+            Assert.assertEquals(storedEvents + 200, EventHistoryStore.getStats().getLong("storedEvents"));
+        } finally {
+            EventHistoryStore.LAZY_PERSISTENCE = false;
+        }
+    }
+
     @Test
     public void test_autoDeleteOnExpire() throws Exception {
         // SKip the test on Windows ci.jenkins.io agents because it
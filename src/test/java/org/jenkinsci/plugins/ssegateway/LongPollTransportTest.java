@@ -0,0 +1,137 @@
+package org.jenkinsci.plugins.ssegateway;
+
+import net.sf.json.JSONArray;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+
+/**
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class LongPollTransportTest {
+
+    private final int maxBuffered = LongPollTransport.MAX_BUFFERED;
+
+    @After
+    public void restoreSettings() {
+        LongPollTransport.MAX_BUFFERED = maxBuffered;
+    }
+
+    @Test
+    public void test_parked_poll_and_cursor() throws Exception {
+        LongPollTransport transport = new LongPollTransport("client-1");
+        EventDispatcher dispatcher = Mockito.mock(EventDispatcher.class);
+
+        // Nothing buffered. The poll is parked until there's an event.
+        Poll poll1 = new Poll(true);
+        transport.park(poll1.request, poll1.response);
+        Mockito.verify(poll1.request).startAsync(poll1.request, poll1.response);
+        Assert.assertEquals("", poll1.output.toString());
+
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":1}"));
+        Mockito.verify(poll1.context).complete();
+        JSONObject response1 = JSONObject.fromObject(poll1.output.toString());
+        Assert.assertEquals(1, response1.getJSONArray("events").size());
+        Assert.assertEquals("job", response1.getJSONArray("events").getJSONObject(0).getString("event"));
+        Assert.assertEquals("{\"a\":1}", response1.getJSONArray("events").getJSONObject(0).getString("data"));
+
+        // Buffered while not parked. The cursor acknowledges the first event only.
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":2}"));
+        transport.acknowledge(response1.getString("cursor"));
+        Poll poll2 = new Poll(true);
+        transport.park(poll2.request, poll2.response);
+        Mockito.verify(poll2.request, Mockito.never()).startAsync(poll2.request, poll2.response);
+        JSONArray events2 = JSONObject.fromObject(poll2.output.toString()).getJSONArray("events");
+        Assert.assertEquals(1, events2.size());
+        Assert.assertEquals("{\"a\":2}", events2.getJSONObject(0).getString("data"));
+
+        // The response was lost i.e. not acknowledged. Sent again.
+        transport.acknowledge("unknown.1000");
+        Poll poll3 = new Poll(true);
+        transport.park(poll3.request, poll3.response);
+        JSONObject response3 = JSONObject.fromObject(poll3.output.toString());
+        Assert.assertEquals(events2, response3.getJSONArray("events"));
+
+        // All acknowledged. Parked again.
+        transport.acknowledge(response3.getString("cursor"));
+        Poll poll4 = new Poll(true);
+        transport.park(poll4.request, poll4.response);
+        Mockito.verify(poll4.request).startAsync(poll4.request, poll4.response);
+
+        // Closed e.g. an SSE stream took over. The parked poll is completed, empty.
+        transport.close();
+        Mockito.verify(poll4.context).complete();
+        Assert.assertEquals(0, JSONObject.fromObject(poll4.output.toString()).getJSONArray("events").size());
+        Assert.assertFalse(transport.write(dispatcher, "job", "{\"a\":3}"));
+    }
+
+    @Test
+    public void test_buffer_full() throws Exception {
+        LongPollTransport.MAX_BUFFERED = 2;
+        LongPollTransport transport = new LongPollTransport("client-1");
+        EventDispatcher dispatcher = Mockito.mock(EventDispatcher.class);
+
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":1}"));
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":2}"));
+        // Full. Goes to the dispatcher retry queue.
+        Assert.assertFalse(transport.write(dispatcher, "job", "{\"a\":3}"));
+
+        // Kept (and sent) until acknowledged, even without async support.
+        Poll poll = new Poll(false);
+        transport.park(poll.request, poll.response);
+        JSONObject response = JSONObject.fromObject(poll.output.toString());
+        Assert.assertEquals(2, response.getJSONArray("events").size());
+        transport.acknowledge(response.getString("cursor"));
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":3}"));
+
+        transport.close();
+    }
+
+    @Test
+    public void test_close_requeues_unacknowledged() throws Exception {
+        LongPollTransport transport = new LongPollTransport("client-1");
+        EventDispatcher dispatcher = Mockito.mock(EventDispatcher.class);
+        transport.dispatcher = dispatcher;
+
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":1}"));
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"a\":2}"));
+        Poll poll = new Poll(true);
+        transport.park(poll.request, poll.response);
+        JSONObject response = JSONObject.fromObject(poll.output.toString());
+        Assert.assertEquals(2, response.getJSONArray("events").size());
+
+        // Sent, but not acknowledged before another stream took over. Back to the retry queue.
+        transport.close();
+        Mockito.verify(dispatcher).requeueUndelivered(Arrays.asList("{\"a\":1}", "{\"a\":2}"));
+
+        // Nothing to hand back.
+        LongPollTransport transport2 = new LongPollTransport("client-2");
+        transport2.dispatcher = dispatcher;
+        transport2.close();
+        Mockito.verifyNoMoreInteractions(dispatcher);
+    }
+
+    private static class Poll {
+        private final StringWriter output = new StringWriter();
+        private final HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        private final HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        private final AsyncContext context = Mockito.mock(AsyncContext.class);
+
+        private Poll(boolean asyncSupported) throws Exception {
+            Mockito.when(response.getWriter()).thenReturn(new PrintWriter(output));
+            Mockito.when(request.isAsyncSupported()).thenReturn(asyncSupported);
+            Mockito.when(request.startAsync(request, response)).thenReturn(context);
+            Mockito.when(context.getResponse()).thenReturn(response);
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.jenkinsci.plugins.ssegateway;
+
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcherRegistry;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class MuxStreamTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    private final int maxClients = MuxStream.MAX_CLIENTS;
+    private HttpSession session;
+
+    @After
+    public void reset() {
+        MuxStream.MAX_CLIENTS = maxClients;
+        if (session != null) {
+            EventDispatcherRegistry.removeSession(session);
+        }
+    }
+
+    @Test
+    public void test_frame() {
+        String frame = MuxStream.toFrame("client-1", "job", "{\"jenkins_channel\":\"job\",\"a\":\"x\\ny\"}");
+
+        // One SSE "mux" event, with the data on one line.
+        Assert.assertTrue(frame.startsWith("event: mux\ndata: "));
+        Assert.assertTrue(frame.endsWith("\n\n"));
+        String data = frame.substring("event: mux\ndata: ".length(), frame.length() - 2);
+        Assert.assertFalse(data.contains("\n"));
+
+        JSONObject muxData = JSONObject.fromObject(data);
+        Assert.assertEquals("client-1", muxData.getString("client"));
+        Assert.assertEquals("job", muxData.getString("event"));
+        Assert.assertEquals("x\ny", JSONObject.fromObject(muxData.getString("data")).getString("a"));
+    }
+
+    @Test
+    public void test_unknown_mux_stream() {
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Assert.assertNull(MuxStream.get(session, "unknown"));
+        Mockito.verify(session).setAttribute(Mockito.eq(MuxStream.class.getName()), Mockito.any());
+    }
+
+    @Test
+    public void test_join_full() throws Exception {
+        MuxStream.MAX_CLIENTS = 2;
+        session = newSession("mux-full-session");
+        StringWriter output = new StringWriter();
+        listen("mux-1", output);
+        MuxStream muxStream = MuxStream.get(session, "mux-1");
+
+        Assert.assertTrue(muxStream.join("client-1", Collections.emptyList()));
+        Assert.assertTrue(muxStream.join("client-2", Collections.emptyList()));
+        // Full. doMuxJoin sends a 409 and the client listens on its own stream.
+        Assert.assertFalse(muxStream.join("client-3", Collections.emptyList()));
+        Assert.assertNull(EventDispatcherRegistry.get(session, "client-3"));
+
+        // Joining again is a no-op, even when full.
+        EventDispatcher dispatcher = EventDispatcherRegistry.get(session, "client-1");
+        Assert.assertTrue(muxStream.join("client-1", Collections.emptyList()));
+        Assert.assertSame(dispatcher, EventDispatcherRegistry.get(session, "client-1"));
+        Assert.assertEquals(1, countOpenEvents(output.toString(), "client-1"));
+    }
+
+    @Test
+    public void test_reattach_on_relisten() throws Exception {
+        session = newSession("mux-relisten-session");
+        StringWriter output1 = new StringWriter();
+        AsyncContext context1 = listen("mux-1", output1);
+        MuxStream muxStream1 = MuxStream.get(session, "mux-1");
+        Assert.assertTrue(muxStream1.join("client-1", Collections.emptyList()));
+        Assert.assertTrue(muxStream1.join("client-2", Collections.emptyList()));
+        Assert.assertEquals(1, countOpenEvents(output1.toString(), "client-1"));
+        Assert.assertEquals(1, countOpenEvents(output1.toString(), "client-2"));
+
+        // EventSource reconnect on the same muxId.
+        StringWriter output2 = new StringWriter();
+        listen("mux-1", output2);
+        Mockito.verify(context1).complete();
+        Assert.assertNotSame(muxStream1, MuxStream.get(session, "mux-1"));
+
+        // Both clients reattached to the new stream, on the same dispatchers.
+        Assert.assertEquals(1, countOpenEvents(output2.toString(), "client-1"));
+        Assert.assertEquals(1, countOpenEvents(output2.toString(), "client-2"));
+        Assert.assertEquals(EventDispatcher.ConnectionState.CONNECTED, EventDispatcherRegistry.get(session, "client-1").getConnectionState());
+        Assert.assertEquals(EventDispatcher.ConnectionState.CONNECTED, EventDispatcherRegistry.get(session, "client-2").getConnectionState());
+    }
+
+    @Test
+    public void test_leave() throws Exception {
+        MuxStream.MAX_CLIENTS = 2;
+        session = newSession("mux-leave-session");
+        StringWriter output = new StringWriter();
+        listen("mux-1", output);
+        MuxStream muxStream = MuxStream.get(session, "mux-1");
+        Assert.assertTrue(muxStream.join("client-1", Collections.emptyList()));
+        Assert.assertTrue(muxStream.join("client-2", Collections.emptyList()));
+
+        muxStream.leave("client-1");
+
+        // client-1's dispatcher is detached (events go to its retry queue). client-2 is still on the stream.
+        Assert.assertEquals(EventDispatcher.ConnectionState.RECONNECTING, EventDispatcherRegistry.get(session, "client-1").getConnectionState());
+        Assert.assertEquals(EventDispatcher.ConnectionState.CONNECTED, EventDispatcherRegistry.get(session, "client-2").getConnectionState());
+        // And its place is free.
+        Assert.assertTrue(muxStream.join("client-3", Collections.emptyList()));
+
+        // Not carried over to the next stream.
+        StringWriter output2 = new StringWriter();
+        listen("mux-1", output2);
+        Assert.assertEquals(0, countOpenEvents(output2.toString(), "client-1"));
+        Assert.assertEquals(1, countOpenEvents(output2.toString(), "client-2"));
+        Assert.assertEquals(1, countOpenEvents(output2.toString(), "client-3"));
+    }
+
+    private AsyncContext listen(String muxId, StringWriter output) throws Exception {
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        AsyncContext asyncContext = Mockito.mock(AsyncContext.class);
+        Mockito.when(request.isAsyncSupported()).thenReturn(true);
+        Mockito.when(request.getSession()).thenReturn(session);
+        Mockito.when(request.startAsync(request, response)).thenReturn(asyncContext);
+        Mockito.when(response.getWriter()).thenReturn(new PrintWriter(output));
+        MuxStream.listen(muxId, request, response);
+        return asyncContext;
+    }
+
+    private static HttpSession newSession(String sessionId) {
+        Map<String, Object> attributes = new HashMap<>();
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(session.getId()).thenReturn(sessionId);
+        Mockito.when(session.getAttribute(Mockito.anyString())).thenAnswer(invocation -> attributes.get(invocation.<String>getArgument(0)));
+        Mockito.doAnswer(invocation -> attributes.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(session).setAttribute(Mockito.anyString(), Mockito.any());
+        return session;
+    }
+
+    private static int countOpenEvents(String output, String clientId) {
+        String openFrame = "\"client\":\"" + clientId + "\",\"event\":\"open\"";
+        int count = 0;
+        for (int i = output.indexOf(openFrame); i != -1; i = output.indexOf(openFrame, i + 1)) {
+            count++;
+        }
+        return count;
+    }
+}
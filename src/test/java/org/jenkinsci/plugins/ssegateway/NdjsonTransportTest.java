@@ -0,0 +1,221 @@
+package org.jenkinsci.plugins.ssegateway;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+import org.jenkinsci.plugins.pubsub.PubsubBus;
+import org.jenkinsci.plugins.pubsub.SimpleMessage;
+import org.jenkinsci.plugins.ssegateway.sse.AdmissionControl;
+import org.jenkinsci.plugins.ssegateway.sse.EventDispatcher;
+import org.jenkinsci.plugins.ssegateway.sse.ReconnectControl;
+import org.jenkinsci.plugins.ssegateway.sse.StreamToken;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+import org.mockito.Mockito;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class NdjsonTransportTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    private final int resumeBuffer = NdjsonTransport.RESUME_BUFFER;
+    private final int maxDispatchersPerUser = AdmissionControl.MAX_DISPATCHERS_PER_USER;
+    private final int connectRate = ReconnectControl.CONNECT_RATE;
+    private final int connectBurst = ReconnectControl.CONNECT_BURST;
+
+    @After
+    public void restoreSettings() {
+        NdjsonTransport.RESUME_BUFFER = resumeBuffer;
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = maxDispatchersPerUser;
+        ReconnectControl.CONNECT_RATE = connectRate;
+        ReconnectControl.CONNECT_BURST = connectBurst;
+    }
+
+    @Test
+    public void test_framing() {
+        StringWriter output = new StringWriter();
+        NdjsonTransport transport = new NdjsonTransport("client-1", new NdjsonTransport.ResumeBuffer(), new PrintWriter(output));
+        EventDispatcher dispatcher = Mockito.mock(EventDispatcher.class);
+
+        Assert.assertTrue(transport.write(dispatcher, "job", "{\"jenkins_channel\":\"job\",\"a\":\"x\\ny\"}"));
+        Assert.assertTrue(transport.write(dispatcher, "pingback", "ack"));
+
+        String[] lines = output.toString().split("\n", -1);
+        Assert.assertEquals(3, lines.length);
+        Assert.assertEquals("", lines[2]);
+        // Event data written as is i.e. a JSON object, not a string.
+        Assert.assertEquals("{\"id\":1,\"event\":\"job\",\"data\":{\"jenkins_channel\":\"job\",\"a\":\"x\\ny\"}}", lines[0]);
+        Assert.assertEquals("{\"id\":2,\"event\":\"pingback\",\"data\":\"ack\"}", lines[1]);
+    }
+
+    @Test
+    public void test_resume() {
+        NdjsonTransport.RESUME_BUFFER = 3;
+        NdjsonTransport.ResumeBuffer resumeBuffer = new NdjsonTransport.ResumeBuffer();
+        EventDispatcher dispatcher = Mockito.mock(EventDispatcher.class);
+
+        NdjsonTransport transport1 = new NdjsonTransport("client-1", resumeBuffer, new PrintWriter(new StringWriter()));
+        for (int i = 1; i <= 4; i++) {
+            transport1.write(dispatcher, "job", "{\"n\":" + i + "}");
+        }
+
+        // Resumed from after event 2. Events 3 and 4 replayed.
+        StringWriter output2 = new StringWriter();
+        NdjsonTransport transport2 = new NdjsonTransport("client-1", resumeBuffer, new PrintWriter(output2));
+        transport2.replay(2);
+        String[] lines2 = output2.toString().split("\n");
+        Assert.assertEquals(2, lines2.length);
+        Assert.assertEquals(3, JSONObject.fromObject(lines2[0]).getInt("id"));
+        Assert.assertEquals(4, JSONObject.fromObject(lines2[1]).getInt("id"));
+
+        // Resumed from after event 0. Event 1 is no longer buffered, so there's a gap.
+        StringWriter output3 = new StringWriter();
+        NdjsonTransport transport3 = new NdjsonTransport("client-1", resumeBuffer, new PrintWriter(output3));
+        transport3.replay(0);
+        String[] lines3 = output3.toString().split("\n");
+        Assert.assertEquals(4, lines3.length);
+        Assert.assertEquals("gap", JSONObject.fromObject(lines3[0]).getString("event"));
+        Assert.assertEquals(2, JSONObject.fromObject(lines3[1]).getInt("id"));
+
+        // Nothing new since event 4.
+        StringWriter output4 = new StringWriter();
+        new NdjsonTransport("client-1", resumeBuffer, new PrintWriter(output4)).replay(4);
+        Assert.assertEquals("", output4.toString());
+    }
+
+    @Test
+    public void test_stream_resume() throws Exception {
+        PubsubBus.getBus().start();
+
+        HttpURLConnection stream1 = openStream("subscribe=" + URLEncoder.encode("[{\"jenkins_channel\":\"job\"}]", "UTF-8"));
+        Assert.assertEquals(200, stream1.getResponseCode());
+        Assert.assertEquals("application/x-ndjson", stream1.getContentType().split(";")[0]);
+        BufferedReader lines1 = readLines(stream1);
+        String streamToken = readEvent(lines1, "token").getJSONObject("data").getString(StreamToken.PARAMETER);
+        publish(1);
+        JSONObject event1 = readEvent(lines1, "job");
+        Assert.assertEquals("1", event1.getJSONObject("data").getString("n"));
+        stream1.disconnect();
+
+        // Resumed from before event 1, without the subscribe parameter. Event 1 is
+        // replayed and the subscriptions are kept.
+        HttpURLConnection stream2 = openStream(StreamToken.PARAMETER + "=" + URLEncoder.encode(streamToken, "UTF-8")
+                + "&cursor=" + (event1.getLong("id") - 1));
+        Assert.assertEquals(200, stream2.getResponseCode());
+        BufferedReader lines2 = readLines(stream2);
+        readEvent(lines2, "token");
+        JSONObject replayed = JSONObject.fromObject(lines2.readLine());
+        Assert.assertEquals(event1, replayed);
+        publish(2);
+        Assert.assertEquals("2", readEvent(lines2, "job").getJSONObject("data").getString("n"));
+        stream2.disconnect();
+    }
+
+    @Test
+    public void test_stream_gap() throws Exception {
+        // A token for a dispatcher that is gone (e.g. evicted, or a restart).
+        String streamToken;
+        try (ACLContext context = ACL.as2(Jenkins.ANONYMOUS2)) {
+            streamToken = StreamToken.issue("ndjson-gone").getValue();
+        }
+
+        HttpURLConnection stream = openStream(StreamToken.PARAMETER + "=" + URLEncoder.encode(streamToken, "UTF-8") + "&cursor=5");
+        Assert.assertEquals(200, stream.getResponseCode());
+        BufferedReader lines = readLines(stream);
+        readEvent(lines, "token");
+        JSONObject gap = JSONObject.fromObject(lines.readLine());
+        Assert.assertEquals("gap", gap.getString("event"));
+        Assert.assertEquals(5, gap.getJSONObject("data").getLong("after"));
+        stream.disconnect();
+    }
+
+    @Test
+    public void test_stream_bad_request() throws Exception {
+        HttpURLConnection stream = openStream(StreamToken.PARAMETER + "=x&cursor=abc");
+        Assert.assertEquals(400, stream.getResponseCode());
+        stream.disconnect();
+
+        // A cursor is only for resuming, with a token.
+        stream = openStream("cursor=1");
+        Assert.assertEquals(400, stream.getResponseCode());
+        stream.disconnect();
+
+        // Not valid JSON.
+        stream = openStream("subscribe=" + URLEncoder.encode("[{\"jenkins_channel\":", "UTF-8"));
+        Assert.assertEquals(400, stream.getResponseCode());
+        stream.disconnect();
+    }
+
+    @Test
+    public void test_stream_rejected() throws Exception {
+        HttpURLConnection stream1 = openStream("");
+        Assert.assertEquals(200, stream1.getResponseCode());
+        readEvent(readLines(stream1), "token");
+
+        // Over the per user limit. The open stream is not reclaimed.
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = 1;
+        HttpURLConnection stream2 = openStream("");
+        Assert.assertEquals(503, stream2.getResponseCode());
+        Assert.assertNotNull(stream2.getHeaderField("Retry-After"));
+        stream2.disconnect();
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = maxDispatchersPerUser;
+
+        // Throttled listen (e.g. a reconnect storm). One request through per second.
+        ReconnectControl.CONNECT_RATE = 1;
+        ReconnectControl.CONNECT_BURST = 1;
+        HttpURLConnection stream3 = openStream("");
+        Assert.assertEquals(200, stream3.getResponseCode());
+        HttpURLConnection stream4 = openStream("");
+        Assert.assertEquals(503, stream4.getResponseCode());
+        Assert.assertNotNull(stream4.getHeaderField("Retry-After"));
+        stream4.disconnect();
+        stream3.disconnect();
+        stream1.disconnect();
+    }
+
+    private HttpURLConnection openStream(String query) throws IOException {
+        URL url = new URL(jenkins.getURL(), "sse-gateway/stream" + (query.isEmpty() ? "" : "?" + query));
+        HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setReadTimeout(10000);
+        return connection;
+    }
+
+    private static BufferedReader readLines(HttpURLConnection connection) throws IOException {
+        return new BufferedReader(new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+    }
+
+    private static JSONObject readEvent(BufferedReader lines, String event) throws IOException {
+        String line;
+        while ((line = lines.readLine()) != null) {
+            JSONObject json = JSONObject.fromObject(line);
+            if (event.equals(json.optString("event"))) {
+                return json;
+            }
+        }
+        Assert.fail("Stream ended before a '" + event + "' event.");
+        return null;
+    }
+
+    private static void publish(int n) throws Exception {
+        PubsubBus.getBus().publish(new SimpleMessage().setChannelName("job")
+                .setEventName("test-event")
+                .set("n", Integer.toString(n)));
+    }
+}
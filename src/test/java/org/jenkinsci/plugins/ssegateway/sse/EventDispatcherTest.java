@@ -2,21 +2,50 @@ package org.jenkinsci.plugins.ssegateway.sse;
 
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
+import org.jenkinsci.plugins.pubsub.EventFilter;
+import org.jenkinsci.plugins.pubsub.EventProps;
 import org.jenkinsci.plugins.pubsub.SimpleMessage;
 import org.jenkinsci.plugins.ssegateway.MockEventDispatcher;
 import org.junit.After;
 import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import jakarta.servlet.AsyncContext;
+import jakarta.servlet.AsyncEvent;
+import jakarta.servlet.AsyncListener;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import jakarta.servlet.http.HttpSession;
 
 public class EventDispatcherTest {
     private static final long saveProcessingDelay = org.jenkinsci.plugins.ssegateway.sse.EventDispatcher.RETRY_QUEUE_PROCESSING_DELAY;
     private static final long saveEventLifetime = org.jenkinsci.plugins.ssegateway.sse.EventDispatcher.RETRY_QUEUE_EVENT_LIFETIME;
+    private static final long saveReconnectGracePeriod = EventDispatcher.RECONNECT_GRACE_PERIOD;
+    private static final int saveMaxDispatchersPerSession = EventDispatcher.MAX_DISPATCHERS_PER_SESSION;
+    private static final int saveMaxDispatchersPerUser = AdmissionControl.MAX_DISPATCHERS_PER_USER;
+    private static final int saveConnectRate = ReconnectControl.CONNECT_RATE;
+    private static final int saveConnectBurst = ReconnectControl.CONNECT_BURST;
+    private static final long saveReloadWindow = ReconnectControl.RELOAD_WINDOW;
 
     @After
     public void reset() {
         org.jenkinsci.plugins.ssegateway.sse.EventDispatcher.RETRY_QUEUE_PROCESSING_DELAY = saveProcessingDelay;
         org.jenkinsci.plugins.ssegateway.sse.EventDispatcher.RETRY_QUEUE_EVENT_LIFETIME = saveEventLifetime;
+        EventDispatcher.RECONNECT_GRACE_PERIOD = saveReconnectGracePeriod;
+        EventDispatcher.MAX_DISPATCHERS_PER_SESSION = saveMaxDispatchersPerSession;
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = saveMaxDispatchersPerUser;
+        ReconnectControl.CONNECT_RATE = saveConnectRate;
+        ReconnectControl.CONNECT_BURST = saveConnectBurst;
+        ReconnectControl.RELOAD_WINDOW = saveReloadWindow;
     }
 
     @Test
@@ -49,4 +78,403 @@ public class EventDispatcherTest {
         //Queue item expired and new item was added so size is still 1
         assertEquals(1, ed.retryQueue.size());
     }
+
+    @Test
+    public void subscriptionDigest() throws Exception {
+        Map<String, String> jobFilter = new HashMap<>();
+        jobFilter.put("jenkins_channel", "job");
+        jobFilter.put("job_name", "my-job");
+        Map<String, String> pipelineFilter = new HashMap<>();
+        pipelineFilter.put("jenkins_channel", "pipeline");
+
+        String digest = SubscriptionDigest.digest(Arrays.asList(jobFilter, pipelineFilter));
+        assertEquals(16, digest.length());
+        // Order does not matter ...
+        assertEquals(digest, SubscriptionDigest.digest(Arrays.asList(pipelineFilter, jobFilter)));
+        // ... but repeated subscriptions do ...
+        assertNotEquals(digest, SubscriptionDigest.digest(Arrays.asList(jobFilter, pipelineFilter, jobFilter)));
+        // ... as do the filter values.
+        Map<String, String> otherJobFilter = new HashMap<>(jobFilter);
+        otherJobFilter.put("job_name", "other-job");
+        assertNotEquals(digest, SubscriptionDigest.digest(Arrays.asList(otherJobFilter, pipelineFilter)));
+        // FNV-1a offset bases for the empty subscription set.
+        assertEquals("811c9dc5050c5d1f", SubscriptionDigest.digest(Collections.emptyList()));
+    }
+
+    @Test
+    public void dispatcherRegistry() throws Exception {
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(session.getId()).thenReturn("registry-session");
+        EventDispatcher ed = new MockEventDispatcher();
+
+        assertNull(EventDispatcherRegistry.get(session, "client-1"));
+        EventDispatcherRegistry.put(session, "client-1", ed);
+        assertSame(ed, EventDispatcherRegistry.get(session, "client-1"));
+        assertSame(ed, EventDispatcherFactory.getDispatchers(session).get("client-1"));
+
+        List<EventDispatcher> all = new ArrayList<>();
+        EventDispatcherRegistry.forEach(all::add);
+        assertTrue(all.contains(ed));
+
+        Map<String, EventDispatcher> removed = EventDispatcherRegistry.removeSession(session);
+        assertNotNull(removed);
+        assertSame(ed, removed.get("client-1"));
+        assertNull(EventDispatcherRegistry.get(session, "client-1"));
+    }
+
+    @Test
+    public void dispatcherRegistryEvictIdle() throws Exception {
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(session.getId()).thenReturn("idle-session");
+        EventDispatcher ed = new MockEventDispatcher();
+        EventDispatcherRegistry.put(session, "client-1", ed);
+
+        EventDispatcher.RECONNECT_GRACE_PERIOD = 1000;
+        // Within the grace period ...
+        EventDispatcherRegistry.evictIdle(ed.getLastSeen() + 500);
+        assertSame(ed, EventDispatcherRegistry.get(session, "client-1"));
+
+        // After the grace period (the mock dispatcher is never connected) ...
+        assertTrue(EventDispatcherRegistry.evictIdle(ed.getLastSeen() + 1001) >= 1);
+        assertNull(EventDispatcherRegistry.get(session, "client-1"));
+        assertTrue(EventDispatcherRegistry.wasEvicted(session, "client-1"));
+        assertFalse(EventDispatcherRegistry.wasEvicted(session, "client-1"));
+    }
+
+    @Test
+    public void dispatcherRegistryLRUCap() throws Exception {
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(session.getId()).thenReturn("lru-session");
+        EventDispatcher.MAX_DISPATCHERS_PER_SESSION = 2;
+
+        EventDispatcher ed1 = new MockEventDispatcher();
+        EventDispatcher ed2 = new MockEventDispatcher();
+        EventDispatcher ed3 = new MockEventDispatcher();
+        EventDispatcherRegistry.put(session, "client-1", ed1);
+        Thread.sleep(5);
+        EventDispatcherRegistry.put(session, "client-2", ed2);
+        Thread.sleep(5);
+        // Seeing client-1 again makes client-2 the least recently seen.
+        EventDispatcherRegistry.get(session, "client-1");
+        Thread.sleep(5);
+        EventDispatcherRegistry.put(session, "client-3", ed3);
+
+        assertSame(ed1, EventDispatcherRegistry.get(session, "client-1"));
+        assertNull(EventDispatcherRegistry.get(session, "client-2"));
+        assertSame(ed3, EventDispatcherRegistry.get(session, "client-3"));
+        assertTrue(EventDispatcherRegistry.wasEvicted(session, "client-2"));
+        EventDispatcherRegistry.removeSession(session);
+    }
+
+    @Test
+    public void admissionControlPerUser() throws Exception {
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = 1;
+
+        EventDispatcher ed1 = new MockEventDispatcher();
+        EventDispatcher ed2 = new MockEventDispatcher();
+        ed1.admit();
+        try {
+            ed2.admit();
+            fail("Expected RejectedException");
+        } catch (AdmissionControl.RejectedException e) {
+            assertTrue(e.getRetryAfterSeconds() >= AdmissionControl.RETRY_AFTER);
+            assertTrue(e.getRetryAfterSeconds() <= AdmissionControl.RETRY_AFTER * 2);
+        }
+        assertTrue(AdmissionControl.getStats().getLong("rejectedUser") >= 1);
+
+        // Disposing of a dispatcher releases it. Only once.
+        ed1.dispose();
+        ed1.dispose();
+        ed2.admit();
+        try {
+            new MockEventDispatcher().admit();
+            fail("Expected RejectedException");
+        } catch (AdmissionControl.RejectedException e) {
+            // Expected
+        }
+        ed2.dispose();
+    }
+
+    @Test
+    public void admissionControlReclaimsDisconnected() throws Exception {
+        HttpSession session = Mockito.mock(HttpSession.class);
+        Mockito.when(session.getId()).thenReturn("reclaim-session");
+        AdmissionControl.MAX_DISPATCHERS_PER_USER = 1;
+
+        // e.g. the page is reloaded while the old dispatcher is still in its grace period.
+        EventDispatcher ed1 = new MockEventDispatcher();
+        ed1.admit();
+        EventDispatcherRegistry.put(session, "client-1", ed1);
+        assertFalse(ed1.isConnected());
+
+        EventDispatcher ed2 = new MockEventDispatcher();
+        ed2.admit(principal -> EventDispatcherRegistry.evictDisconnected(session, principal));
+        assertNull(EventDispatcherRegistry.get(session, "client-1"));
+        assertTrue(EventDispatcherRegistry.wasEvicted(session, "client-1"));
+        EventDispatcherRegistry.put(session, "client-2", ed2);
+
+        // Only dispatchers on the same session are reclaimed.
+        HttpSession otherSession = Mockito.mock(HttpSession.class);
+        Mockito.when(otherSession.getId()).thenReturn("reclaim-other-session");
+        try {
+            new MockEventDispatcher().admit(principal -> EventDispatcherRegistry.evictDisconnected(otherSession, principal));
+            fail("Expected RejectedException");
+        } catch (AdmissionControl.RejectedException e) {
+            // Expected
+        }
+        assertSame(ed2, EventDispatcherRegistry.get(session, "client-2"));
+        EventDispatcherRegistry.removeSession(session);
+        ed2.dispose();
+    }
+
+    @Test
+    public void reconnectControl() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            long retryHint = ReconnectControl.getRetryHint();
+            assertTrue(retryHint >= ReconnectControl.RETRY_MIN);
+            assertTrue(retryHint <= ReconnectControl.RETRY_MIN + ReconnectControl.RETRY_SPREAD);
+        }
+
+        // Unlimited by default.
+        ReconnectControl.CONNECT_RATE = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(ReconnectControl.tryConnect());
+        }
+
+        // A burst of 3 and then throttled until refilled (1 per second).
+        ReconnectControl.CONNECT_RATE = 1;
+        ReconnectControl.CONNECT_BURST = 3;
+        assertTrue(ReconnectControl.tryConnect());
+        assertTrue(ReconnectControl.tryListen());
+        assertTrue(ReconnectControl.tryConnect());
+        assertFalse(ReconnectControl.tryListen());
+        assertFalse(ReconnectControl.tryConnect());
+        assertTrue(ReconnectControl.getStats().getLong("throttledConnects") >= 1);
+        assertTrue(ReconnectControl.getStats().getLong("throttledListens") >= 1);
+        assertTrue(ReconnectControl.getRetryAfterSeconds() >= 3);
+    }
+
+    @Test
+    public void asyncStreamHandover() throws Exception {
+        AsynchEventDispatcher ed = new AsynchEventDispatcher();
+        HttpServletResponse response1 = Mockito.mock(HttpServletResponse.class);
+        HttpServletResponse response2 = Mockito.mock(HttpServletResponse.class);
+        AsyncContext context1 = newAsyncContext(response1);
+        AsyncContext context2 = newAsyncContext(response2);
+        HttpServletRequest request1 = Mockito.mock(HttpServletRequest.class);
+        HttpServletRequest request2 = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request1.startAsync(request1, response1)).thenReturn(context1);
+        Mockito.when(request2.startAsync(request2, response2)).thenReturn(context2);
+        long handovers = AsynchEventDispatcher.getHandoverCount();
+
+        ed.start(request1, response1);
+        assertSame(response1, ed.getResponse());
+        Mockito.verify(context1, Mockito.never()).complete();
+
+        // The same client listens again. The old stream is completed straight away.
+        ed.start(request2, response2);
+        assertSame(response2, ed.getResponse());
+        Mockito.verify(context1).complete();
+        Mockito.verify(context2, Mockito.never()).complete();
+        assertEquals(handovers + 1, AsynchEventDispatcher.getHandoverCount());
+    }
+
+    @Test
+    public void asyncConnectionState() throws Exception {
+        AsynchEventDispatcher ed = new AsynchEventDispatcher();
+        ed.setId("client-1");
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        AsyncContext context = newAsyncContext(response);
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.startAsync(request, response)).thenReturn(context);
+        assertEquals(EventDispatcher.ConnectionState.RECONNECTING, ed.getConnectionState());
+
+        ed.start(request, response);
+        assertEquals(EventDispatcher.ConnectionState.CONNECTED, ed.getConnectionState());
+
+        // The stream ends. Events no longer touch the response.
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        Mockito.verify(context).addListener(listener.capture());
+        listener.getValue().onComplete(new AsyncEvent(context));
+        assertEquals(EventDispatcher.ConnectionState.RECONNECTING, ed.getConnectionState());
+        assertNull(ed.getResponse());
+        assertFalse(ed.dispatchEvent("job", "{}"));
+        Mockito.verify(context, Mockito.never()).getResponse();
+        Mockito.verify(response, Mockito.never()).getWriter();
+
+        ed.dispose();
+        assertEquals(EventDispatcher.ConnectionState.CLOSED, ed.getConnectionState());
+    }
+
+    @Test
+    public void eventStreamTakesOver() throws Exception {
+        AsynchEventDispatcher ed = new AsynchEventDispatcher();
+        ed.setId("client-1");
+        HttpServletResponse response = Mockito.mock(HttpServletResponse.class);
+        AsyncContext context = newAsyncContext(response);
+        HttpServletRequest request = Mockito.mock(HttpServletRequest.class);
+        Mockito.when(request.startAsync(request, response)).thenReturn(context);
+        ed.start(request, response);
+
+        // An event stream (e.g. a WebSocket) takes over from the SSE stream.
+        EventStream stream = Mockito.mock(EventStream.class);
+        Mockito.when(stream.write(ed, "job", "{}")).thenReturn(true);
+        ed.attachStream(stream);
+        Mockito.verify(context).complete();
+        assertEquals(EventDispatcher.ConnectionState.CONNECTED, ed.getConnectionState());
+        assertTrue(ed.dispatchEvent("job", "{}"));
+        Mockito.verify(stream).write(ed, "job", "{}");
+        Mockito.verify(response, Mockito.never()).getWriter();
+
+        // A failed write drops the stream. Events go to the retry queue.
+        Mockito.when(stream.write(ed, "job", "{}")).thenReturn(false);
+        assertFalse(ed.dispatchEvent("job", "{}"));
+        assertEquals(EventDispatcher.ConnectionState.RECONNECTING, ed.getConnectionState());
+        assertFalse(ed.dispatchEvent("job", "{}"));
+        Mockito.verify(stream, Mockito.times(2)).write(ed, "job", "{}");
+
+        // And an SSE stream takes over from an event stream.
+        EventStream stream2 = Mockito.mock(EventStream.class);
+        ed.attachStream(stream2);
+        HttpServletResponse response2 = Mockito.mock(HttpServletResponse.class);
+        AsyncContext context2 = newAsyncContext(response2);
+        Mockito.when(request.startAsync(request, response2)).thenReturn(context2);
+        ed.start(request, response2);
+        Mockito.verify(stream2).close();
+        assertEquals(EventDispatcher.ConnectionState.CONNECTED, ed.getConnectionState());
+
+        ed.dispose();
+    }
+
+    @Test
+    public void staggeredReload() throws Exception {
+        ReconnectControl.RELOAD_WINDOW = 50;
+        AsynchEventDispatcher ed = new AsynchEventDispatcher();
+        ed.setId("client-1");
+        EventStream stream = Mockito.mock(EventStream.class);
+        Mockito.when(stream.write(ed, "reload", null)).thenReturn(true);
+        ed.attachStream(stream);
+
+        // Connected when it falls due. Delivered.
+        ed.dispatchReload();
+        Mockito.verify(stream, Mockito.timeout(5000)).write(ed, "reload", null);
+        assertFalse(ed.isReloadUndelivered());
+
+        // Reconnecting when it falls due. Kept for the next stream.
+        ed.detachStream(stream);
+        ed.dispatchReload();
+        long waitUntil = System.currentTimeMillis() + 5000;
+        while (!ed.isReloadUndelivered() && System.currentTimeMillis() < waitUntil) {
+            Thread.sleep(10);
+        }
+        assertTrue(ed.isReloadUndelivered());
+        Mockito.verify(stream, Mockito.times(1)).write(ed, "reload", null);
+
+        EventStream stream2 = Mockito.mock(EventStream.class);
+        Mockito.when(stream2.write(ed, "reload", null)).thenReturn(true);
+        ed.attachStream(stream2);
+        ed.dispatchUndeliveredReload();
+        Mockito.verify(stream2).write(ed, "reload", null);
+        assertFalse(ed.isReloadUndelivered());
+
+        // Only the once.
+        ed.dispatchUndeliveredReload();
+        Mockito.verify(stream2, Mockito.times(1)).write(ed, "reload", null);
+
+        ed.dispose();
+    }
+
+    @Test
+    public void detachedStreamDroppedOnDispose() throws Exception {
+        AsynchEventDispatcher ed = new AsynchEventDispatcher();
+        ed.setId("client-1");
+
+        // Detached (e.g. a long-poll client with a full buffer), but kept for the next poll.
+        EventStream stream = Mockito.mock(EventStream.class);
+        ed.attachStream(stream);
+        ed.detachStream(stream);
+        assertEquals(EventDispatcher.ConnectionState.RECONNECTING, ed.getConnectionState());
+        assertSame(stream, ed.getLastStream());
+        Mockito.verify(stream, Mockito.never()).close();
+
+        // Reattached. Not closed.
+        ed.attachStream(stream);
+        ed.detachStream(stream);
+        Mockito.verify(stream, Mockito.never()).close();
+
+        // Dropped (and closed) when the dispatcher is disposed of.
+        ed.dispose();
+        assertNull(ed.getLastStream());
+        Mockito.verify(stream).close();
+    }
+
+    @Test
+    public void undeliveredRequeued() throws Exception {
+        EventDispatcher ed = new MockEventDispatcher();
+        ed.subscribers.put(null, null);
+        //Set to an hour so that the retries are not processed
+        org.jenkinsci.plugins.ssegateway.sse.EventDispatcher.RETRY_QUEUE_PROCESSING_DELAY = TimeUnit.HOURS.toMillis(1);
+        ed.addToRetryQueue(new SimpleMessage().setChannelName("job").set(EventProps.Jenkins.jenkins_event_uuid, "uuid-3"));
+
+        // Accepted by a stream, but never delivered. Only the channel events can be retried.
+        ed.requeueUndelivered(Arrays.asList(
+                new SimpleMessage().setChannelName("job").set(EventProps.Jenkins.jenkins_event_uuid, "uuid-1").toJSON(),
+                "ack",
+                new SimpleMessage().setChannelName("job").set(EventProps.Jenkins.jenkins_event_uuid, "uuid-2").toJSON(),
+                "{\"jenkins_channel\":\"job\"}"));
+        assertEquals(3, ed.retryQueue.size());
+        assertEquals("uuid-1", ed.retryQueue.peekFirst().eventUUID);
+        assertEquals("uuid-3", ed.retryQueue.peekLast().eventUUID);
+
+        // Not once disposed of.
+        ed.subscribers.clear();
+        ed.dispose();
+        ed.subscribers.put(null, null);
+        ed.requeueUndelivered(Collections.singletonList(new SimpleMessage().setChannelName("job").set(EventProps.Jenkins.jenkins_event_uuid, "uuid-4").toJSON()));
+        assertTrue(ed.retryQueue.isEmpty());
+    }
+
+    @Test
+    public void listenSubscriptionsAppliedOnce() throws Exception {
+        HttpSession session = Mockito.mock(HttpSession.class, Mockito.RETURNS_DEEP_STUBS);
+        Mockito.when(session.getId()).thenReturn("listen-session");
+        List<EventFilter> subscribed = new ArrayList<>();
+        EventDispatcher ed = new MockEventDispatcher() {
+            @Override
+            public boolean subscribe(EventFilter filter) {
+                subscribed.add(filter);
+                return true;
+            }
+        };
+        ed.setId("client-1");
+        EventDispatcherRegistry.put(session, "client-1", ed);
+        EventStream stream = Mockito.mock(EventStream.class);
+        Mockito.when(stream.write(Mockito.eq(ed), Mockito.any(), Mockito.any())).thenReturn(true);
+        EventFilter filter = new EventFilter();
+        filter.set("jenkins_channel", "job");
+        List<EventFilter> listenSubscriptions = Collections.singletonList(filter);
+
+        try {
+            // Not after a connect e.g. the listen created the dispatcher. Not applied.
+            assertSame(ed, EventDispatcherFactory.start("client-1", session, listenSubscriptions, stream));
+            assertTrue(subscribed.isEmpty());
+
+            // The first listen after a connect. Applied (through the configuration queue).
+            ed.setAwaitingListen();
+            EventDispatcherFactory.start("client-1", session, listenSubscriptions, stream);
+            assertEquals(listenSubscriptions, subscribed);
+
+            // The stream reconnects, with the same listen subscriptions. Not applied again.
+            EventDispatcherFactory.start("client-1", session, listenSubscriptions, stream);
+            assertEquals(listenSubscriptions, subscribed);
+        } finally {
+            EventDispatcherRegistry.removeSession(session);
+        }
+    }
+
+    private static AsyncContext newAsyncContext(HttpServletResponse response) {
+        AsyncContext context = Mockito.mock(AsyncContext.class);
+        Mockito.when(context.getResponse()).thenReturn(response);
+        return context;
+    }
 }
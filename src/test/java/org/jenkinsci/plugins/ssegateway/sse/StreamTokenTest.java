@@ -0,0 +1,126 @@
+/*
+ * The MIT License
+ *
+ * Copyright (c) 2016, CloudBees, Inc.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.ssegateway.sse;
+
+import hudson.security.ACL;
+import hudson.security.ACLContext;
+import jenkins.model.Jenkins;
+import org.jenkinsci.plugins.ssegateway.MockEventDispatcher;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+/**
+ * @author <a href="mailto:tom.fennelly@gmail.com">tom.fennelly@gmail.com</a>
+ */
+public class StreamTokenTest {
+
+    @Rule
+    public JenkinsRule jenkins = new JenkinsRule();
+
+    @Test
+    public void test_issue_verify() {
+        StreamToken issued = StreamToken.issue("client-1");
+        StreamToken verified = StreamToken.verify(issued.getValue());
+
+        Assert.assertNotNull(verified);
+        Assert.assertEquals("client-1", verified.getClientId());
+        Assert.assertEquals(issued.getPrincipal(), verified.getPrincipal());
+        Assert.assertEquals(issued.getRegistryKey(), verified.getRegistryKey());
+    }
+
+    @Test
+    public void test_same_client_id() {
+        StreamToken token1 = StreamToken.issue("client-1");
+        StreamToken token2 = StreamToken.issue("client-1");
+
+        // Same (client chosen) client Id, but not the same dispatcher.
+        Assert.assertEquals(token1.getRegistryKey(), token2.getRegistryKey());
+        Assert.assertNotEquals(token1.getDispatcherKey(), token2.getDispatcherKey());
+
+        // Renewed with the previous token. Same dispatcher.
+        StreamToken renewed = StreamToken.issue("client-1", StreamToken.verify(token1.getValue()));
+        Assert.assertEquals(token1.getDispatcherKey(), renewed.getDispatcherKey());
+        // But not for a different client Id.
+        Assert.assertNotEquals(token1.getDispatcherKey(), StreamToken.issue("client-2", token1).getDispatcherKey());
+    }
+
+    @Test
+    public void test_tampered() {
+        String value = StreamToken.issue("client-1").getValue();
+        String otherClientValue = StreamToken.issue("client-2").getValue();
+
+        // Client Id from another token, with this token's signature.
+        String tampered = otherClientValue.substring(0, otherClientValue.indexOf('.')) + value.substring(value.indexOf('.'));
+        Assert.assertNull(StreamToken.verify(tampered));
+        Assert.assertNull(StreamToken.verify("garbage"));
+    }
+
+    @Test
+    public void test_other_principal() {
+        String value;
+        try (ACLContext ignored = ACL.as2(ACL.SYSTEM2)) {
+            value = StreamToken.issue("client-1").getValue();
+            Assert.assertNotNull(StreamToken.verify(value));
+        }
+        try (ACLContext ignored = ACL.as2(Jenkins.ANONYMOUS2)) {
+            Assert.assertNull(StreamToken.verify(value));
+        }
+    }
+
+    @Test
+    public void test_expired() throws InterruptedException {
+        long lifetime = StreamToken.LIFETIME;
+        String value = StreamToken.issue("client-1").getValue();
+        StreamToken.LIFETIME = 1;
+        Thread.sleep(10);
+        try {
+            Assert.assertNull(StreamToken.verify(value));
+        } finally {
+            StreamToken.LIFETIME = lifetime;
+        }
+    }
+
+    @Test
+    public void test_empty_registry_entry_removed() {
+        long gracePeriod = EventDispatcher.RECONNECT_GRACE_PERIOD;
+        int sessions = EventDispatcherRegistry.getStats().getInt("sessions");
+        StreamToken token = StreamToken.issue("client-1");
+        EventDispatcher dispatcher = new MockEventDispatcher();
+        EventDispatcherRegistry.put(token, dispatcher);
+        Assert.assertEquals(sessions + 1, EventDispatcherRegistry.getStats().getInt("sessions"));
+
+        // The principal's last sessionless dispatcher is evicted. Its registry entry goes too.
+        EventDispatcher.RECONNECT_GRACE_PERIOD = 1000;
+        try {
+            EventDispatcherRegistry.evictIdle(dispatcher.getLastSeen() + 1001);
+        } finally {
+            EventDispatcher.RECONNECT_GRACE_PERIOD = gracePeriod;
+        }
+        Assert.assertNull(EventDispatcherRegistry.get(token));
+        // Other idle entries might have gone with it.
+        Assert.assertTrue(EventDispatcherRegistry.getStats().getInt("sessions") <= sessions);
+    }
+}